@@ -49,6 +49,14 @@ tasks.register<JavaExec>("server") {
     mainClass.set("com.group15.kvserver.Server")
     classpath = sourceSets["main"].runtimeClasspath
 
+    // Console commands, such as reshard
+    standardInput = System.`in`
+
+    // Reports virtual threads that pin their carrier thread, use with -PtracePinned
+    if (project.hasProperty("tracePinned")) {
+        jvmArgs("-Djdk.tracePinnedThreads=full")
+    }
+
     doFirst {
         if (project.hasProperty("args")) {
             args = (project.property("args") as String).split(",")
@@ -0,0 +1,104 @@
+package com.group15.kvserver;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over 64-bit key hashes. It answers whether a key may have been added, never
+ * giving a false negative, and gives false positives for about 1% of the keys with ten bits
+ * per key. The bits probed for a key are derived from its hash by double hashing.
+ */
+class BloomFilter {
+    /* Bits per key and number of bits probed, close to the optimum for a 1% false positive rate */
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private final long[] words;
+    private final long bits;
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+        this.bits = (long) words.length * 64;
+    }
+
+    /**
+     * Builds a filter holding the given hashes.
+     *
+     * @param hashes The hashes of the keys, calculated with hash.
+     * @param count The number of hashes to take from the array.
+     */
+    static BloomFilter of(long[] hashes, int count) {
+        BloomFilter filter = new BloomFilter(new long[Math.max(1, (int) (((long) count * BITS_PER_KEY + 63) / 64))]);
+        for (int i = 0; i < count; i++) {
+            long hash = hashes[i];
+            long delta = (hash >>> 33) | 1;
+            for (int probe = 0; probe < PROBES; probe++) {
+                long bit = Long.remainderUnsigned(hash, filter.bits);
+                filter.words[(int) (bit >>> 6)] |= 1L << bit;
+                hash += delta;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Checks whether a key may have been added to the filter.
+     *
+     * @param hash The hash of the key, calculated with hash.
+     * @return false if the key was certainly not added.
+     */
+    boolean mayContain(long hash) {
+        long delta = (hash >>> 33) | 1;
+        for (int probe = 0; probe < PROBES; probe++) {
+            long bit = Long.remainderUnsigned(hash, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            hash += delta;
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the 64-bit hash of a key: FNV-1a over its characters, then mixed so that
+     * every bit depends on every character.
+     */
+    static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Writes the filter as its number of words followed by the words.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by write.
+     */
+    static BloomFilter read(ByteBuffer in) {
+        long[] words = new long[in.getInt()];
+        in.asLongBuffer().get(words);
+        in.position(in.position() + words.length * 8);
+        return new BloomFilter(words);
+    }
+
+    /**
+     * Gets the memory taken by the bits of the filter.
+     */
+    long sizeInBytes() {
+        return words.length * 8L;
+    }
+}
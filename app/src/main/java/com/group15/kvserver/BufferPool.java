@@ -0,0 +1,101 @@
+package com.group15.kvserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the buffers of frames for reuse, so that serving a request does not allocate them
+ * again. Buffers are grouped in size classes of powers of two, from 512 bytes to 1 MB, and
+ * each class keeps at most a few megabytes of free buffers; buffers larger than the largest
+ * class are allocated and left to the garbage collector as usual.
+ */
+final class BufferPool {
+    /* The pool shared by every connection */
+    static final BufferPool DEFAULT = new BufferPool();
+
+    /* Sizes of the smallest and largest classes, as powers of two */
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 20;
+    /* Memory each class keeps in free buffers, at most */
+    private static final int MAX_FREE_BYTES_PER_CLASS = 4 << 20;
+
+    /* Free buffers of every class, used as stacks so that the most recently used are reused first */
+    private final PooledBuffer[][] free = new PooledBuffer[MAX_SHIFT - MIN_SHIFT + 1][];
+    private final int[] freeCount = new int[MAX_SHIFT - MIN_SHIFT + 1];
+    private final ReentrantLock[] locks = new ReentrantLock[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder reuses = new LongAdder();
+
+    BufferPool() {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new PooledBuffer[Math.max(4, MAX_FREE_BYTES_PER_CLASS >> (MIN_SHIFT + i))];
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Gets an empty buffer holding at least the given number of bytes, with one reference.
+     */
+    public PooledBuffer acquire(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        if (shift > MAX_SHIFT) {
+            allocations.increment();
+            PooledBuffer buffer = new PooledBuffer(null, new byte[capacity]);
+            buffer.reset();
+            return buffer;
+        }
+
+        int sizeClass = shift - MIN_SHIFT;
+        PooledBuffer buffer = null;
+        locks[sizeClass].lock();
+        try {
+            if (freeCount[sizeClass] > 0) {
+                buffer = free[sizeClass][--freeCount[sizeClass]];
+                free[sizeClass][freeCount[sizeClass]] = null;
+            }
+        } finally {
+            locks[sizeClass].unlock();
+        }
+        if (buffer == null) {
+            allocations.increment();
+            buffer = new PooledBuffer(this, new byte[1 << shift]);
+        } else {
+            reuses.increment();
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer whose last reference was released, dropping it if its class is full
+     * or if it grew past the largest class.
+     */
+    void recycle(PooledBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (Integer.bitCount(capacity) != 1 || sizeClass < 0 || sizeClass >= free.length) {
+            return;
+        }
+        locks[sizeClass].lock();
+        try {
+            if (freeCount[sizeClass] < free[sizeClass].length) {
+                free[sizeClass][freeCount[sizeClass]++] = buffer;
+            }
+        } finally {
+            locks[sizeClass].unlock();
+        }
+    }
+
+    /**
+     * Gets the number of buffers allocated and of buffers reused.
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("buffers.allocated", allocations.sum());
+        stats.put("buffers.reused", reuses.sum());
+        return stats;
+    }
+}
@@ -1,36 +1,69 @@
 package com.group15.kvserver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * The ClientLibrary class provides methods for communication between the client
  * and the server. It supports authentication, data operations (put, get), and
  * multi-key operations.
+ * 
+ * Requests are pipelined: every request gets its own tag and completion slot, so
+ * many threads can share one ClientLibrary and have requests in flight at the same time.
+ * The data operations also have asynchronous variants that return a CompletableFuture
+ * instead of blocking the calling thread.
+ * 
+ * Requests are encoded with the latest version of the Protocol the server supports, which is
+ * negotiated when connecting, unless the client is told to stay on an older one. Large requests
+ * and responses are compressed if the server agrees to it, unless the client is told not to.
+ * Values too large to send in a single frame can be streamed in chunks with putStream and getStream.
  */
 public class ClientLibrary {
     /* Handles tagged communication with the server */
     private TaggedConnection taggedConnection;
     /* Handles message multiplexing/demultiplexing */
     private Demultiplexer demultiplexer;
-    /* Ensures thread-safe operations */
-    private final ReentrantLock lock = new ReentrantLock();
     /* Unique identifier for each request */
-    private int tag = 0;
+    private final AtomicInteger tag = new AtomicInteger(0);
+    /* Tags of the requests already answered, reused before new ones so that tags stay small,
+       which version 2 of the protocol writes in fewer bytes */
+    private int[] freeTags = new int[64];
+    private int freeTagsCount = 0;
+    private final ReentrantLock tagsLock = new ReentrantLock();
+    /* The version of the protocol negotiated with the server */
+    private final Protocol protocol;
+    /* Initial size of the buffer of a request, which grows for larger values */
+    private static final int REQUEST_BUFFER_SIZE = 512;
+    /* Queued after the last chunk of a streamed value, or once no more chunks will arrive */
+    private static final byte[] END_OF_STREAM = new byte[0];
 
-    /* Maps tags to conditions for waiting threads */
-    public Map<Integer, Condition> conditionsMap = new HashMap<>();
-    /* Maps tags to server responses */
-    public Map<Integer, byte[]> responsesMap = new HashMap<>();
+    /* Maps the tags of the requests in flight to the slots completed with their responses */
+    private final Map<Integer, CompletableFuture<byte[]>> pendingResponses = new ConcurrentHashMap<>();
+    /* Maps the tags of the requests answered in pages to the handlers of their pages,
+       which return true once they take the last one */
+    private final Map<Integer, Predicate<byte[]>> pendingPages = new ConcurrentHashMap<>();
+    /* The reason why no more responses will arrive, set once the connection stops delivering them */
+    private volatile IOException closed = null;
 
     /**
      * Constructor to initialize the ClientLibrary with the given server host and port.
@@ -40,37 +73,252 @@ public class ClientLibrary {
      * @throws IOException if there is an issue connecting to the server
      */
     public ClientLibrary(String host, int port) throws IOException {
-        Socket socket = new Socket(host, port);
+        this(host, port, Thread::new);
+    }
+
+    /**
+     * Constructor to initialize the ClientLibrary with the given server host and port,
+     * creating the reader threads with the given factory.
+     *
+     * @param host the server hostname
+     * @param port the server port
+     * @param threadFactory the factory used to create the reader threads
+     * @throws IOException if there is an issue connecting to the server
+     */
+    public ClientLibrary(String host, int port, ThreadFactory threadFactory) throws IOException {
+        this(host, port, threadFactory, Protocol.LATEST.version());
+    }
+
+    /**
+     * Constructor to initialize the ClientLibrary with the given server host and port,
+     * creating the reader threads with the given factory and using up to the given version
+     * of the protocol.
+     *
+     * @param host the server hostname
+     * @param port the server port
+     * @param threadFactory the factory used to create the reader threads
+     * @param protocolVersion the latest version of the protocol to use, 1 to skip the handshake
+     *                        with servers that only support version 1
+     * @throws IOException if there is an issue connecting to the server
+     */
+    public ClientLibrary(String host, int port, ThreadFactory threadFactory, int protocolVersion) throws IOException {
+        this(host, port, threadFactory, protocolVersion, true);
+    }
+
+    /**
+     * Constructor to initialize the ClientLibrary with the given server host and port,
+     * creating the reader threads with the given factory, using up to the given version
+     * of the protocol and compressing large frames if asked to and the server agrees.
+     *
+     * @param host the server hostname
+     * @param port the server port
+     * @param threadFactory the factory used to create the reader threads
+     * @param protocolVersion the latest version of the protocol to use, 1 to skip the handshake
+     *                        with servers that only support version 1
+     * @param compression whether to ask the server to compress large frames, which needs version 2
+     * @throws IOException if there is an issue connecting to the server
+     */
+    public ClientLibrary(String host, int port, ThreadFactory threadFactory, int protocolVersion,
+                         boolean compression) throws IOException {
+        // Connected through a channel, so that requests sent together go out in a single gathering write
+        Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
         taggedConnection = new TaggedConnection(socket);
-        demultiplexer = new Demultiplexer(taggedConnection);
+        try {
+            taggedConnection.handshake(protocolVersion, compression);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        protocol = Protocol.of(taggedConnection.protocolVersion());
+        demultiplexer = new Demultiplexer(taggedConnection, threadFactory);
 
         demultiplexer.setClientLibrary(this);
-        new Thread(demultiplexer::reader).start();
     }
 
     /**
-     * Sends a request with a specific tag and waits for a response.
+     * Gets the version of the protocol negotiated with the server.
+     *
+     * @return the version
+     */
+    public int protocolVersion() {
+        return protocol.version();
+    }
+
+    /**
+     * Checks whether large frames are compressed, as negotiated with the server.
+     *
+     * @return true if they are compressed
+     */
+    public boolean compressesFrames() {
+        return taggedConnection.compressesFrames();
+    }
+
+    /**
+     * Writes the fields of a request, which follow its header.
+     */
+    @FunctionalInterface
+    private interface RequestWriter {
+        void write(PooledBuffer request) throws IOException;
+    }
+
+    /**
+     * Sends a request with a new tag without waiting for its response.
+     * The returned future is completed by the demultiplexer reader thread once the response arrives.
+     *
+     * @param requestType the type of the request
+     * @param writer writes the fields of the request
+     * @return a future completed with the response data
+     */
+    private CompletableFuture<byte[]> sendAsync(RequestType requestType, RequestWriter writer) {
+        return sendAsync(requestType, writer, null);
+    }
+
+    /**
+     * Sends a request with a new tag without waiting for its response, which may come in pages.
+     * Every page is handed to the page handler as it arrives.
      *
      * @param requestType the type of the request
-     * @param requestData the request data
+     * @param writer writes the fields of the request
+     * @param pageHandler takes each page of the response and returns true for the last one,
+     *                    or null if the response is a single frame
+     * @return a future completed with the last page of the response
+     */
+    private CompletableFuture<byte[]> sendAsync(RequestType requestType, RequestWriter writer, Predicate<byte[]> pageHandler) {
+        PooledBuffer requestData;
+        try {
+            requestData = encode(requestType, writer);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(nextTag(), requestType, requestData, pageHandler);
+    }
+
+    /**
+     * Sends an encoded request with the given tag without waiting for its response.
+     *
+     * @param frameTag the tag of the request, which no request in flight uses
+     * @param requestType the type of the request
+     * @param requestData the request, encoded by encode, released once sent
+     * @param pageHandler takes each page of the response and returns true for the last one,
+     *                    or null if the response is a single frame
+     * @return a future completed with the last page of the response
+     */
+    private CompletableFuture<byte[]> sendAsync(int frameTag, RequestType requestType, PooledBuffer requestData,
+                                                Predicate<byte[]> pageHandler) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        pendingResponses.put(frameTag, response);
+        if (pageHandler != null) {
+            pendingPages.put(frameTag, pageHandler);
+        }
+        // Checked after the slot is added, so failResponses either fails it or ran before it
+        IOException failure = closed;
+        if (failure != null) {
+            pendingResponses.remove(frameTag);
+            pendingPages.remove(frameTag);
+            requestData.release();
+            response.completeExceptionally(failure);
+            return response;
+        }
+        try {
+            demultiplexer.send(frameTag, requestType.getValue(), requestData);
+        } catch (IOException e) {
+            pendingResponses.remove(frameTag);
+            pendingPages.remove(frameTag);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Encodes a request in a pooled buffer, after room for the header.
+     *
+     * @param requestType the type of the request
+     * @param writer writes the fields of the request
+     * @return the buffer holding the request
+     * @throws IOException if the fields cannot be encoded
+     */
+    private PooledBuffer encode(RequestType requestType, RequestWriter writer) throws IOException {
+        PooledBuffer requestData = BufferPool.DEFAULT.acquire(REQUEST_BUFFER_SIZE);
+        requestData.reserve(TaggedConnection.MAX_HEADER_SIZE);
+        try {
+            // Version 1 repeats the request type at the start of the data
+            if (protocol == Protocol.V1) {
+                requestData.writeShort(requestType.getValue());
+            }
+            writer.write(requestData);
+        } catch (IOException e) {
+            requestData.release();
+            throw e;
+        }
+        return requestData;
+    }
+
+    /**
+     * Gets a tag that no request in flight uses, the last one freed if any.
+     */
+    private int nextTag() {
+        tagsLock.lock();
+        try {
+            if (freeTagsCount > 0) {
+                return freeTags[--freeTagsCount];
+            }
+        } finally {
+            tagsLock.unlock();
+        }
+        return tag.getAndIncrement();
+    }
+
+    /**
+     * Frees the tag of a request once its last response arrived. Tags of requests that failed
+     * otherwise are never reused, since the server may still answer them.
+     */
+    private void freeTag(int freed) {
+        tagsLock.lock();
+        try {
+            if (freeTagsCount == freeTags.length) {
+                freeTags = Arrays.copyOf(freeTags, freeTags.length * 2);
+            }
+            freeTags[freeTagsCount++] = freed;
+        } finally {
+            tagsLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a request with a new tag and waits for a response.
+     * No lock is held while waiting, so other threads can send their own requests meanwhile.
+     *
+     * @param requestType the type of the request
+     * @param writer writes the fields of the request
      * @return the response data
      * @throws IOException if there is an issue sending the request or receiving the response
      */
-    private byte[] sendWithTag(short requestType, byte[] requestData) throws IOException {
-        lock.lock();
+    private byte[] sendWithTag(RequestType requestType, RequestWriter writer) throws IOException {
+        return await(sendAsync(requestType, writer));
+    }
+
+    /**
+     * Waits for a future returned by one of the asynchronous methods.
+     *
+     * @param future the future to wait for
+     * @return the result of the future
+     * @throws IOException if the request failed or the thread was interrupted
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
         try {
-            TaggedConnection.Frame frame = new TaggedConnection.Frame(this.tag, requestType, requestData);
-            this.tag++;
-            taggedConnection.send(frame.tag, requestType, requestData);
-            
-            try {
-                return demultiplexer.receive(frame.tag);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new IOException("Interrupted while waiting for response", e);
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
             }
-        } finally {
-            lock.unlock();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to receive response", cause);
         }
     }
 
@@ -83,27 +331,14 @@ public class ClientLibrary {
      * @throws IOException if there is an issue during authentication
      */
     public boolean authenticate(String username, String password) throws IOException {
-        lock.lock();
-        try {
-            // Envia um pedido de autenticação com as credenciais
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.AuthRequest.getValue());
-                dos.writeUTF(username);
-                dos.writeUTF(password);
-                requestData = baos.toByteArray();
-            }
-            System.out.println("Sending authentication request");
-            byte[] responseData = sendWithTag(RequestType.AuthRequest.getValue(), requestData);
-            // Lê a resposta
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                return dis.readBoolean();
-            }
-        } finally {
-            lock.unlock();
-        }
+        // Envia um pedido de autenticação com as credenciais
+        System.out.println("Sending authentication request");
+        byte[] responseData = sendWithTag(RequestType.AuthRequest, request -> {
+            protocol.writeString(request, username);
+            protocol.writeString(request, password);
+        });
+        // Lê a resposta
+        return PooledBuffer.wrap(responseData).readBoolean();
     }
 
     /**
@@ -115,25 +350,12 @@ public class ClientLibrary {
      * @throws IOException if there is an issue during registration
      */
     public boolean register(String username, String password) throws IOException {
-        lock.lock();
-        try {
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.RegisterRequest.getValue());
-                dos.writeUTF(username);
-                dos.writeUTF(password);
-                requestData = baos.toByteArray();
-            }
-            byte[] responseData = sendWithTag(RequestType.RegisterRequest.getValue(), requestData);
-            // Lê a resposta
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                return dis.readBoolean();
-            }
-        } finally {
-            lock.unlock();
-        }
+        byte[] responseData = sendWithTag(RequestType.RegisterRequest, request -> {
+            protocol.writeString(request, username);
+            protocol.writeString(request, password);
+        });
+        // Lê a resposta
+        return PooledBuffer.wrap(responseData).readBoolean();
     }
 
     /**
@@ -144,23 +366,49 @@ public class ClientLibrary {
      * @throws IOException if there is an issue storing the data
      */
     public void put(String key, byte[] value) throws IOException {
-        lock.lock();
-        try {
-            // Envia um pedido de inserção com a chave e o valor
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.PutRequest.getValue());
-                dos.writeUTF(key);
-                dos.writeInt(value.length);
-                dos.write(value);
-                requestData = baos.toByteArray();
-            }
-            System.out.println("Sending put request for key: " + key);
-            sendWithTag(RequestType.PutRequest.getValue(), requestData);
-        } finally {
-            lock.unlock();
-        }
+        System.out.println("Sending put request for key: " + key);
+        await(putAsync(key, value));
+    }
+
+    /**
+     * Stores a value with the specified key in the server without waiting for the server.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return a future completed once the server stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return putAsync(key, value, 0);
+    }
+
+    /**
+     * Stores a value with the specified key in the server, to be removed once the given time passes.
+     *
+     * @param key   the key
+     * @param value the value
+     * @param ttlMillis the time until the key expires, in milliseconds, or 0 if it does not expire
+     * @throws IOException if there is an issue storing the data
+     */
+    public void put(String key, byte[] value, long ttlMillis) throws IOException {
+        await(putAsync(key, value, ttlMillis));
+    }
+
+    /**
+     * Stores a value with the specified key in the server, to be removed once the given time passes,
+     * without waiting for the server.
+     *
+     * @param key   the key
+     * @param value the value
+     * @param ttlMillis the time until the key expires, in milliseconds, or 0 if it does not expire
+     * @return a future completed once the server stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value, long ttlMillis) {
+        // Envia um pedido de inserção com a chave e o valor
+        return sendAsync(RequestType.PutRequest, request -> {
+            protocol.writeString(request, key);
+            protocol.writeValue(request, value);
+            protocol.writeTtl(request, ttlMillis);
+        }).thenApply(response -> null);
     }
 
     /**
@@ -171,134 +419,410 @@ public class ClientLibrary {
      * @throws IOException if there is an issue retrieving the data
      */
     public byte[] get(String key) throws IOException {
-        lock.lock();
-        try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.GetRequest.getValue());
-                dos.writeUTF(key);
-                requestData = baos.toByteArray();
-            }
+        return await(getAsync(key));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key from the server without blocking.
+     *
+     * @param key the key
+     * @return a future completed with the value associated with the key, or null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return sendAsync(RequestType.GetRequest, request -> protocol.writeString(request, key))
+            .thenApply(this::readValue);
+    }
 
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
+    /**
+     * Stores a value read from a stream with the specified key in the server. The value is sent
+     * in chunks, between the frames of other requests, and no more than Protocol.STREAM_WINDOW
+     * chunks are sent ahead of the server, so a large value neither needs to fit in memory on
+     * the client nor holds back the other requests of the connection. The server keeps the
+     * chunks until the last one arrives and then joins them, so it briefly holds the value twice;
+     * putStream(key, value, length) lets it copy every chunk into place instead.
+     *
+     * @param key   the key
+     * @param value the stream holding the value, read up to its end and left open
+     * @throws IOException if there is an issue reading the value or storing the data
+     */
+    public void putStream(String key, InputStream value) throws IOException {
+        putStream(key, value, -1);
+    }
 
-            demultiplexer.send(tagG, RequestType.GetRequest.getValue(), requestData);
-            
-            while (!responsesMap.containsKey(tagG)) {
+    /**
+     * Stores a value of a known length read from a stream with the specified key in the server,
+     * in chunks like putStream(key, value). The server rejects the value if the stream does not
+     * hold exactly the given number of bytes.
+     *
+     * @param key    the key
+     * @param value  the stream holding the value, read up to its end and left open
+     * @param length the number of bytes of the value, or -1 if it is unknown
+     * @throws IOException if there is an issue reading the value or storing the data
+     */
+    public void putStream(String key, InputStream value, long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Value too large: " + length + " bytes");
+        }
+        // Every chunk is answered once the server received it, which gives back its permit
+        Semaphore window = new Semaphore(Protocol.STREAM_WINDOW);
+        Predicate<byte[]> answers = status -> {
+            boolean stores = readStreamStatus(status);
+            window.release();
+            return stores;
+        };
+        byte[] chunk = new byte[Protocol.STREAM_CHUNK_SIZE];
+        int streamTag = -1;
+        CompletableFuture<byte[]> stored = null;
+        boolean last = false;
+        try {
+            while (!last) {
+                int count = value.readNBytes(chunk, 0, chunk.length);
+                last = count < chunk.length;
+                boolean first = stored == null;
+                boolean lastChunk = last;
+                // LAST CHUNK | [KEY | VALUE LENGTH, or a missing length if unknown, in the first chunk] | CHUNK
+                PooledBuffer request = encode(RequestType.PutStreamRequest, r -> {
+                    r.writeBoolean(lastChunk);
+                    if (first) {
+                        protocol.writeString(r, key);
+                        protocol.writeOptionalLength(r, (int) Math.max(length, -1));
+                    }
+                    r.write(chunk, 0, count);
+                });
                 try {
-                    condition.await();
+                    window.acquire();
                 } catch (InterruptedException e) {
+                    request.release();
                     Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
+                    throw new IOException("Interrupted while streaming a value", e);
+                }
+                if (first) {
+                    streamTag = nextTag();
+                    stored = sendAsync(streamTag, RequestType.PutStreamRequest, request, answers);
+                    // Wakes up the sender once the request fails, since no more chunks are answered
+                    stored.whenComplete((status, e) -> window.release(Protocol.STREAM_WINDOW));
+                } else if (stored.isDone()) {
+                    // Rejected, the server drops the chunks until the stream is cancelled
+                    request.release();
+                    sendCancel(streamTag);
+                    break;
+                } else {
+                    demultiplexer.send(streamTag, RequestType.PutStreamRequest.getValue(), request);
                 }
             }
-
-            byte[] response = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
-
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
-                DataInputStream dis = new DataInputStream(bais)) {
-                int length = dis.readInt();
-                if (length < 0) return null;
-                byte[] data = new byte[length];
-                dis.readFully(data);
-                return data;
+        } catch (IOException e) {
+            if (stored != null) {
+                cancelStream(streamTag, stored);
             }
-        } finally {
-            lock.unlock();
+            throw e;
         }
+        await(stored);
     }
 
     /**
-     * Stores multiple key-value pairs in the server.
+     * Reads the answer to a chunk of a putStream.
      *
-     * @param pairs the key-value pairs
-     * @throws IOException if there is an issue storing the data
+     * @param status the answer
+     * @return true if the value was stored
+     * @throws UncheckedIOException if the server rejected the value, which fails the request
+     *                              without freeing its tag
      */
-    public void multiPut(Map<String, byte[]> pairs) throws IOException {
-        lock.lock();
-        try {
-            // Envia um pedido de inserção múltipla com os pares chave-valor
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.MultiPutRequest.getValue());
-                dos.writeInt(pairs.size());
-                for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                    dos.writeUTF(entry.getKey());
-                    dos.writeInt(entry.getValue().length);
-                    dos.write(entry.getValue());
-                }
-                requestData = baos.toByteArray();
-            }
-            sendWithTag(RequestType.MultiPutRequest.getValue(), requestData);
-        } finally {
-            lock.unlock();
+    private boolean readStreamStatus(byte[] status) {
+        if (status.length == 0 || status[0] == Protocol.STREAM_REJECTED) {
+            throw new UncheckedIOException(new IOException("Streamed value rejected by the server"));
         }
+        return status[0] == Protocol.STREAM_STORED;
     }
 
     /**
-     * Retrieves multiple values associated with the specified keys from the server.
+     * Retrieves the value associated with the specified key from the server as a stream. The
+     * value is received in chunks, between the frames of other requests, and no more than
+     * Protocol.STREAM_WINDOW chunks are received ahead of the reader of the stream, so a large
+     * value neither needs to fit in memory on the client nor holds back the other requests of
+     * the connection. The stream must be closed if it is not read up to its end.
      *
-     * @param keys the keys
-     * @return a map of key-value pairs
+     * @param key the key
+     * @return the stream of the value, or null if the key does not exist
      * @throws IOException if there is an issue retrieving the data
      */
-    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
-        lock.lock();
+    public InputStream getStream(String key) throws IOException {
+        PooledBuffer request = encode(RequestType.GetStreamRequest, r -> protocol.writeString(r, key));
+        ChunkStream stream = new ChunkStream(nextTag());
+        stream.start(sendAsync(stream.streamTag, RequestType.GetStreamRequest, request, stream::takeChunk));
+        return await(stream.length) < 0 ? null : stream;
+    }
+
+    /**
+     * Stops waiting for the chunks of a stream and asks the server to drop it, unless its
+     * last chunk already arrived. Its tag is never reused, since chunks sent before the server
+     * dropped the stream may still arrive.
+     *
+     * @param streamTag the tag of the stream
+     * @param response the future of the stream
+     */
+    private void cancelStream(int streamTag, CompletableFuture<byte[]> response) {
+        if (!pendingResponses.remove(streamTag, response)) {
+            return;
+        }
+        pendingPages.remove(streamTag);
+        sendCancel(streamTag);
+    }
+
+    /**
+     * Asks the server to drop a stream, in either direction.
+     *
+     * @param streamTag the tag of the stream
+     */
+    private void sendCancel(int streamTag) {
         try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.MultiGetRequest.getValue());
-                dos.writeInt(keys.size());
-                for (String key : keys) {
-                    dos.writeUTF(key);
+            // CHUNKS, 0 to cancel the stream
+            demultiplexer.send(streamTag, RequestType.StreamCreditRequest.getValue(),
+                encode(RequestType.StreamCreditRequest, r -> protocol.writeLength(r, 0)));
+        } catch (IOException e) {
+            // The server drops the stream with the connection
+        }
+    }
+
+    /**
+     * The value of a getStream response, read as its chunks arrive. The chunks are queued by
+     * the demultiplexer reader thread, and the server is granted credits for more of them as
+     * they are read.
+     */
+    private class ChunkStream extends InputStream {
+        final int streamTag;
+        /* Completed with the length of the value, or -1 if it is missing, once the first chunk arrives */
+        final CompletableFuture<Integer> length = new CompletableFuture<>();
+        /* Chunks received and not read yet */
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        /* The future of the stream, completed once its last chunk arrives */
+        private CompletableFuture<byte[]> response;
+        /* Whether every chunk arrived, and why no more chunks will arrive if the stream failed */
+        private volatile boolean received = false;
+        private volatile IOException failure = null;
+        /* Bytes left to arrive, only touched by the reader thread */
+        private long remaining;
+        /* The chunk being read, and the chunks read since the last credit was granted */
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private int consumed = 0;
+        private boolean closed = false;
+
+        ChunkStream(int streamTag) {
+            this.streamTag = streamTag;
+        }
+
+        /**
+         * Starts waiting for the chunks, which come as the pages of the response.
+         */
+        void start(CompletableFuture<byte[]> response) {
+            this.response = response;
+            response.whenComplete((lastChunk, e) -> {
+                if (e != null) {
+                    if (e instanceof UncheckedIOException) {
+                        failure = ((UncheckedIOException) e).getCause();
+                    } else if (e instanceof IOException) {
+                        failure = (IOException) e;
+                    } else {
+                        failure = new IOException("Failed to receive value", e);
+                    }
+                    length.completeExceptionally(failure);
+                    chunks.add(END_OF_STREAM);
+                }
+            });
+        }
+
+        /**
+         * Queues a chunk. Called by the demultiplexer reader thread.
+         *
+         * @return true if it is the last chunk
+         */
+        boolean takeChunk(byte[] data) {
+            if (!length.isDone()) {
+                // VALUE LENGTH, or a missing length if the key does not exist | FIRST CHUNK
+                PooledBuffer in = PooledBuffer.wrap(data);
+                int valueLength;
+                try {
+                    valueLength = protocol.readOptionalLength(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                length.complete(valueLength);
+                if (valueLength < 0) {
+                    return true;
                 }
-                requestData = baos.toByteArray();
+                remaining = valueLength;
+                data = Arrays.copyOfRange(data, data.length - in.available(), data.length);
             }
+            // CHUNK
+            remaining -= data.length;
+            chunks.add(data);
+            if (remaining > 0) {
+                return false;
+            }
+            received = true;
+            chunks.add(END_OF_STREAM);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == chunk.length && !nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
 
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            java.util.Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (position == chunk.length && !nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
 
-            demultiplexer.send(tagG, RequestType.MultiGetRequest.getValue(), requestData);
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
 
-            while (!responsesMap.containsKey(tagG)) {
+        /**
+         * Waits for the next chunk that holds any bytes, granting credits for the ones read.
+         *
+         * @return false if the value ended
+         */
+        private boolean nextChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (true) {
+                byte[] next;
                 try {
-                    condition.await();
+                    next = chunks.take();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
+                    throw new IOException("Interrupted while waiting for a chunk", e);
+                }
+                if (next == END_OF_STREAM) {
+                    chunks.add(END_OF_STREAM);
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return false;
+                }
+                chunk = next;
+                position = 0;
+                if (!received && ++consumed == Protocol.STREAM_WINDOW / 2) {
+                    // CHUNKS
+                    int credits = consumed;
+                    consumed = 0;
+                    demultiplexer.send(streamTag, RequestType.StreamCreditRequest.getValue(),
+                        encode(RequestType.StreamCreditRequest, r -> protocol.writeLength(r, credits)));
+                }
+                if (chunk.length > 0) {
+                    return true;
                 }
             }
+        }
 
-            byte[] responseData = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
-            
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                int n = dis.readInt();
-                Map<String, byte[]> result = new HashMap<>();
-                for (int i = 0; i < n; i++) {
-                    String key = dis.readUTF();
-                    int length = dis.readInt();
-                    byte[] data = new byte[length];
-                    dis.readFully(data);
-                    result.put(key, data);
-                }
-                return result;
+        @Override
+        public void close() {
+            if (closed) {
+                return;
             }
-        } finally {
-            lock.unlock();
+            closed = true;
+            if (!received && failure == null) {
+                cancelStream(streamTag, response);
+            }
+            chunks.clear();
+            chunk = new byte[0];
+            position = 0;
         }
     }
 
+    /**
+     * Stores multiple key-value pairs in the server.
+     *
+     * @param pairs the key-value pairs
+     * @throws IOException if there is an issue storing the data
+     */
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        await(multiPutAsync(pairs));
+    }
+
+    /**
+     * Stores multiple key-value pairs in the server without waiting for the server.
+     *
+     * @param pairs the key-value pairs
+     * @return a future completed once the server stored every pair
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        return multiPutAsync(pairs, 0);
+    }
+
+    /**
+     * Stores multiple key-value pairs in the server, to be removed once the given time passes.
+     *
+     * @param pairs the key-value pairs
+     * @param ttlMillis the time until the keys expire, in milliseconds, or 0 if they do not expire
+     * @throws IOException if there is an issue storing the data
+     */
+    public void multiPut(Map<String, byte[]> pairs, long ttlMillis) throws IOException {
+        await(multiPutAsync(pairs, ttlMillis));
+    }
+
+    /**
+     * Stores multiple key-value pairs in the server, to be removed once the given time passes,
+     * without waiting for the server.
+     *
+     * @param pairs the key-value pairs
+     * @param ttlMillis the time until the keys expire, in milliseconds, or 0 if they do not expire
+     * @return a future completed once the server stored every pair
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs, long ttlMillis) {
+        // Envia um pedido de inserção múltipla com os pares chave-valor
+        return sendAsync(RequestType.MultiPutRequest, request -> {
+            protocol.writeLength(request, pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                protocol.writeString(request, entry.getKey());
+                protocol.writeValue(request, entry.getValue());
+            }
+            protocol.writeTtl(request, ttlMillis);
+        }).thenApply(response -> null);
+    }
+
+    /**
+     * Retrieves multiple values associated with the specified keys from the server.
+     *
+     * @param keys the keys
+     * @return a map of key-value pairs, with a null value for every key that does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        return await(multiGetAsync(keys));
+    }
+
+    /**
+     * Retrieves multiple values associated with the specified keys from the server without blocking.
+     *
+     * @param keys the keys
+     * @return a future completed with a map of key-value pairs
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        return sendAsync(RequestType.MultiGetRequest, request -> {
+            protocol.writeLength(request, keys.size());
+            for (String key : keys) {
+                protocol.writeString(request, key);
+            }
+        }).thenApply(this::readPairs);
+    }
+
     /**
      * Retrieves the value associated with the specified key from the server if it satisfies the condition.
      *
@@ -309,59 +833,375 @@ public class ClientLibrary {
      * @throws IOException if there is an issue retrieving the data
      */
     public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException, InterruptedException {
-        lock.lock();
-        try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.GetWhenRequest.getValue());
-                dos.writeUTF(key);
-                dos.writeUTF(keyCond);
-                dos.writeInt(valueCond.length);
-                dos.write(valueCond);
-                requestData = baos.toByteArray();
+        return await(getWhenAsync(key, keyCond, valueCond));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key once the condition holds, without blocking.
+     * The future stays incomplete until another client stores the expected value.
+     *
+     * @param key the key
+     * @param keyCond the key condition
+     * @param valueCond the value condition
+     * @return a future completed with the value associated with the key
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        return sendAsync(RequestType.GetWhenRequest, request -> {
+            protocol.writeString(request, key);
+            protocol.writeString(request, keyCond);
+            protocol.writeValue(request, valueCond);
+        });
+    }
+
+    /**
+     * Atomically replaces the value of a key if its current value is the expected one.
+     *
+     * @param key the key
+     * @param expected the expected value, or null if the key is expected to be missing
+     * @param value the new value, or null to remove the key
+     * @return true if the value was replaced
+     * @throws IOException if there is an issue updating the data
+     */
+    public boolean compareAndSet(String key, byte[] expected, byte[] value) throws IOException {
+        return await(compareAndSetAsync(key, expected, value, 0));
+    }
+
+    /**
+     * Atomically replaces the value of a key if its current value is the expected one, the new
+     * value being removed once the given time passes. Useful to renew a lease held by the caller.
+     *
+     * @param key the key
+     * @param expected the expected value, or null if the key is expected to be missing
+     * @param value the new value, or null to remove the key
+     * @param ttlMillis the time until the new value expires, in milliseconds, or 0 if it does not expire
+     * @return true if the value was replaced
+     * @throws IOException if there is an issue updating the data
+     */
+    public boolean compareAndSet(String key, byte[] expected, byte[] value, long ttlMillis) throws IOException {
+        return await(compareAndSetAsync(key, expected, value, ttlMillis));
+    }
+
+    /**
+     * Atomically replaces the value of a key if its current value is the expected one, without blocking.
+     *
+     * @param key the key
+     * @param expected the expected value, or null if the key is expected to be missing
+     * @param value the new value, or null to remove the key
+     * @param ttlMillis the time until the new value expires, in milliseconds, or 0 if it does not expire
+     * @return a future completed with true if the value was replaced
+     */
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value, long ttlMillis) {
+        return sendAsync(RequestType.CompareAndSetRequest, request -> {
+            protocol.writeString(request, key);
+            protocol.writeOptionalValue(request, expected);
+            protocol.writeOptionalValue(request, value);
+            protocol.writeTtl(request, ttlMillis);
+        }).thenApply(response -> response[0] != 0);
+    }
+
+    /**
+     * Atomically adds a number to the value of a key, which holds an integer written in decimal
+     * digits. A missing key counts as 0.
+     *
+     * @param key the key
+     * @param delta the number to add, which may be negative
+     * @return the new value of the key
+     * @throws IOException if there is an issue updating the data, or the value is not an integer
+     */
+    public long increment(String key, long delta) throws IOException {
+        return await(incrementAsync(key, delta));
+    }
+
+    /**
+     * Atomically adds a number to the value of a key without blocking.
+     *
+     * @param key the key
+     * @param delta the number to add, which may be negative
+     * @return a future completed with the new value of the key
+     */
+    public CompletableFuture<Long> incrementAsync(String key, long delta) {
+        return sendAsync(RequestType.IncrementRequest, request -> {
+            protocol.writeString(request, key);
+            protocol.writeLong(request, delta);
+        }).thenApply(response -> {
+            try {
+                PooledBuffer in = PooledBuffer.wrap(response);
+                if (!in.readBoolean()) {
+                    throw new IOException("The value of " + key + " is not an integer or would overflow");
+                }
+                return protocol.readLong(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        });
+    }
 
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
+    /**
+     * Stores a value with the specified key unless the key already has a value.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the current value of the key, or null if the value was stored
+     * @throws IOException if there is an issue storing the data
+     */
+    public byte[] putIfAbsent(String key, byte[] value) throws IOException {
+        return await(putIfAbsentAsync(key, value, 0));
+    }
 
-            demultiplexer.send(tagG, RequestType.GetWhenRequest.getValue(), requestData);
-    
-            while (!responsesMap.containsKey(tagG)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
+    /**
+     * Stores a value with the specified key unless the key already has a value, the value being
+     * removed once the given time passes. Useful to acquire a lease.
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttlMillis the time until the value expires, in milliseconds, or 0 if it does not expire
+     * @return the current value of the key, or null if the value was stored
+     * @throws IOException if there is an issue storing the data
+     */
+    public byte[] putIfAbsent(String key, byte[] value, long ttlMillis) throws IOException {
+        return await(putIfAbsentAsync(key, value, ttlMillis));
+    }
+
+    /**
+     * Stores a value with the specified key unless the key already has a value, without blocking.
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttlMillis the time until the value expires, in milliseconds, or 0 if it does not expire
+     * @return a future completed with the current value of the key, or null if the value was stored
+     */
+    public CompletableFuture<byte[]> putIfAbsentAsync(String key, byte[] value, long ttlMillis) {
+        return sendAsync(RequestType.PutIfAbsentRequest, request -> {
+            protocol.writeString(request, key);
+            protocol.writeValue(request, value);
+            protocol.writeTtl(request, ttlMillis);
+        }).thenApply(this::readValue);
+    }
+
+    /**
+     * Starts a transaction, which reads keys through this client and writes them all at once
+     * when it commits.
+     *
+     * @return the transaction
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Atomically writes a set of keys if every key read still has the value that was read.
+     *
+     * @param reads the keys read, with the values read, or null for keys that were missing
+     * @param writes the keys to write, with their new values, or null to remove them
+     * @return true if the keys were written, false if a key read has changed
+     * @throws IOException if there is an issue committing the transaction
+     */
+    public boolean commit(Map<String, byte[]> reads, Map<String, byte[]> writes) throws IOException {
+        return await(commitAsync(reads, writes));
+    }
+
+    /**
+     * Atomically writes a set of keys if every key read still has the value that was read, without blocking.
+     *
+     * @param reads the keys read, with the values read, or null for keys that were missing
+     * @param writes the keys to write, with their new values, or null to remove them
+     * @return a future completed with true if the keys were written
+     */
+    public CompletableFuture<Boolean> commitAsync(Map<String, byte[]> reads, Map<String, byte[]> writes) {
+        return sendAsync(RequestType.TransactionRequest, request -> {
+            for (Map<String, byte[]> pairs : List.of(reads, writes)) {
+                protocol.writeLength(request, pairs.size());
+                for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                    protocol.writeString(request, pair.getKey());
+                    protocol.writeOptionalValue(request, pair.getValue());
                 }
             }
+        }).thenApply(response -> response[0] != 0);
+    }
 
-            byte[] response = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
-            return response;
+    /**
+     * Retrieves the key-value pairs whose keys are in a range, in ascending key order.
+     * Keys are compared as Java strings. The server sends the pairs in pages as it finds them
+     * and does not stop writers meanwhile, so pairs written during the scan may or may not
+     * be included.
+     *
+     * @param startKey the first key of the range, inclusive
+     * @param endKey the end of the range, exclusive, or null for a range without end
+     * @param limit the maximum number of pairs, or 0 for no limit
+     * @return the pairs of the range, in ascending key order
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public List<Map.Entry<String, byte[]>> scan(String startKey, String endKey, int limit) throws IOException {
+        return await(scanAsync(startKey, endKey, limit));
+    }
 
-        } finally {
-            lock.unlock();
+    /**
+     * Retrieves the key-value pairs whose keys are in a range without blocking.
+     *
+     * @param startKey the first key of the range, inclusive
+     * @param endKey the end of the range, exclusive, or null for a range without end
+     * @param limit the maximum number of pairs, or 0 for no limit
+     * @return a future completed with the pairs of the range, in ascending key order
+     */
+    public CompletableFuture<List<Map.Entry<String, byte[]>>> scanAsync(String startKey, String endKey, int limit) {
+        RequestWriter writer = request -> {
+            protocol.writeString(request, startKey);
+            request.writeBoolean(endKey != null);
+            if (endKey != null) {
+                protocol.writeString(request, endKey);
+            }
+            protocol.writeLength(request, limit);
+        };
+
+        // Only the reader thread adds pages, the future publishes the list once the last one arrives
+        List<Map.Entry<String, byte[]>> pairs = new ArrayList<>();
+        return sendAsync(RequestType.ScanRequest, writer, page -> readPage(page, pairs))
+            .thenApply(lastPage -> pairs);
+    }
+
+    /**
+     * Retrieves the key-value pairs whose keys start with a prefix, in ascending key order.
+     *
+     * @param prefix the prefix
+     * @param limit the maximum number of pairs, or 0 for no limit
+     * @return the pairs whose keys start with the prefix
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public List<Map.Entry<String, byte[]>> prefixScan(String prefix, int limit) throws IOException {
+        return scan(prefix, prefixEnd(prefix), limit);
+    }
+
+    /**
+     * Gets the first string greater than every string that starts with a prefix.
+     *
+     * @param prefix the prefix
+     * @return the end of the range of the prefix, or null if the range has no end
+     */
+    private static String prefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        if (last < 0) {
+            return null;
+        }
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * Reads a page of a scan response into a list of pairs.
+     *
+     * @param page the page
+     * @param pairs the list the pairs are added to
+     * @return true if it is the last page
+     */
+    private boolean readPage(byte[] page, List<Map.Entry<String, byte[]>> pairs) {
+        try {
+            PooledBuffer in = PooledBuffer.wrap(page);
+            if (protocol != Protocol.V1) {
+                // LAST PAGE | KEY | VALUE LENGTH | VALUE ..., up to the end of the page
+                boolean last = in.readBoolean();
+                while (in.available() > 0) {
+                    String key = protocol.readString(in);
+                    pairs.add(Map.entry(key, protocol.readValue(in)));
+                }
+                return last;
+            }
+
+            // N PAIRS | KEY | VALUE LENGTH | VALUE ... | LAST PAGE
+            int n = protocol.readLength(in);
+            for (int i = 0; i < n; i++) {
+                String key = protocol.readString(in);
+                pairs.add(Map.entry(key, protocol.readValue(in)));
+            }
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Adds a response to the responses map and signals the waiting threads.
+     * Reads the value of a get response.
+     *
+     * @param response the response data
+     * @return the value, or null if the key does not exist
+     */
+    private byte[] readValue(byte[] response) {
+        try {
+            return protocol.readOptionalValue(PooledBuffer.wrap(response));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the key-value pairs of a multi-get response.
+     *
+     * @param responseData the response data
+     * @return a map of key-value pairs
+     */
+    private Map<String, byte[]> readPairs(byte[] responseData) {
+        try {
+            PooledBuffer in = PooledBuffer.wrap(responseData);
+            int n = protocol.readLength(in);
+            Map<String, byte[]> result = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                String key = protocol.readString(in);
+                result.put(key, protocol.readOptionalValue(in));
+            }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Completes the request waiting for the given tag with its response, or hands the response
+     * to the page handler of the request if it comes in pages.
+     * Called by the demultiplexer reader thread.
      * 
      * @param tagR the tag of the response
      * @param response the response data
      */
     public void addResponse(int tagR, byte[] response) {
-        lock.lock();
-        try {
-            if (conditionsMap.containsKey(tagR)) {
-                responsesMap.put(tagR, response);
-                conditionsMap.get(tagR).signalAll();
+        Predicate<byte[]> pageHandler = pendingPages.get(tagR);
+        if (pageHandler != null) {
+            try {
+                if (!pageHandler.test(response)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                pendingPages.remove(tagR);
+                CompletableFuture<byte[]> pending = pendingResponses.remove(tagR);
+                if (pending != null) {
+                    pending.completeExceptionally(e);
+                }
+                return;
+            }
+            pendingPages.remove(tagR);
+        }
+
+        CompletableFuture<byte[]> pending = pendingResponses.remove(tagR);
+        if (pending != null) {
+            freeTag(tagR);
+            pending.complete(response);
+        }
+    }
+
+    /**
+     * Fails every request still waiting for a response, once the connection stops delivering them.
+     * Called by the demultiplexer reader thread.
+     * 
+     * @param cause the reason why no more responses will arrive
+     */
+    public void failResponses(IOException cause) {
+        closed = cause;
+        pendingPages.clear();
+        for (Integer pendingTag : pendingResponses.keySet()) {
+            CompletableFuture<byte[]> pending = pendingResponses.remove(pendingTag);
+            if (pending != null) {
+                pending.completeExceptionally(cause);
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -371,13 +1211,8 @@ public class ClientLibrary {
      * @throws IOException if there is an issue closing the connection
      */
     public void close() throws IOException {
-        lock.lock();
-        try {
-            sendDisconnectMessage();
-            demultiplexer.close();
-        } finally {
-            lock.unlock();
-        }
+        sendDisconnectMessage();
+        demultiplexer.close();
     }
 
     /**
@@ -386,18 +1221,7 @@ public class ClientLibrary {
      * @throws IOException if there is an issue sending the disconnect message
      */
     public void sendDisconnectMessage() throws IOException {
-        lock.lock();
-        try {
-            byte[] disconnect;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.DisconnectRequest.getValue());
-                disconnect = baos.toByteArray();
-            }
-            sendWithTag(RequestType.DisconnectRequest.getValue(), disconnect);
-        } finally {
-            lock.unlock();
-        }
+        sendWithTag(RequestType.DisconnectRequest, request -> { });
     }
     
-}
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps a single shard in an OpenAddressingMap guarded by a
+ * ReentrantReadWriteLock, like the LockingStorageEngine, to fit more keys in the same heap.
+ *
+ * Keeping a skip list of the keys for scans would take back most of the memory saved, so the
+ * engine walks its keys itself: a scan copies and sorts the keys of its range from the table.
+ * Scans cost time proportional to the size of the shard, in exchange for no memory per key.
+ *
+ * The shards of a database share a PrefixDictionary, so each key keeps the number of its
+ * namespace instead of the characters that all the keys of the namespace repeat.
+ */
+class CompactStorageEngine implements StorageEngine {
+    private final OpenAddressingMap pairs;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructs the engine.
+     *
+     * @param prefixes The dictionary of the prefixes of the keys, shared with the other shards.
+     */
+    public CompactStorageEngine(PrefixDictionary prefixes) {
+        this.pairs = new OpenAddressingMap(prefixes);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        lock.readLock().lock();
+        try {
+            return pairs.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> values = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String key : keys) {
+                values.put(key, pairs.get(key));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return values;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        lock.writeLock().lock();
+        try {
+            byte[] value = remapping.apply(key, pairs.get(key));
+            write(key, value);
+            return value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                this.pairs.put(entry.getKey(), entry.getValue());
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        lock.writeLock().lock();
+        try {
+            Map<String, byte[]> current = new HashMap<>();
+            for (String key : keys) {
+                current.put(key, pairs.get(key));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(current).entrySet()) {
+                write(entry.getKey(), entry.getValue());
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return 1;
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        lock.readLock().lock();
+        try {
+            Map<String, byte[]> copy = new HashMap<>();
+            pairs.forEach(copy::put);
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    /**
+     * Walks the keys of a range, copied from the table and sorted when the walk starts.
+     */
+    @Override
+    public Iterator<String> keys(String startKey, String endKey) {
+        List<String> keys = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            pairs.forEach((key, value) -> {
+                if (key.compareTo(startKey) >= 0 && (endKey == null || key.compareTo(endKey) < 0)) {
+                    keys.add(key);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(keys);
+        return keys.iterator();
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            stats.put("compact.keys", (long) pairs.size());
+            stats.put("compact.table.bytes", pairs.tableBytes());
+            stats.put("compact.key.bytes", pairs.keyBytes());
+            stats.put("compact.key.saved.bytes", pairs.savedKeyBytes());
+            stats.put("compact.value.bytes", pairs.valueBytes());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return stats;
+    }
+
+    /**
+     * Writes a value to the table. Must be called while holding the write lock.
+     *
+     * @param value The value, or null to remove the key.
+     */
+    private void write(String key, byte[] value) {
+        if (value == null) {
+            pairs.remove(key);
+        } else {
+            pairs.put(key, value);
+        }
+    }
+}
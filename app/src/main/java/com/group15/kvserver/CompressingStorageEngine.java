@@ -0,0 +1,213 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps large values compressed with Deflate on top of another engine,
+ * which stores them and accounts for their memory as they are compressed. Every read through
+ * the engine returns the values as they were written; getCompressed returns a compressed
+ * value as it is stored, so that it can be sent in a compressed frame without compressing it
+ * again.
+ *
+ * Values of at least Compression.THRESHOLD bytes that shrink by an eighth are stored as
+ * MAGIC | DEFLATED | ORIGINAL LENGTH | DEFLATE STREAM
+ * and the rest as they are, except for the rare values that already start with MAGIC, which
+ * are stored as MAGIC | ESCAPED | VALUE. MAGIC starts with 0xC0, which never appears in UTF-8
+ * text, so text values never need to be escaped.
+ */
+class CompressingStorageEngine implements StorageEngine {
+    /* Start of the values stored by the engine in another form than the one written */
+    private static final byte[] MAGIC = { (byte) 0xC0, 'K', 'V', 'Z' };
+    /* Forms of the values that start with MAGIC */
+    private static final byte ESCAPED = 0;
+    private static final byte DEFLATED = 1;
+    /* Index of the Deflate stream of a compressed value */
+    static final int STREAM_OFFSET = MAGIC.length + 1 + 4;
+
+    private final StorageEngine storage;
+
+    /* Values written compressed, and the memory they did not take */
+    private final LongAdder compressedWrites = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    /**
+     * Constructs the engine.
+     *
+     * @param storage The engine that stores the key-value pairs.
+     */
+    public CompressingStorageEngine(StorageEngine storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Gets the value of a key as it is stored, if it is compressed.
+     *
+     * @return The stored value, whose Deflate stream starts at STREAM_OFFSET, or null if the
+     *         key is missing or its value is not compressed.
+     */
+    public byte[] getCompressed(String key) {
+        byte[] stored = storage.get(key);
+        return stored != null && hasMagic(stored) && stored[MAGIC.length] == DEFLATED ? stored : null;
+    }
+
+    /**
+     * Gets the length of a value stored compressed, before it was compressed.
+     */
+    static int originalLength(byte[] stored) {
+        return ByteBuffer.wrap(stored, MAGIC.length + 1, 4).getInt();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return decode(storage.get(key));
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = storage.multiGet(keys);
+        pairs.replaceAll((k, stored) -> decode(stored));
+        return pairs;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        byte[][] result = new byte[1][];
+        storage.compute(key, (k, current) -> {
+            byte[] plain = decode(current);
+            byte[] value = remapping.apply(k, plain);
+            result[0] = value;
+            return value == plain ? current : encode(value);
+        });
+        return result[0];
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            encoded.put(pair.getKey(), encode(pair.getValue()));
+        }
+        storage.multiPut(encoded, (k, stored) -> onWrite.accept(k, pairs.get(k)));
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        Map<String, byte[]> written = new HashMap<>();
+        storage.multiCompute(keys, current -> {
+            Map<String, byte[]> plain = new HashMap<>();
+            for (Map.Entry<String, byte[]> pair : current.entrySet()) {
+                plain.put(pair.getKey(), decode(pair.getValue()));
+            }
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (Map.Entry<String, byte[]> pair : remapping.apply(plain).entrySet()) {
+                written.put(pair.getKey(), pair.getValue());
+                encoded.put(pair.getKey(), encode(pair.getValue()));
+            }
+            return encoded;
+        }, (k, stored) -> onWrite.accept(k, written.get(k)));
+    }
+
+    @Override
+    public int shardsCount() {
+        return storage.shardsCount();
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        Map<String, byte[]> pairs = storage.copyShard(shardIndex);
+        pairs.replaceAll((k, stored) -> decode(stored));
+        return pairs;
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("compression.values", compressedWrites.sum());
+        stats.put("compression.values.saved.bytes", savedBytes.sum());
+        stats.putAll(storage.stats());
+        return stats;
+    }
+
+    /**
+     * Gets the form in which a value is stored.
+     *
+     * @param value The value, or null.
+     * @return The value compressed, escaped or as it is, or null if the value is null.
+     */
+    byte[] encode(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.length >= Compression.THRESHOLD) {
+            int end = STREAM_OFFSET + value.length - (value.length >> 3);
+            PooledBuffer packed = BufferPool.DEFAULT.acquire(end);
+            try {
+                int size = Compression.deflate(value, 0, value.length, packed.array(), STREAM_OFFSET, end - STREAM_OFFSET);
+                if (size >= 0) {
+                    // MAGIC | DEFLATED | ORIGINAL LENGTH | DEFLATE STREAM
+                    packed.write(MAGIC);
+                    packed.reserve(1);
+                    packed.putByte(MAGIC.length, DEFLATED);
+                    packed.writeInt(value.length);
+                    packed.reserve(size);
+                    compressedWrites.increment();
+                    savedBytes.add(value.length - packed.length());
+                    return packed.toByteArray(0);
+                }
+            } finally {
+                packed.release();
+            }
+        }
+        if (!hasMagic(value)) {
+            return value;
+        }
+        // MAGIC | ESCAPED | VALUE
+        byte[] escaped = new byte[MAGIC.length + 1 + value.length];
+        System.arraycopy(MAGIC, 0, escaped, 0, MAGIC.length);
+        escaped[MAGIC.length] = ESCAPED;
+        System.arraycopy(value, 0, escaped, MAGIC.length + 1, value.length);
+        return escaped;
+    }
+
+    /**
+     * Gets a value from the form in which it is stored.
+     *
+     * @param stored The stored value, or null.
+     * @return The value as it was written, or null if the stored value is null.
+     */
+    static byte[] decode(byte[] stored) {
+        if (stored == null || !hasMagic(stored)) {
+            return stored;
+        }
+        if (stored[MAGIC.length] == ESCAPED) {
+            return Arrays.copyOfRange(stored, MAGIC.length + 1, stored.length);
+        }
+        byte[] value = new byte[originalLength(stored)];
+        try {
+            Compression.inflate(stored, STREAM_OFFSET, stored.length - STREAM_OFFSET, value, 0, value.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether a stored value starts with MAGIC and the byte that follows it.
+     */
+    private static boolean hasMagic(byte[] stored) {
+        return stored.length > MAGIC.length && stored[0] == MAGIC[0]
+            && Arrays.equals(stored, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+}
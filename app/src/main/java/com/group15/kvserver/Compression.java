@@ -0,0 +1,208 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the data of frames with Deflate, for connections that negotiated it in the
+ * HelloRequest of version 2 of the Protocol. Only frames whose data takes at least THRESHOLD
+ * bytes are compressed, and only if that saves an eighth of their size, so that small requests
+ * and data that is already compressed are sent as they are.
+ *
+ * A compressed frame has the COMPRESSED bit set in its opcode, and its data is the length of
+ * the data it replaces followed by a raw Deflate stream:
+ * ORIGINAL LENGTH (varint) | DEFLATE STREAM
+ *
+ * Deflaters and inflaters hold native memory, so they are kept in small pools and shared by
+ * every connection instead of being created for every frame.
+ */
+final class Compression {
+    /* Frames and values shorter than this are never compressed */
+    static final int THRESHOLD = 1024;
+
+    /* Deflaters and inflaters kept for reuse, the ones released when a pool is full are ended */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /* Frames compressed, and the bytes they did not take on the wire, over every connection */
+    private static final LongAdder FRAMES_COMPRESSED = new LongAdder();
+    private static final LongAdder BYTES_SAVED = new LongAdder();
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses the data of a pooled frame, which follows the first
+     * TaggedConnection.MAX_HEADER_SIZE bytes of the buffer. The buffer is left untouched.
+     *
+     * @return A new pooled frame holding the compressed data after the same reserved bytes, or
+     *         null if the data is too short or does not shrink enough.
+     */
+    static PooledBuffer compressFrame(PooledBuffer frame) {
+        return compressFrame(frame.array(), TaggedConnection.MAX_HEADER_SIZE,
+            frame.length() - TaggedConnection.MAX_HEADER_SIZE);
+    }
+
+    /**
+     * Compresses the data of a frame.
+     *
+     * @return A new pooled frame holding the compressed data after TaggedConnection.MAX_HEADER_SIZE
+     *         reserved bytes, or null if the data is too short or does not shrink enough.
+     */
+    static PooledBuffer compressFrame(byte[] data, int offset, int length) {
+        if (length < THRESHOLD) {
+            return null;
+        }
+        int end = TaggedConnection.MAX_HEADER_SIZE + length - (length >> 3);
+        PooledBuffer packed = BufferPool.DEFAULT.acquire(end);
+        packed.reserve(TaggedConnection.MAX_HEADER_SIZE);
+        packed.writeVarint(length);
+        int start = packed.length();
+        int size = deflate(data, offset, length, packed.array(), start, end - start);
+        if (size < 0) {
+            packed.release();
+            return null;
+        }
+        packed.reserve(size);
+        FRAMES_COMPRESSED.increment();
+        BYTES_SAVED.add(length - (packed.length() - TaggedConnection.MAX_HEADER_SIZE));
+        return packed;
+    }
+
+    /**
+     * Decompresses the data of a compressed frame held in a pooled buffer, which is left to the caller.
+     *
+     * @param maxLength The largest length of the data accepted, checked before any memory is reserved for it.
+     * @return A new pooled buffer holding the data.
+     * @throws IOException If the data is not a compressed frame, or is longer than maxLength.
+     */
+    static PooledBuffer decompressFrame(PooledBuffer packed, int maxLength) throws IOException {
+        int length = packed.readVarint();
+        checkLength(length, maxLength);
+        int start = packed.length() - packed.available();
+        PooledBuffer data = BufferPool.DEFAULT.acquire(length);
+        try {
+            inflate(packed.array(), start, packed.length() - start, data.array(), 0, length);
+        } catch (IOException e) {
+            data.release();
+            throw e;
+        }
+        data.reserve(length);
+        return data;
+    }
+
+    /**
+     * Decompresses the data of a compressed frame.
+     *
+     * @param maxLength The largest length of the data accepted, checked before any memory is reserved for it.
+     * @throws IOException If the data is not a compressed frame, or is longer than maxLength.
+     */
+    static byte[] decompressFrame(byte[] packed, int maxLength) throws IOException {
+        PooledBuffer in = PooledBuffer.wrap(packed);
+        int length = in.readVarint();
+        checkLength(length, maxLength);
+        int start = packed.length - in.available();
+        byte[] data = new byte[length];
+        inflate(packed, start, packed.length - start, data, 0, length);
+        return data;
+    }
+
+    private static void checkLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Compresses bytes into a raw Deflate stream, which ends the stream.
+     *
+     * @return The size of the stream, or -1 if it does not fit in the given room.
+     */
+    static int deflate(byte[] input, int offset, int length, byte[] output, int outputOffset, int room) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == room) {
+                    return -1;
+                }
+                size += deflater.deflate(output, outputOffset + size, room - size);
+            }
+            return size;
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompresses a raw Deflate stream into the given number of bytes.
+     *
+     * @throws IOException If the stream is malformed or does not hold exactly that many bytes.
+     */
+    static void inflate(byte[] input, int offset, int length, byte[] output, int outputOffset, int size)
+            throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(input, offset, length);
+            int inflated = 0;
+            while (inflated < size) {
+                int count = inflater.inflate(output, outputOffset + inflated, size - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed data ends early");
+                }
+                inflated += count;
+            }
+            // The end of the stream may follow the last byte, anything else is data beyond the size
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new IOException("Compressed data holds more than " + size + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed data: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Writes bytes as a stored, non-final block of a raw Deflate stream, so that a stream
+     * compressed beforehand can follow them without being compressed again. The block starts
+     * and ends on a byte boundary: a byte with the block type, the length and its complement,
+     * and the bytes themselves.
+     */
+    static void writeStoredBlock(PooledBuffer out, byte[] bytes, int offset, int length) {
+        // BFINAL 0, BTYPE 00 | LEN (little-endian) | NLEN (little-endian) | BYTES
+        out.write(new byte[] { 0, (byte) length, (byte) (length >>> 8), (byte) ~length, (byte) (~length >>> 8) });
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Gets the number of frames compressed and the bytes they saved, over every connection.
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("compression.frames", FRAMES_COMPRESSED.sum());
+        stats.put("compression.bytes.saved", BYTES_SAVED.sum());
+        return stats;
+    }
+}
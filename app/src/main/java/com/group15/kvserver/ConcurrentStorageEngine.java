@@ -0,0 +1,161 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps every shard in a ConcurrentHashMap. Single-key reads take no
+ * lock at all and single-key writes are atomic per key, so a hot key never makes readers
+ * wait behind a shard lock.
+ * 
+ * Multi-key operations stay consistent through a separate gate per shard: single-key writes
+ * hold the gate of their shard in shared mode, so they still run in parallel, while multiPut,
+ * multiCompute and multiGet hold the gates of all their shards in exclusive mode, in ascending shard order.
+ */
+class ConcurrentStorageEngine implements StorageEngine {
+    private final int shardsCount;
+    /* Stores data for different database shards */
+    private final List<ConcurrentHashMap<String, byte[]>> shards = new ArrayList<>();
+    /* Gates that keep single-key writes out of multi-key operations */
+    private final List<ReentrantReadWriteLock> gates = new ArrayList<>();
+
+    /**
+     * Constructs the engine with the given number of shards.
+     * 
+     * @param shardsCount The number of shards.
+     */
+    public ConcurrentStorageEngine(int shardsCount) {
+        this.shardsCount = shardsCount;
+        for (int i = 0; i < shardsCount; i++) {
+            shards.add(new ConcurrentHashMap<>());
+            gates.add(new ReentrantReadWriteLock());
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return shards.get(StorageEngine.shardIndex(key, shardsCount)).get(key);
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        Map<Integer, List<String>> keysByShard = new TreeMap<>();
+        for (String key : keys) {
+            keysByShard.computeIfAbsent(StorageEngine.shardIndex(key, shardsCount), k -> new ArrayList<>()).add(key);
+        }
+
+        for (int shardIndex : keysByShard.keySet()) {
+            gates.get(shardIndex).writeLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, List<String>> shardKeys : keysByShard.entrySet()) {
+                Map<String, byte[]> currentShard = shards.get(shardKeys.getKey());
+                for (String key : shardKeys.getValue()) {
+                    pairs.put(key, currentShard.get(key));
+                }
+            }
+        } finally {
+            for (int shardIndex : keysByShard.keySet()) {
+                gates.get(shardIndex).writeLock().unlock();
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+        gates.get(shardIndex).readLock().lock();
+        try {
+            return shards.get(shardIndex).compute(key, remapping);
+        } finally {
+            gates.get(shardIndex).readLock().unlock();
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        Map<Integer, Map<String, byte[]>> pairsByShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            int shardIndex = StorageEngine.shardIndex(entry.getKey(), shardsCount);
+            pairsByShard.computeIfAbsent(shardIndex, k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+
+        for (int shardIndex : pairsByShard.keySet()) {
+            gates.get(shardIndex).writeLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+                ConcurrentHashMap<String, byte[]> currentShard = shards.get(shardPairs.getKey());
+                for (Map.Entry<String, byte[]> entry : shardPairs.getValue().entrySet()) {
+                    // compute keeps the write atomic with get-when registrations on the same key
+                    currentShard.compute(entry.getKey(), (k, current) -> {
+                        onWrite.accept(k, entry.getValue());
+                        return entry.getValue();
+                    });
+                }
+            }
+        } finally {
+            for (int shardIndex : pairsByShard.keySet()) {
+                gates.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> shardIndexes = new TreeSet<>();
+        for (String key : keys) {
+            shardIndexes.add(StorageEngine.shardIndex(key, shardsCount));
+        }
+
+        for (int shardIndex : shardIndexes) {
+            gates.get(shardIndex).writeLock().lock();
+        }
+        try {
+            Map<String, byte[]> current = new HashMap<>();
+            for (String key : keys) {
+                current.put(key, shards.get(StorageEngine.shardIndex(key, shardsCount)).get(key));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(current).entrySet()) {
+                ConcurrentHashMap<String, byte[]> currentShard = shards.get(StorageEngine.shardIndex(entry.getKey(), shardsCount));
+                currentShard.compute(entry.getKey(), (k, value) -> {
+                    onWrite.accept(k, entry.getValue());
+                    return entry.getValue();
+                });
+            }
+        } finally {
+            for (int shardIndex : shardIndexes) {
+                gates.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return shardsCount;
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        // The exclusive gate waits for the writes in progress and keeps new ones out
+        gates.get(shardIndex).writeLock().lock();
+        try {
+            return new HashMap<>(shards.get(shardIndex));
+        } finally {
+            gates.get(shardIndex).writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.group15.kvserver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that stores a single array for all the keys that have the same value,
+ * such as status flags or small documents written from the same template, on top of another
+ * engine. Values written are looked up by content in a pool, and replaced by the array of the
+ * pool when it already has an equal one; the pool counts the keys that use each array and
+ * forgets it once no key does.
+ *
+ * Only writes pay for the pool: reads return the stored array without looking at it. Values
+ * longer than MAX_VALUE_SIZE are rarely repeated and are stored as they are, so that writes
+ * of large values do not hash them. The arrays stored must never be modified, since they may
+ * be shared, which the rest of the server already guarantees. Arrays are released by
+ * identity, so the engine below must store the arrays it is given rather than copies.
+ */
+class DedupStorageEngine implements StorageEngine {
+    /* Longest value looked up in the pool */
+    static final int MAX_VALUE_SIZE = 4096;
+
+    private final StorageEngine storage;
+    /* Every array used by some key, by content */
+    private final ConcurrentHashMap<Content, Content> pool = new ConcurrentHashMap<>();
+
+    /* Writes of values found in the pool, and the memory they did not take */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    /**
+     * A value of the pool, with the number of keys that use it. Compared by content, and only
+     * changed inside the methods of the pool.
+     */
+    private static final class Content {
+        final byte[] value;
+        final int hash;
+        int references;
+
+        Content(byte[] value) {
+            this.value = value;
+            this.hash = Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Content content && hash == content.hash && Arrays.equals(value, content.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Constructs the engine.
+     *
+     * @param storage The engine that stores the key-value pairs.
+     */
+    public DedupStorageEngine(StorageEngine storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Gets the memory taken by an array: a 16-byte header and its bytes, padded to 8 bytes.
+     */
+    static long footprint(byte[] value) {
+        return (16L + value.length + 7) & ~7L;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return storage.get(key);
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        return storage.multiGet(keys);
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        return storage.compute(key, (k, current) -> replace(current, remapping.apply(k, current)));
+    }
+
+    /**
+     * Puts the pairs through multiCompute, since the values they replace must be released.
+     */
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        storage.multiCompute(pairs.keySet(), current -> {
+            Map<String, byte[]> values = new HashMap<>();
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                values.put(pair.getKey(), replace(current.get(pair.getKey()), pair.getValue()));
+            }
+            return values;
+        }, onWrite);
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        storage.multiCompute(keys, current -> {
+            Map<String, byte[]> values = new HashMap<>();
+            for (Map.Entry<String, byte[]> pair : remapping.apply(current).entrySet()) {
+                values.put(pair.getKey(), replace(current.get(pair.getKey()), pair.getValue()));
+            }
+            return values;
+        }, onWrite);
+    }
+
+    @Override
+    public int shardsCount() {
+        return storage.shardsCount();
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        return storage.copyShard(shardIndex);
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("dedup.values", (long) pool.size());
+        stats.put("dedup.hits", hits.sum());
+        stats.put("dedup.saved.bytes", savedBytes.sum());
+        stats.putAll(storage.stats());
+        return stats;
+    }
+
+    /**
+     * Replaces the value of a key, taking the new value from the pool and releasing the
+     * current one. Called while holding the locks of the key.
+     *
+     * @param current The value of the key, or null if there is none.
+     * @param value The new value, null to remove the key, or the current value itself to leave it untouched.
+     * @return The value to store.
+     */
+    private byte[] replace(byte[] current, byte[] value) {
+        if (value == current) {
+            return current;
+        }
+        byte[] stored = value == null ? null : acquire(value);
+        if (current != null) {
+            release(current);
+        }
+        return stored;
+    }
+
+    /**
+     * Gets the array of the pool equal to a value, adding the value if there is none, and
+     * counts one more key using it.
+     */
+    private byte[] acquire(byte[] value) {
+        if (value.length > MAX_VALUE_SIZE) {
+            return value;
+        }
+        return pool.compute(new Content(value), (k, pooled) -> {
+            if (pooled == null) {
+                k.references = 1;
+                return k;
+            }
+            pooled.references++;
+            hits.increment();
+            savedBytes.add(footprint(value));
+            return pooled;
+        }).value;
+    }
+
+    /**
+     * Counts one key less using an array of the pool, forgetting it once no key uses it.
+     * Arrays that are not the ones of the pool, such as values stored before the engine was
+     * wrapped, are ignored.
+     */
+    private void release(byte[] value) {
+        if (value.length > MAX_VALUE_SIZE) {
+            return;
+        }
+        pool.computeIfPresent(new Content(value), (k, pooled) -> {
+            if (pooled.value != value) {
+                return pooled;
+            }
+            if (pooled.references > 1) {
+                savedBytes.add(-footprint(value));
+            }
+            return --pooled.references == 0 ? null : pooled;
+        });
+    }
+}
@@ -2,32 +2,34 @@ package com.group15.kvserver;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 import com.group15.kvserver.utils.Logger;
 
 /**
  * The Demultiplexer class is responsible for managing incoming and outgoing messages
- * over a tagged connection. It decouples the reception of messages into multiple queues
- * based on their tags, allowing different components to handle messages independently.
+ * over a tagged connection. It decouples the reception of messages from their handling:
+ * on the client, responses are handed to the client library, which matches them to the
+ * waiting requests by tag; on the server, requests are queued for the worker in arrival order.
  * 
  * This class implements AutoCloseable to ensure proper resource management (such as closing
  * connections and stopping threads when no longer needed).
  */
-public class Demultiplexer implements AutoCloseable {
+public class Demultiplexer implements FrameSender, AutoCloseable {
     /* The connection used to send/receive messages. */
     private final TaggedConnection conn;
-    /* A map of queues for storing incoming messages based on their tags. */
-    private final Map<Integer, BlockingQueue<byte[]>> queues = new ConcurrentHashMap<>();
+    /* A single queue holding every incoming frame in arrival order, used when no client library is set. */
+    private final BlockingQueue<TaggedConnection.Frame> readyFrames = new ArrayBlockingQueue<>(1024);
+    /* Marks the end of the incoming frames, queued once the reader stops. */
+    private static final TaggedConnection.Frame END_OF_FRAMES = new TaggedConnection.Frame(-1, (short) -1, new byte[0]);
     /* A thread for reading incoming messages from the connection. */
     private final Thread readerThread;
     /* A flag indicating whether the demultiplexer is closed. */
     private volatile boolean closed = false;
     /* The client library used to handle responses. */
-    private ClientLibrary clientLibrary = null;
+    private volatile ClientLibrary clientLibrary = null;
 
     /**
      * Constructs a Demultiplexer with the given TaggedConnection.
@@ -36,8 +38,19 @@ public class Demultiplexer implements AutoCloseable {
      * @param conn The tagged connection used for communication.
      */
     public Demultiplexer(TaggedConnection conn) {
+        this(conn, Thread::new);
+    }
+
+    /**
+     * Constructs a Demultiplexer with the given TaggedConnection, creating the reader
+     * thread with the given factory (for example, a virtual thread factory).
+     * 
+     * @param conn The tagged connection used for communication.
+     * @param threadFactory The factory used to create the reader thread.
+     */
+    public Demultiplexer(TaggedConnection conn, ThreadFactory threadFactory) {
         this.conn = conn;
-        this.readerThread = new Thread(this::reader);
+        this.readerThread = threadFactory.newThread(this::reader);
         this.readerThread.start();
     }
 
@@ -52,18 +65,29 @@ public class Demultiplexer implements AutoCloseable {
 
     /**
      * The reader method that continuously listens for incoming messages on the connection.
-     * When a message is received, it is added to the corresponding queue based on the tag
-     * and forwarded to the client library if necessary.
+     * When a client library is set, a message is forwarded to it to complete the request
+     * with the same tag. Otherwise it is added to the ready queue, from which receiveAny
+     * takes the messages in arrival order, with its data in a pooled buffer.
      */
     public void reader() {
         try {
             while (!closed) {
                 try{
-                    TaggedConnection.Frame frame = conn.receive();
-                    BlockingQueue<byte[]> queue = queues.computeIfAbsent(frame.tag, k -> new ArrayBlockingQueue<>(1024));
-                    queue.put(frame.data);
+                    if (clientLibrary == null) {
+                        TaggedConnection.Frame frame = conn.receivePooled();
+                        if (clientLibrary == null) {
+                            readyFrames.put(frame);
+                            continue;
+                        }
+                        // The client library was set while the frame was being received
+                        byte[] data = frame.buffer.toByteArray(0);
+                        frame.buffer.release();
+                        clientLibrary.addResponse(frame.tag, data);
+                        continue;
+                    }
 
-                    if (clientLibrary != null) clientLibrary.addResponse(frame.tag, frame.data);
+                    TaggedConnection.Frame frame = conn.receive();
+                    clientLibrary.addResponse(frame.tag, frame.data);
                 } catch (EOFException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -75,7 +99,20 @@ public class Demultiplexer implements AutoCloseable {
             }
         }
         finally{
-            queues.values().forEach(q -> q.clear());
+            if (clientLibrary != null) {
+                clientLibrary.failResponses(new IOException("Connection closed."));
+            } else if (!closed) {
+                // Wakes up receiveAny once the frames that are still queued are taken
+                boolean interrupted = Thread.interrupted();
+                try {
+                    readyFrames.put(END_OF_FRAMES);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
@@ -106,44 +143,61 @@ public class Demultiplexer implements AutoCloseable {
      * @param data The data to be sent.
      * @throws IOException If an error occurs during sending.
      */
+    @Override
     public void send(int tag, short request, byte[] data) throws IOException {
         conn.send(new TaggedConnection.Frame(tag, request, data));
     }
 
     /**
-     * Receives data associated with a specific tag from the demultiplexer.
-     * Blocks until the data is available.
+     * Sends a tagged frame held in a pooled buffer, which is released once sent.
      * 
-     * @param tag The tag to receive data for.
-     * @return The data associated with the tag.
-     * @throws IOException If an error occurs during reception.
-     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @param tag The tag associated with the request.
+     * @param request The request type (short).
+     * @param frame The buffer holding the frame, with its header reserved.
+     * @throws IOException If an error occurs during sending.
      */
-    public byte[] receive(int tag) throws IOException, InterruptedException {
-        BlockingQueue<byte[]> queue = queues.computeIfAbsent(tag, k -> new ArrayBlockingQueue<>(1024));
-        return queue.take();
+    @Override
+    public void send(int tag, short request, PooledBuffer frame) throws IOException {
+        conn.send(tag, request, frame);
+    }
+
+    /**
+     * Gets the version of the protocol the connection uses.
+     */
+    @Override
+    public int protocolVersion() {
+        return conn.protocolVersion();
+    }
+
+    /**
+     * Checks whether the connection compresses the data of large frames.
+     */
+    @Override
+    public boolean compressesFrames() {
+        return conn.compressesFrames();
     }
 
     /**
      * Receives any data from the demultiplexer, regardless of the tag.
-     * Blocks until data is available.
+     * Blocks until data is available. Frames are returned in the order they arrived.
+     * Before waiting for a frame, writes the frames the connection held back to send together.
      * 
-     * @return A frame containing the tag and data received.
-     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @return The next frame received.
+     * @throws InterruptedException If the thread is interrupted while waiting or the connection ended.
+     * @throws IOException If the frames held back could not be written.
      */
-    public TaggedConnection.Frame receiveAny() throws InterruptedException {
-        while (!closed) {
-            for (Map.Entry<Integer, BlockingQueue<byte[]>> entry : queues.entrySet()) {
-                BlockingQueue<byte[]> queue = entry.getValue();
-                byte[] data = queue.poll();
-    
-                if (data != null) {
-                    return new TaggedConnection.Frame(entry.getKey(), (short) 0, data);
-                }
-            }
+    public TaggedConnection.Frame receiveAny() throws InterruptedException, IOException {
+        if (readyFrames.isEmpty()) {
+            // Every request received so far is answered, so nothing else will join the batch soon
+            conn.flush();
         }
-        throw new InterruptedException("Demultiplexer is closed.");
-    }  
+        TaggedConnection.Frame frame = readyFrames.take();
+        if (frame == END_OF_FRAMES) {
+            readyFrames.offer(END_OF_FRAMES);
+            throw new InterruptedException("Demultiplexer is closed.");
+        }
+        return frame;
+    }
 
     /**
      * Closes the demultiplexer, stopping the reader thread and closing the connection.
@@ -153,8 +207,9 @@ public class Demultiplexer implements AutoCloseable {
     @Override
     public void close() throws IOException {
         closed = true;
-        readerThread.interrupt();
+        // Interrupting a reader blocked on a channel closes it, so the queued frames are written first
         conn.close();
+        readerThread.interrupt();
         Logger.log("Connection closed successfully.", Logger.LogLevel.INFO);
     }
 }
\ No newline at end of file
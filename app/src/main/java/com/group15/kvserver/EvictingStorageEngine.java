@@ -0,0 +1,285 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps another engine within a memory budget, evicting keys chosen by
+ * an EvictionPolicy when the keys and values stored go over it.
+ *
+ * Writes update the policy while they still hold the locks of their key, and evict after
+ * releasing them. Reads never wait for the policy: they record the key in a striped, lossy
+ * buffer that is replayed into the policy by whichever thread manages to take the policy
+ * lock, so under heavy load some reads are simply not counted as uses.
+ */
+class EvictingStorageEngine implements StorageEngine {
+    /* Estimated bytes taken by each entry besides its key and value: map node, key and array headers */
+    static final int ENTRY_OVERHEAD = 64;
+    /* Number of reads each stripe of the read buffer holds before it is replayed */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private final StorageEngine storage;
+    private final long budget;
+    private final EvictionPolicy policy;
+    private final EvictionListener listener;
+    /* Guards the policy */
+    private final ReentrantLock policyLock = new ReentrantLock();
+
+    /* Keys read and not yet recorded by the policy, striped by thread to spread contention */
+    private final ReadBuffer[] readBuffers;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+
+    /**
+     * Told about every key evicted, so that the state kept next to the keys follows them.
+     */
+    interface EvictionListener {
+        /**
+         * Called while holding the locks of an evicted key.
+         *
+         * @param key The key evicted.
+         * @return Work to run once the locks of the key are released, or null.
+         */
+        Runnable evicted(String key);
+    }
+
+    /**
+     * A stripe of the read buffer: the keys read, and the number of reads that claimed a slot,
+     * which goes past READ_BUFFER_SIZE once the stripe is full.
+     */
+    private static final class ReadBuffer {
+        final AtomicReferenceArray<String> keys = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    /**
+     * Constructs the engine.
+     *
+     * @param storage The engine that stores the key-value pairs.
+     * @param budget The memory budget, in bytes.
+     * @param policy The policy that chooses which keys to evict.
+     * @param listener Told about every key evicted.
+     */
+    public EvictingStorageEngine(StorageEngine storage, long budget, EvictionPolicy policy, EvictionListener listener) {
+        this.storage = storage;
+        this.budget = budget;
+        this.policy = policy;
+        this.listener = listener;
+
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * Estimates the bytes taken by a key and its value, counting the key by its length in UTF-8.
+     */
+    static long weight(String key, byte[] value) {
+        long keyBytes = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            // Each half of a surrogate pair takes 2 of the 4 bytes of its code point
+            keyBytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return ENTRY_OVERHEAD + keyBytes + value.length;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] value = storage.get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            recordRead(key);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = storage.multiGet(keys);
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            if (pair.getValue() == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+                recordRead(pair.getKey());
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        byte[] result = storage.compute(key, (k, current) -> {
+            byte[] value = remapping.apply(k, current);
+            if (value != current) {
+                recordWrite(k, value);
+            }
+            return value;
+        });
+        evictIfNeeded();
+        return result;
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        storage.multiPut(pairs, (k, value) -> {
+            recordWrite(k, value);
+            onWrite.accept(k, value);
+        });
+        evictIfNeeded();
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        storage.multiCompute(keys, remapping, (k, value) -> {
+            recordWrite(k, value);
+            onWrite.accept(k, value);
+        });
+        evictIfNeeded();
+    }
+
+    @Override
+    public int shardsCount() {
+        return storage.shardsCount();
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        return storage.copyShard(shardIndex);
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("cache.hits", hits.sum());
+        stats.put("cache.misses", misses.sum());
+        stats.put("cache.evictions", evictions.sum());
+        stats.put("cache.evicted.bytes", evictedBytes.sum());
+        stats.put("cache.budget.bytes", budget);
+        policyLock.lock();
+        try {
+            stats.put("cache.weighted.bytes", policy.weightedSize());
+        } finally {
+            policyLock.unlock();
+        }
+        stats.putAll(storage.stats());
+        return stats;
+    }
+
+    /**
+     * Records a read in the read buffer of the current thread, replaying the buffer into the
+     * policy once it is full. The read is dropped if the buffer is full and being replayed.
+     */
+    private void recordRead(String key) {
+        ReadBuffer buffer = readBuffers[Thread.currentThread().hashCode() & (readBuffers.length - 1)];
+        int index = buffer.count.getAndIncrement();
+        if (index < READ_BUFFER_SIZE) {
+            buffer.keys.lazySet(index, key);
+        }
+        if (index >= READ_BUFFER_SIZE - 1 && policyLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays every read buffer into the policy. Must be called while holding the policy lock.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            int count = Math.min(buffer.count.get(), READ_BUFFER_SIZE);
+            for (int i = 0; i < count; i++) {
+                String key = buffer.keys.getAndSet(i, null);
+                if (key != null) {
+                    policy.recordAccess(key);
+                }
+            }
+            buffer.count.set(0);
+        }
+    }
+
+    /**
+     * Records a write in the policy. Called while holding the locks of the key, so that the
+     * policy and the storage agree on whether the key exists.
+     */
+    private void recordWrite(String key, byte[] value) {
+        policyLock.lock();
+        try {
+            if (value == null) {
+                policy.recordRemoval(key);
+            } else {
+                policy.recordWrite(key, weight(key, value));
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts keys until the database is back within its budget. Called after a write has
+     * released the locks of its keys, since removing a key takes the locks of its shard.
+     */
+    private void evictIfNeeded() {
+        List<String> victims = new ArrayList<>();
+        policyLock.lock();
+        try {
+            if (policy.weightedSize() <= budget) {
+                return;
+            }
+            drainReadBuffers();
+            while (policy.weightedSize() > budget) {
+                String victim = policy.evict();
+                if (victim == null) {
+                    break;
+                }
+                victims.add(victim);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+
+        for (String victim : victims) {
+            Runnable[] afterEviction = new Runnable[1];
+            storage.compute(victim, (k, current) -> {
+                // A write after the policy chose the key tracks it again, and keeps it
+                policyLock.lock();
+                try {
+                    if (current == null || policy.contains(k)) {
+                        return current;
+                    }
+                } finally {
+                    policyLock.unlock();
+                }
+                evictions.increment();
+                evictedBytes.add(weight(k, current));
+                afterEviction[0] = listener.evicted(k);
+                return null;
+            });
+            if (afterEviction[0] != null) {
+                afterEviction[0].run();
+            }
+        }
+    }
+}
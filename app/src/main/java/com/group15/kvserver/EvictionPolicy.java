@@ -0,0 +1,70 @@
+package com.group15.kvserver;
+
+/**
+ * The EvictionPolicy interface decides which keys to evict when the database goes over its
+ * memory budget. Policies track the weight of every key, in bytes, and are not thread-safe:
+ * the EvictingStorageEngine calls them while holding its policy lock.
+ */
+interface EvictionPolicy {
+    /**
+     * Records that a key was written.
+     *
+     * @param key The key.
+     * @param weight The number of bytes the key and its value take.
+     */
+    void recordWrite(String key, long weight);
+
+    /**
+     * Records that a key was removed.
+     *
+     * @param key The key.
+     */
+    void recordRemoval(String key);
+
+    /**
+     * Records that a key was read.
+     *
+     * @param key The key.
+     */
+    void recordAccess(String key);
+
+    /**
+     * Chooses a key to evict and stops tracking it.
+     *
+     * @return The key to evict, or null if no key is tracked.
+     */
+    String evict();
+
+    /**
+     * Checks whether a key is tracked, that is, written and not evicted or removed since.
+     *
+     * @param key The key.
+     * @return true if the key is tracked.
+     */
+    boolean contains(String key);
+
+    /**
+     * Gets the total weight of the tracked keys.
+     *
+     * @return The number of bytes taken by the tracked keys and their values.
+     */
+    long weightedSize();
+
+    /**
+     * Creates the eviction policy with the given name.
+     *
+     * @param name "lru" or "tinylfu".
+     * @param budget The memory budget, in bytes.
+     * @return The eviction policy.
+     */
+    static EvictionPolicy create(String name, long budget) {
+        switch (name) {
+            case "lru":
+                return new LruPolicy();
+            case "tinylfu":
+                return new TinyLfuPolicy(budget);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+
+/**
+ * The FrameSender interface represents any destination able to receive tagged frames.
+ * It allows the request handling logic to answer a client without knowing whether the
+ * connection is served by a blocking socket or by a non-blocking channel.
+ */
+public interface FrameSender {
+    /**
+     * Sends a tagged frame with a specific request type and data.
+     * 
+     * @param tag The tag associated with the frame.
+     * @param request The request type (short).
+     * @param data The data to be sent.
+     * @throws IOException If an error occurs during sending.
+     */
+    void send(int tag, short request, byte[] data) throws IOException;
+
+    /**
+     * Sends a tagged frame held in a pooled buffer, whose first TaggedConnection.MAX_HEADER_SIZE
+     * bytes are reserved for the header and followed by the data. The buffer is released
+     * once sent. By default the data is copied and sent like any other frame.
+     * 
+     * @param tag The tag associated with the frame.
+     * @param request The request type (short).
+     * @param frame The buffer holding the frame.
+     * @throws IOException If an error occurs during sending.
+     */
+    default void send(int tag, short request, PooledBuffer frame) throws IOException {
+        byte[] data;
+        try {
+            data = frame.toByteArray(TaggedConnection.MAX_HEADER_SIZE);
+        } finally {
+            frame.release();
+        }
+        send(tag, request, data);
+    }
+
+    /**
+     * Gets the version of the Protocol the frames sent and received are encoded with.
+     * By default, version 1.
+     */
+    default int protocolVersion() {
+        return 1;
+    }
+
+    /**
+     * Checks whether the data of large frames is compressed, in which case frames sent with the
+     * Protocol.COMPRESSED bit in their request type hold data that is already compressed.
+     * By default, frames are not compressed.
+     */
+    default boolean compressesFrames() {
+        return false;
+    }
+}
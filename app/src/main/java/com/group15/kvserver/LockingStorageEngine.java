@@ -0,0 +1,160 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps every shard in a HashMap guarded by a ReentrantReadWriteLock.
+ * Reads share the lock of their shard and writes take it exclusively. Multi-key operations
+ * lock every involved shard, in ascending shard order.
+ */
+class LockingStorageEngine implements StorageEngine {
+    private final int shardsCount;
+    /* Stores data for different database shards */
+    private final List<Map<String, byte[]>> shards = new ArrayList<>();
+    /* Locks for database shards */
+    private final List<ReentrantReadWriteLock> locks = new ArrayList<>();
+
+    /**
+     * Constructs the engine with the given number of shards.
+     * 
+     * @param shardsCount The number of shards.
+     */
+    public LockingStorageEngine(int shardsCount) {
+        this.shardsCount = shardsCount;
+        for (int i = 0; i < shardsCount; i++) {
+            shards.add(new HashMap<>());
+            locks.add(new ReentrantReadWriteLock());
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+        locks.get(shardIndex).readLock().lock();
+        try {
+            return shards.get(shardIndex).get(key);
+        } finally {
+            locks.get(shardIndex).readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        Map<Integer, List<String>> keysByShard = new TreeMap<>();
+        for (String key : keys) {
+            keysByShard.computeIfAbsent(StorageEngine.shardIndex(key, shardsCount), k -> new ArrayList<>()).add(key);
+        }
+
+        for (int shardIndex : keysByShard.keySet()) {
+            locks.get(shardIndex).readLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, List<String>> shardKeys : keysByShard.entrySet()) {
+                Map<String, byte[]> currentShard = shards.get(shardKeys.getKey());
+                for (String key : shardKeys.getValue()) {
+                    pairs.put(key, currentShard.get(key));
+                }
+            }
+        } finally {
+            for (int shardIndex : keysByShard.keySet()) {
+                locks.get(shardIndex).readLock().unlock();
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+        locks.get(shardIndex).writeLock().lock();
+        try {
+            return shards.get(shardIndex).compute(key, remapping);
+        } finally {
+            locks.get(shardIndex).writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        Map<Integer, Map<String, byte[]>> pairsByShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            int shardIndex = StorageEngine.shardIndex(entry.getKey(), shardsCount);
+            pairsByShard.computeIfAbsent(shardIndex, k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+
+        for (int shardIndex : pairsByShard.keySet()) {
+            locks.get(shardIndex).writeLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+                Map<String, byte[]> currentShard = shards.get(shardPairs.getKey());
+                for (Map.Entry<String, byte[]> entry : shardPairs.getValue().entrySet()) {
+                    currentShard.put(entry.getKey(), entry.getValue());
+                    onWrite.accept(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            for (int shardIndex : pairsByShard.keySet()) {
+                locks.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> shardIndexes = new TreeSet<>();
+        for (String key : keys) {
+            shardIndexes.add(StorageEngine.shardIndex(key, shardsCount));
+        }
+
+        for (int shardIndex : shardIndexes) {
+            locks.get(shardIndex).writeLock().lock();
+        }
+        try {
+            Map<String, byte[]> current = new HashMap<>();
+            for (String key : keys) {
+                current.put(key, shards.get(StorageEngine.shardIndex(key, shardsCount)).get(key));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(current).entrySet()) {
+                Map<String, byte[]> currentShard = shards.get(StorageEngine.shardIndex(entry.getKey(), shardsCount));
+                if (entry.getValue() == null) {
+                    currentShard.remove(entry.getKey());
+                } else {
+                    currentShard.put(entry.getKey(), entry.getValue());
+                }
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            for (int shardIndex : shardIndexes) {
+                locks.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return shardsCount;
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        locks.get(shardIndex).readLock().lock();
+        try {
+            return new HashMap<>(shards.get(shardIndex));
+        } finally {
+            locks.get(shardIndex).readLock().unlock();
+        }
+    }
+}
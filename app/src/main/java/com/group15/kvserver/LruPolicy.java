@@ -0,0 +1,55 @@
+package com.group15.kvserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An eviction policy that evicts the least recently used key.
+ */
+class LruPolicy implements EvictionPolicy {
+    /* Maps every key to its weight, from the least to the most recently used */
+    private final LinkedHashMap<String, Long> weights = new LinkedHashMap<>(16, 0.75f, true);
+    private long weightedSize = 0;
+
+    @Override
+    public void recordWrite(String key, long weight) {
+        Long previous = weights.put(key, weight);
+        weightedSize += weight - (previous == null ? 0 : previous);
+    }
+
+    @Override
+    public void recordRemoval(String key) {
+        Long previous = weights.remove(key);
+        if (previous != null) {
+            weightedSize -= previous;
+        }
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        weights.get(key);
+    }
+
+    @Override
+    public String evict() {
+        Iterator<Map.Entry<String, Long>> eldest = weights.entrySet().iterator();
+        if (!eldest.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, Long> entry = eldest.next();
+        eldest.remove();
+        weightedSize -= entry.getValue();
+        return entry.getKey();
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return weights.containsKey(key);
+    }
+
+    @Override
+    public long weightedSize() {
+        return weightedSize;
+    }
+}
@@ -0,0 +1,189 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The directory of the lsm storage engine: a subdirectory of tables for every database shard,
+ * and a layout file that lists them in shard order. The layout file marks the directory as
+ * created by the engine, so a directory without it is never cleared nor used unless empty.
+ *
+ * The layout also holds the number of shards the keys are placed in and, while resharding,
+ * the number they are being moved to, so that the next run resumes the migration instead of
+ * reading keys from the wrong shards. The end of a migration is only recorded when no key is
+ * left in an old shard: after the shards have been flushed, before the logs that could rebuild
+ * them are deleted.
+ * Subdirectories are never reused, those no longer listed are deleted when the server starts.
+ *
+ * The layout file holds a header line, "kvserver-lsm", the number of shards and the target
+ * number of shards, followed by the name of the subdirectory of every shard.
+ */
+class LsmDirectory {
+    private static final String LAYOUT_FILE = "LAYOUT";
+    private static final String HEADER = "kvserver-lsm";
+
+    private final Path directory;
+    /* Subdirectory of every shard, including the new shards of a migration */
+    private final List<String> shards = new ArrayList<>();
+    private int shardsCount;
+    private int targetCount;
+    /* Number of the next subdirectory */
+    private int nextShard;
+
+    /**
+     * Opens the directory, creating it if needed.
+     *
+     * @param directory The directory.
+     * @param shardsCount The number of shards of an empty directory.
+     * @param reopen Whether to keep the tables of a previous run, or to delete them.
+     * @throws IllegalArgumentException If the directory has files not created by the engine.
+     * @throws IOException If the directory cannot be read or written.
+     */
+    LsmDirectory(Path directory, int shardsCount, boolean reopen) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path layoutFile = directory.resolve(LAYOUT_FILE);
+        if (Files.exists(layoutFile)) {
+            if (reopen) {
+                readLayout(layoutFile);
+            }
+        } else {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                if (files.findAny().isPresent()) {
+                    throw new IllegalArgumentException("The lsm directory " + directory
+                        + " is not empty and was not created by the lsm storage engine.");
+                }
+            }
+        }
+
+        // Without a layout to reopen, every subdirectory is deleted
+        deleteUnlisted();
+        if (shards.isEmpty()) {
+            this.shardsCount = shardsCount;
+            this.targetCount = shardsCount;
+            for (int i = 0; i < shardsCount; i++) {
+                shards.add("shard-" + i);
+            }
+            writeLayout();
+        }
+        for (String shard : shards) {
+            nextShard = Math.max(nextShard, Integer.parseInt(shard.substring("shard-".length())) + 1);
+        }
+    }
+
+    /**
+     * Gets the number of shards the keys are placed in.
+     */
+    synchronized int shardsCount() {
+        return shardsCount;
+    }
+
+    /**
+     * Gets the number of shards the keys are being moved to, equal to shardsCount unless a
+     * migration was left unfinished.
+     */
+    synchronized int targetCount() {
+        return targetCount;
+    }
+
+    /**
+     * Gets the subdirectory of a shard.
+     *
+     * @param shardIndex The index of the shard, below both the number of shards and the target number.
+     */
+    synchronized Path shard(int shardIndex) {
+        return directory.resolve(shards.get(shardIndex));
+    }
+
+    /**
+     * Records that the keys are about to be moved to a new number of shards, giving a new
+     * subdirectory to every shard added.
+     *
+     * @param targetCount The new number of shards.
+     */
+    synchronized void startMigration(int targetCount) throws IOException {
+        while (shards.size() < targetCount) {
+            shards.add("shard-" + nextShard++);
+        }
+        this.targetCount = targetCount;
+        writeLayout();
+    }
+
+    /**
+     * Records that every key is in its new shard, once the shards have been flushed. The
+     * subdirectories of the removed shards are deleted when the server starts again, since
+     * readers may still be reading their tables.
+     */
+    synchronized void finishMigration() throws IOException {
+        if (shardsCount == targetCount) {
+            return;
+        }
+        shardsCount = targetCount;
+        shards.subList(targetCount, shards.size()).clear();
+        writeLayout();
+    }
+
+    /**
+     * Checks whether the layout holds a migration that is not finished.
+     */
+    synchronized boolean isMigrating() {
+        return shardsCount != targetCount;
+    }
+
+    private void readLayout(Path layoutFile) throws IOException {
+        List<String> lines = Files.readAllLines(layoutFile, StandardCharsets.UTF_8);
+        try {
+            String[] header = lines.get(0).split(" ");
+            if (!header[0].equals(HEADER)) {
+                throw new IOException("Not a layout file: " + layoutFile);
+            }
+            shardsCount = Integer.parseInt(header[1]);
+            targetCount = Integer.parseInt(header[2]);
+            shards.addAll(lines.subList(1, 1 + Math.max(shardsCount, targetCount)));
+        } catch (RuntimeException e) {
+            throw new IOException("Layout file is corrupted: " + layoutFile, e);
+        }
+    }
+
+    private void writeLayout() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER + " " + shardsCount + " " + targetCount);
+        lines.addAll(shards);
+        // The previous layout is only replaced once the new one is on disk
+        Path temporaryFile = directory.resolve(LAYOUT_FILE + ".tmp");
+        Files.write(temporaryFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        Files.move(temporaryFile, directory.resolve(LAYOUT_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        LsmStorageEngine.syncDirectory(directory);
+    }
+
+    /**
+     * Deletes the subdirectories of shards that are no longer listed, and any other file but the layout.
+     */
+    private void deleteUnlisted() throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.equals(LAYOUT_FILE) && !shards.contains(name)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path file) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.walk(file)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,1004 @@
+package com.group15.kvserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * A storage engine that keeps a single shard in a log-structured merge tree, so that it can
+ * hold far more data than fits in memory. Writes go to a sorted in-memory memtable. A full
+ * memtable becomes immutable and is flushed in the background to an SSTable of level 0, and
+ * the tables are merged in the background into levels 1 and up, where the tables of a level
+ * do not overlap and every level holds ten times more than the one above.
+ *
+ * Reads look for a key from the newest data to the oldest: the memtable, the immutable
+ * memtables, the tables of level 0 from the newest, and then the one table of each deeper
+ * level whose range covers the key. A table is only read from disk if its Bloom filter may
+ * contain the key, so a read usually touches at most one block on disk. Removed keys are
+ * written as tombstones, which are dropped when they are merged into the deepest level.
+ *
+ * Updates of a key are serialized by a lock striped by key, and multi-key operations take
+ * the stripes of their keys in ascending order. Writers wait when flushes or merges fall
+ * too far behind, so that memory and read cost stay bounded.
+ *
+ * Every flush and merge rewrites the manifest, the list of the tables of every level, before
+ * the new tables are used. The engine opens the tables of its manifest when it starts, and
+ * deletes the tables it does not list, left by a flush or a merge that did not finish. Only
+ * the memtables are lost on a restart, so the writes they hold must be kept elsewhere, in the
+ * write-ahead log of the server, until flush writes them to a table. The log is forced to disk
+ * before every flush, so that no table is ever ahead of it.
+ */
+class LsmStorageEngine implements StorageEngine {
+    /* Value of removed keys, compared by identity */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final int STRIPES = 64;
+    /* Immutable memtables waiting to be flushed before writers wait */
+    private static final int MAX_IMMUTABLES = 2;
+    /* Tables of level 0 that start a merge into level 1, and that make writers wait */
+    private static final int LEVEL0_COMPACTION_TRIGGER = 4;
+    private static final int LEVEL0_STOP_WRITES = 12;
+    /* Size of level 1, every next level being LEVEL_MULTIPLIER times larger */
+    private static final long LEVEL1_BYTES = 256L << 20;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final int MAX_LEVELS = 7;
+    /* Merges split their output in tables of about this size */
+    private static final long TABLE_BYTES = 32L << 20;
+    /* Estimated memory taken by a memtable entry besides its key and value */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final String MANIFEST_FILE = "MANIFEST";
+    /* Identifies manifest files ("KVMF") */
+    private static final int MANIFEST_MAGIC = 0x4B564D46;
+
+    /* Flushes and merges of every engine run on these threads */
+    private static final ExecutorService FLUSH_EXECUTOR = Executors.newFixedThreadPool(2, daemon("lsm-flush"));
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors.newFixedThreadPool(2, daemon("lsm-compaction"));
+
+    /**
+     * A sorted in-memory table of the latest writes and its estimated size.
+     */
+    private static class Memtable {
+        final ConcurrentSkipListMap<String, byte[]> pairs = new ConcurrentSkipListMap<>();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * The memtables and tables of the engine at some point in time. A new state is installed
+     * whenever they change, so readers walk a consistent set without taking any lock.
+     */
+    private static class State {
+        final Memtable memtable;
+        /* Memtables waiting to be flushed, newest first */
+        final List<Memtable> immutables;
+        /* Tables of level 0 newest first, then tables of every other level sorted by key */
+        final List<List<SSTable>> levels;
+
+        State(Memtable memtable, List<Memtable> immutables, List<List<SSTable>> levels) {
+            this.memtable = memtable;
+            this.immutables = immutables;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * The tables merged by a compaction and the level they are merged into.
+     */
+    private static class Compaction {
+        /* Newest first, so that the first table holding a key has its latest value */
+        final List<SSTable> inputs = new ArrayList<>();
+        final int outputLevel;
+
+        Compaction(int outputLevel) {
+            this.outputLevel = outputLevel;
+        }
+    }
+
+    private final Path directory;
+    private final long memtableBytes;
+    /* Forces the log that holds the writes of the memtables, before a memtable is flushed */
+    private final Runnable syncLog;
+    private volatile State state;
+    /* Guards changes of the state and lets writers wait for flushes and merges */
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+    /* Shared by writers while they write to the memtable, exclusive while it is replaced */
+    private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    /* Serializes the updates of each key */
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    /* Keeps the memtables flushed in order */
+    private final ReentrantLock flushLock = new ReentrantLock();
+    /* Only one merge of the engine runs at a time */
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    /* Last key merged from every level, so that merges go round each level */
+    private final String[] compactionPointers = new String[MAX_LEVELS];
+    private final AtomicLong nextFile = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder compactionBytes = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder bloomSkips = new LongAdder();
+    private final LongAdder fileReads = new LongAdder();
+
+    /**
+     * Constructs the engine, opening the tables listed in the manifest of the directory.
+     *
+     * @param directory The directory of the tables, created if needed.
+     * @param memtableBytes The size of the memtable that makes it be flushed.
+     * @param syncLog Forces the log that holds the writes of the memtables to disk, so that
+     *                no table is ever on disk ahead of the log.
+     */
+    public LsmStorageEngine(Path directory, long memtableBytes, Runnable syncLog) {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.syncLog = syncLog;
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(List.of());
+        }
+        try {
+            Files.createDirectories(directory);
+            Path manifest = directory.resolve(MANIFEST_FILE);
+            if (Files.exists(manifest)) {
+                levels = readManifest(manifest);
+            }
+
+            // Tables missing from the manifest were never used, and later tables must not take their names
+            Set<Path> listed = new HashSet<>();
+            levels.forEach(level -> level.forEach(table -> listed.add(table.file())));
+            long lastFile = 0;
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".sst")) {
+                        try {
+                            lastFile = Math.max(lastFile, Long.parseLong(name.substring(0, name.length() - 4)));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        if (!listed.contains(file)) {
+                            Files.delete(file);
+                        }
+                    } else if (name.equals(MANIFEST_FILE + ".tmp")) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            nextFile.set(lastFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.state = new State(new Memtable(), List.of(), levels);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] value = lookup(state, key);
+        return value == TOMBSTONE ? null : value;
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        TreeSet<Integer> stripeIndexes = lockStripes(keys);
+        try {
+            Map<String, byte[]> pairs = new HashMap<>();
+            State current = state;
+            for (String key : keys) {
+                byte[] value = lookup(current, key);
+                pairs.put(key, value == TOMBSTONE ? null : value);
+            }
+            return pairs;
+        } finally {
+            unlockStripes(stripeIndexes);
+        }
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        ReentrantLock stripe = stripes[stripeIndex(key)];
+        stripe.lock();
+        try {
+            byte[] current = get(key);
+            byte[] value = remapping.apply(key, current);
+            if (value != null || current != null) {
+                write(key, value);
+            }
+            return value;
+        } finally {
+            stripe.unlock();
+            rotateIfFull();
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> stripeIndexes = lockStripes(pairs.keySet());
+        try {
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            unlockStripes(stripeIndexes);
+            rotateIfFull();
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> stripeIndexes = lockStripes(keys);
+        try {
+            Map<String, byte[]> current = new HashMap<>();
+            for (String key : keys) {
+                current.put(key, get(key));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(current).entrySet()) {
+                write(entry.getKey(), entry.getValue());
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            unlockStripes(stripeIndexes);
+            rotateIfFull();
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return 1;
+    }
+
+    /**
+     * Copies every pair of the engine into memory. Only meant for engines that fit in memory.
+     */
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i].lock();
+            stripeIndexes.add(i);
+        }
+        try {
+            Map<String, byte[]> pairs = new HashMap<>();
+            Iterator<Map.Entry<String, byte[]>> merged = merge(state, "");
+            while (merged.hasNext()) {
+                Map.Entry<String, byte[]> pair = merged.next();
+                if (pair.getValue() != TOMBSTONE) {
+                    pairs.put(pair.getKey(), pair.getValue());
+                }
+            }
+            return pairs;
+        } finally {
+            unlockStripes(stripeIndexes);
+        }
+    }
+
+    @Override
+    public boolean storesArrays() {
+        return false;
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    /**
+     * Walks the keys of a range in ascending order, merging the memtables and the tables of
+     * the state at the time of the call. Writes made meanwhile may or may not be seen.
+     */
+    @Override
+    public Iterator<String> keys(String startKey, String endKey) {
+        Iterator<Map.Entry<String, byte[]>> merged = merge(state, startKey);
+        return new Iterator<>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && merged.hasNext()) {
+                    Map.Entry<String, byte[]> pair = merged.next();
+                    if (endKey != null && pair.getKey().compareTo(endKey) >= 0) {
+                        break;
+                    }
+                    if (pair.getValue() != TOMBSTONE) {
+                        next = pair.getKey();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String key = next;
+                next = null;
+                return key;
+            }
+        };
+    }
+
+    @Override
+    public Map<String, Long> stats() {
+        State current = state;
+        long memtable = current.memtable.bytes.get();
+        for (Memtable immutable : current.immutables) {
+            memtable += immutable.bytes.get();
+        }
+        long files = 0;
+        long diskBytes = 0;
+        long indexBytes = 0;
+        for (List<SSTable> level : current.levels) {
+            for (SSTable table : level) {
+                files++;
+                diskBytes += table.sizeInBytes;
+                indexBytes += table.memoryBytes();
+            }
+        }
+
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("lsm.memtable.bytes", memtable);
+        stats.put("lsm.files", files);
+        stats.put("lsm.level0.files", (long) current.levels.get(0).size());
+        stats.put("lsm.disk.bytes", diskBytes);
+        stats.put("lsm.index.bytes", indexBytes);
+        stats.put("lsm.flushes", flushes.sum());
+        stats.put("lsm.compactions", compactions.sum());
+        stats.put("lsm.compaction.bytes", compactionBytes.sum());
+        stats.put("lsm.write.stalls", stalls.sum());
+        stats.put("lsm.bloom.skips", bloomSkips.sum());
+        stats.put("lsm.file.reads", fileReads.sum());
+        return stats;
+    }
+
+    /**
+     * Flushes the memtable and the immutable memtables, and waits until the manifest lists
+     * their tables. Writes made meanwhile may be left in the new memtable.
+     */
+    @Override
+    public void flush() throws IOException {
+        Memtable newest;
+        stateLock.lock();
+        try {
+            State current = state;
+            if (!current.memtable.pairs.isEmpty()) {
+                rotationLock.writeLock().lock();
+                try {
+                    List<Memtable> immutables = new ArrayList<>();
+                    immutables.add(current.memtable);
+                    immutables.addAll(current.immutables);
+                    state = new State(new Memtable(), immutables, current.levels);
+                } finally {
+                    rotationLock.writeLock().unlock();
+                }
+                newest = current.memtable;
+            } else if (!current.immutables.isEmpty()) {
+                newest = current.immutables.get(0);
+            } else {
+                return;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+
+        // The memtables are flushed from the oldest, so the newest one is the last to leave
+        flushImmutables();
+        if (state.immutables.contains(newest)) {
+            throw new IOException("Failed to flush the memtables to " + directory);
+        }
+    }
+
+    /**
+     * Stops flushing and merging. The files are left in the directory, which its owner deletes
+     * once no restart can need them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Finds the latest value of a key, from the newest data to the oldest.
+     *
+     * @return The value, TOMBSTONE if the key was removed, or null if it was never written.
+     */
+    private byte[] lookup(State current, String key) {
+        byte[] value = current.memtable.pairs.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (Memtable immutable : current.immutables) {
+            value = immutable.pairs.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        long hash = BloomFilter.hash(key);
+        for (SSTable table : current.levels.get(0)) {
+            value = probe(table, key, hash);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int level = 1; level < current.levels.size(); level++) {
+            List<SSTable> tables = current.levels.get(level);
+            // The tables of the level do not overlap, only the first one that ends after the key may hold it
+            int low = 0;
+            int high = tables.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (tables.get(middle).largest.compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            if (low < tables.size()) {
+                value = probe(tables.get(low), key, hash);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a key from a table, unless its range or its Bloom filter rule the key out.
+     */
+    private byte[] probe(SSTable table, String key, long hash) {
+        if (!table.covers(key)) {
+            return null;
+        }
+        if (!table.mayContain(hash)) {
+            bloomSkips.increment();
+            return null;
+        }
+        fileReads.increment();
+        return table.get(key);
+    }
+
+    /**
+     * Writes a value to the memtable. Must be called while holding the stripe of the key.
+     *
+     * @param value The value, or null to remove the key.
+     */
+    private void write(String key, byte[] value) {
+        rotationLock.readLock().lock();
+        try {
+            Memtable memtable = state.memtable;
+            memtable.pairs.put(key, value == null ? TOMBSTONE : value);
+            memtable.bytes.addAndGet(ENTRY_OVERHEAD + 2L * key.length() + (value == null ? 0 : value.length));
+        } finally {
+            rotationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the memtable with an empty one once it is full and schedules its flush. Waits
+     * while too many memtables are waiting to be flushed or level 0 has too many tables.
+     * Must be called without holding any stripe.
+     */
+    private void rotateIfFull() {
+        if (state.memtable.bytes.get() < memtableBytes) {
+            return;
+        }
+        stateLock.lock();
+        try {
+            while (!closed && state.memtable.bytes.get() >= memtableBytes
+                   && (state.immutables.size() >= MAX_IMMUTABLES || state.levels.get(0).size() >= LEVEL0_STOP_WRITES)) {
+                stalls.increment();
+                stateChanged.await();
+            }
+            // Another writer may have replaced it while this one waited
+            if (state.memtable.bytes.get() < memtableBytes) {
+                return;
+            }
+
+            rotationLock.writeLock().lock();
+            try {
+                State current = state;
+                List<Memtable> immutables = new ArrayList<>();
+                immutables.add(current.memtable);
+                immutables.addAll(current.immutables);
+                state = new State(new Memtable(), immutables, current.levels);
+            } finally {
+                rotationLock.writeLock().unlock();
+            }
+            FLUSH_EXECUTOR.execute(this::flushImmutables);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the immutable memtables to level 0, from the oldest.
+     */
+    private void flushImmutables() {
+        flushLock.lock();
+        try {
+            while (!closed && !state.immutables.isEmpty()) {
+                List<Memtable> immutables = state.immutables;
+                Memtable oldest = immutables.get(immutables.size() - 1);
+                syncLog.run();
+                SSTable table = SSTable.write(nextFile(), oldest.pairs.entrySet().iterator(), Long.MAX_VALUE);
+
+                stateLock.lock();
+                try {
+                    State current = state;
+                    List<Memtable> remaining = new ArrayList<>(current.immutables);
+                    remaining.remove(remaining.size() - 1);
+                    List<List<SSTable>> levels = new ArrayList<>(current.levels);
+                    if (table != null) {
+                        List<SSTable> level0 = new ArrayList<>();
+                        level0.add(table);
+                        level0.addAll(levels.get(0));
+                        levels.set(0, level0);
+                        try {
+                            writeManifest(levels);
+                        } catch (IOException e) {
+                            table.delete();
+                            throw e;
+                        }
+                    }
+                    state = new State(current.memtable, remaining, levels);
+                    flushes.increment();
+                    stateChanged.signalAll();
+                } finally {
+                    stateLock.unlock();
+                }
+                scheduleCompaction();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // The memtable stays in memory, and writers wait once too many are left
+            Logger.log("Failed to flush a memtable to " + directory + ": " + e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a merge in the background if some level needs one and no merge of the engine is running.
+     */
+    private void scheduleCompaction() {
+        if (!closed && needsCompaction(state) && compacting.compareAndSet(false, true)) {
+            COMPACTION_EXECUTOR.execute(this::compact);
+        }
+    }
+
+    /**
+     * Merges levels until none needs it.
+     */
+    private void compact() {
+        boolean failed = false;
+        try {
+            Compaction compaction;
+            while (!closed && (compaction = pickCompaction(state)) != null) {
+                List<SSTable> outputs = merge(compaction);
+                install(compaction, outputs);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            failed = true;
+            Logger.log("Failed to merge tables in " + directory + ": " + e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            compacting.set(false);
+        }
+        // A flush may have added a table after the last check
+        if (!failed) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Checks whether level 0 has enough tables or some other level is larger than its target.
+     */
+    private static boolean needsCompaction(State current) {
+        if (current.levels.get(0).size() >= LEVEL0_COMPACTION_TRIGGER) {
+            return true;
+        }
+        long target = LEVEL1_BYTES;
+        for (int level = 1; level < MAX_LEVELS - 1; level++, target *= LEVEL_MULTIPLIER) {
+            if (levelBytes(current.levels.get(level)) > target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long levelBytes(List<SSTable> tables) {
+        long bytes = 0;
+        for (SSTable table : tables) {
+            bytes += table.sizeInBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Chooses the next merge: all of level 0 into level 1 once level 0 has enough tables,
+     * or else one table of the first level that is larger than its target into the next.
+     * The tables of a level are chosen in turn, going round the keys of the level.
+     *
+     * @return The merge, or null if no level needs one.
+     */
+    private Compaction pickCompaction(State current) {
+        List<SSTable> level0 = current.levels.get(0);
+        if (level0.size() >= LEVEL0_COMPACTION_TRIGGER) {
+            Compaction compaction = new Compaction(1);
+            compaction.inputs.addAll(level0);
+            String smallest = level0.get(0).smallest;
+            String largest = level0.get(0).largest;
+            for (SSTable table : level0) {
+                smallest = table.smallest.compareTo(smallest) < 0 ? table.smallest : smallest;
+                largest = table.largest.compareTo(largest) > 0 ? table.largest : largest;
+            }
+            compaction.inputs.addAll(overlapping(current.levels.get(1), smallest, largest));
+            return compaction;
+        }
+
+        long target = LEVEL1_BYTES;
+        for (int level = 1; level < MAX_LEVELS - 1; level++, target *= LEVEL_MULTIPLIER) {
+            List<SSTable> tables = current.levels.get(level);
+            if (levelBytes(tables) <= target) {
+                continue;
+            }
+            SSTable chosen = tables.get(0);
+            String pointer = compactionPointers[level];
+            for (SSTable table : tables) {
+                if (pointer == null || table.smallest.compareTo(pointer) > 0) {
+                    chosen = table;
+                    break;
+                }
+            }
+            compactionPointers[level] = chosen.largest;
+            Compaction compaction = new Compaction(level + 1);
+            compaction.inputs.add(chosen);
+            compaction.inputs.addAll(overlapping(current.levels.get(level + 1), chosen.smallest, chosen.largest));
+            return compaction;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the tables of a level whose range overlaps the given one.
+     */
+    private static List<SSTable> overlapping(List<SSTable> tables, String smallest, String largest) {
+        List<SSTable> overlapping = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (table.largest.compareTo(smallest) >= 0 && table.smallest.compareTo(largest) <= 0) {
+                overlapping.add(table);
+            }
+        }
+        return overlapping;
+    }
+
+    /**
+     * Writes the merged pairs of the input tables to new tables of about TABLE_BYTES each.
+     * Tombstones are dropped when no deeper level holds data they could hide.
+     */
+    private List<SSTable> merge(Compaction compaction) throws IOException {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        for (SSTable table : compaction.inputs) {
+            sources.add(table.iterator(""));
+            compactionBytes.add(table.sizeInBytes);
+        }
+        Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources);
+
+        boolean deepest = true;
+        List<List<SSTable>> levels = state.levels;
+        for (int level = compaction.outputLevel + 1; level < levels.size(); level++) {
+            deepest &= levels.get(level).isEmpty();
+        }
+        if (deepest) {
+            merged = withoutTombstones(merged);
+        }
+
+        List<SSTable> outputs = new ArrayList<>();
+        while (merged.hasNext()) {
+            outputs.add(SSTable.write(nextFile(), merged, TABLE_BYTES));
+        }
+        return outputs;
+    }
+
+    /**
+     * Replaces the inputs of a merge with its outputs. Flushes may have added tables to
+     * level 0 meanwhile, but no other merge has changed the levels.
+     */
+    private void install(Compaction compaction, List<SSTable> outputs) throws IOException {
+        stateLock.lock();
+        try {
+            State current = state;
+            List<List<SSTable>> levels = new ArrayList<>();
+            for (List<SSTable> level : current.levels) {
+                List<SSTable> remaining = new ArrayList<>(level);
+                remaining.removeIf(table -> compaction.inputs.stream().anyMatch(input -> input == table));
+                levels.add(remaining);
+            }
+            List<SSTable> output = levels.get(compaction.outputLevel);
+            output.addAll(outputs);
+            output.sort(Comparator.comparing(table -> table.smallest));
+            try {
+                writeManifest(levels);
+            } catch (IOException e) {
+                outputs.forEach(SSTable::delete);
+                throw e;
+            }
+            state = new State(current.memtable, current.immutables, levels);
+            compactions.increment();
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+        // Readers of the previous state may still read them, their files are deleted once unreachable
+        for (SSTable input : compaction.inputs) {
+            input.retire();
+        }
+    }
+
+    /**
+     * Replaces the manifest with the tables of the given levels. Must be called while holding
+     * the state lock, before the levels are installed.
+     */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        Path temporaryFile = directory.resolve(MANIFEST_FILE + ".tmp");
+        FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            // MAGIC | LEVELS | TABLES | NAME LENGTH | NAME ..
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(levels.size());
+            for (List<SSTable> level : levels) {
+                out.writeInt(level.size());
+                for (SSTable table : level) {
+                    byte[] name = table.file().getFileName().toString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temporaryFile, directory.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+
+    /**
+     * Opens the tables listed in a manifest, in the order of their levels.
+     */
+    private List<List<SSTable>> readManifest(Path manifest) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(manifest));
+        try {
+            if (in.getInt() != MANIFEST_MAGIC || in.getInt() != MAX_LEVELS) {
+                throw new IOException("Not a manifest file: " + manifest);
+            }
+            List<List<SSTable>> levels = new ArrayList<>();
+            for (int i = 0; i < MAX_LEVELS; i++) {
+                List<SSTable> level = new ArrayList<>();
+                for (int tables = in.getInt(); tables > 0; tables--) {
+                    byte[] name = new byte[in.getInt()];
+                    in.get(name);
+                    level.add(SSTable.open(directory.resolve(new String(name, StandardCharsets.UTF_8))));
+                }
+                levels.add(level);
+            }
+            return levels;
+        } catch (RuntimeException e) {
+            throw new IOException("Manifest is corrupted: " + manifest, e);
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that the files created or moved in it
+     * survive a crash. Not every platform can open a directory, which is then left as it is.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The entries reach the disk with the next sync of the file system
+        }
+    }
+
+    /**
+     * Merges every memtable and table of a state from a key, newest data first.
+     */
+    private static Iterator<Map.Entry<String, byte[]>> merge(State current, String startKey) {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add(current.memtable.pairs.tailMap(startKey).entrySet().iterator());
+        for (Memtable immutable : current.immutables) {
+            sources.add(immutable.pairs.tailMap(startKey).entrySet().iterator());
+        }
+        for (SSTable table : current.levels.get(0)) {
+            sources.add(table.iterator(startKey));
+        }
+        for (int level = 1; level < current.levels.size(); level++) {
+            sources.add(concat(current.levels.get(level), startKey));
+        }
+        return new MergingIterator(sources);
+    }
+
+    /**
+     * Walks the tables of a level one after the other, opening each one when it is reached.
+     */
+    private static Iterator<Map.Entry<String, byte[]>> concat(List<SSTable> tables, String startKey) {
+        Iterator<SSTable> remaining = tables.stream().filter(table -> table.largest.compareTo(startKey) >= 0).iterator();
+        return new Iterator<>() {
+            private Iterator<Map.Entry<String, byte[]>> current = java.util.Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && remaining.hasNext()) {
+                    current = remaining.next().iterator(startKey);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private static Iterator<Map.Entry<String, byte[]>> withoutTombstones(Iterator<Map.Entry<String, byte[]>> pairs) {
+        return new Iterator<>() {
+            private Map.Entry<String, byte[]> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && pairs.hasNext()) {
+                    Map.Entry<String, byte[]> pair = pairs.next();
+                    if (pair.getValue() != TOMBSTONE) {
+                        next = pair;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> pair = next;
+                next = null;
+                return pair;
+            }
+        };
+    }
+
+    /**
+     * Merges sorted sources of pairs, ordered from the newest to the oldest, into a single
+     * sorted sequence with one pair per key, taken from the newest source that has it.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        /**
+         * The next pair of a source, with the position of the source.
+         */
+        private static class Head {
+            final Map.Entry<String, byte[]> pair;
+            final int source;
+            final Iterator<Map.Entry<String, byte[]>> pairs;
+
+            Head(Map.Entry<String, byte[]> pair, int source, Iterator<Map.Entry<String, byte[]>> pairs) {
+                this.pair = pair;
+                this.source = source;
+                this.pairs = pairs;
+            }
+        }
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+            Comparator.<Head, String>comparing(head -> head.pair.getKey()).thenComparingInt(head -> head.source));
+
+        MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i, sources.get(i));
+            }
+        }
+
+        private void advance(int source, Iterator<Map.Entry<String, byte[]>> pairs) {
+            if (pairs.hasNext()) {
+                heads.add(new Head(pairs.next(), source, pairs));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (heads.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Head head = heads.poll();
+            advance(head.source, head.pairs);
+            // Older values of the same key are skipped
+            while (!heads.isEmpty() && heads.peek().pair.getKey().equals(head.pair.getKey())) {
+                Head older = heads.poll();
+                advance(older.source, older.pairs);
+            }
+            return head.pair;
+        }
+    }
+
+    private Path nextFile() {
+        return directory.resolve(String.format("%08d.sst", nextFile.incrementAndGet()));
+    }
+
+    private int stripeIndex(String key) {
+        return Math.floorMod(key.hashCode() * 0x9E3779B9, STRIPES);
+    }
+
+    private TreeSet<Integer> lockStripes(Set<String> keys) {
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        for (String key : keys) {
+            stripeIndexes.add(stripeIndex(key));
+        }
+        for (int stripeIndex : stripeIndexes) {
+            stripes[stripeIndex].lock();
+        }
+        return stripeIndexes;
+    }
+
+    private void unlockStripes(TreeSet<Integer> stripeIndexes) {
+        for (int stripeIndex : stripeIndexes) {
+            stripes[stripeIndex].unlock();
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
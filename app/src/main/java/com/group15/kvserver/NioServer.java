@@ -0,0 +1,610 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The NioServer class serves clients from a single selector thread instead of dedicating
+ * threads to each connection. Incoming bytes are decoded into TaggedConnection frames
+ * (tag, request type, length, payload) and complete frames are handed to a bounded pool
+ * of worker threads. Frames of the same connection are processed in the order they arrived.
+ * Frames are decoded into buffers of the BufferPool, and responses are written from them.
+ * Like TaggedConnection, connections start with version 1 of the Protocol and switch to the
+ * version a HelloRequest received as their first frame asks for, compressing large frames
+ * if it asks for Compression and the server allows it. Compressed frames are decompressed by
+ * the workers, so that the selector thread only copies bytes.
+ * A connection whose frames wait for the workers, or whose responses wait to be written, beyond
+ * MAX_PENDING_BYTES is no longer read until half of them are gone, so that a client cannot queue
+ * requests or leave responses unread without bound.
+ */
+class NioServer implements Runnable {
+    /* Size of the frame header in version 1 of the protocol: tag (int), request type (short) and length (int) */
+    static final int HEADER_SIZE = 10;
+    /* Initial size of the per-connection read buffer */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /* Number of pending tasks allowed per worker thread before the selector is throttled */
+    private static final int QUEUE_SIZE_PER_WORKER = 1024;
+    /* Bytes of frames and responses a connection may have waiting before it is no longer read */
+    private static final long MAX_PENDING_BYTES = 1 << 20;
+    /* Bytes a waiting frame counts for besides its data, so that empty frames are bounded too */
+    private static final int PENDING_FRAME_OVERHEAD = 64;
+
+    private final ServerDatabase database;
+    private final int maxClients;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final SelectionKey acceptKey;
+    /* Bounded pool that processes complete frames */
+    private final ExecutorService workers;
+    /* Number of connections currently open */
+    private int connectedClients = 0;
+    /* Connections whose pending frames were drained enough to be read again, by the selector thread */
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+    /* Whether connections compress large frames when their client asks for it */
+    private final boolean acceptsCompression;
+    /* Largest value a client may stream */
+    private final int maxStreamedValue;
+
+    /**
+     * Constructs a NioServer bound to the given port.
+     *
+     * @param port The port to listen on.
+     * @param maxClients The maximum number of simultaneous connections.
+     * @param database The database shared by every connection.
+     * @param workerThreads The number of threads that process requests.
+     * @param acceptsCompression Whether to compress frames for the clients that ask for it.
+     * @param maxStreamedValue The largest value a client may stream, in bytes.
+     * @throws IOException If the server channel cannot be opened.
+     */
+    public NioServer(int port, int maxClients, ServerDatabase database, int workerThreads,
+                     boolean acceptsCompression, int maxStreamedValue) throws IOException {
+        this.database = database;
+        this.acceptsCompression = acceptsCompression;
+        this.maxStreamedValue = maxStreamedValue;
+        this.maxClients = maxClients;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        // When the queue is full the selector thread runs the task itself, which stops it
+        // from reading more frames until the workers catch up.
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(workerThreads * QUEUE_SIZE_PER_WORKER),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * The selector loop. Accepts connections, reads and decodes frames and flushes
+     * pending writes until the server is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+                Connection paused;
+                while ((paused = resumed.poll()) != null) {
+                    try {
+                        paused.resumeReading();
+                    } catch (IOException e) {
+                        Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                        paused.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and stops accepting once the client limit is reached.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (connectedClients < maxClients && (channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectedClients++;
+            Logger.log("Client connected. Active clients: " + connectedClients, Logger.LogLevel.INFO);
+        }
+        if (connectedClients >= maxClients) {
+            acceptKey.interestOps(0);
+        }
+    }
+
+    /**
+     * A client connection served by the selector. It implements FrameSender so that
+     * the ServerWorker can answer requests, including delayed get-when responses.
+     */
+    private class Connection implements FrameSender {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        /* Holds the bytes read from the channel that do not yet form a complete frame */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /* Encoded frames waiting to be written to the channel */
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        /* Lock for the write queue and the write interest of the key */
+        private final ReentrantLock writeLock = new ReentrantLock();
+        /* Decoded frames waiting to be processed by a worker */
+        private final Queue<TaggedConnection.Frame> pending = new ConcurrentLinkedQueue<>();
+        /* Whether a worker is currently draining the pending frames */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        /* Bytes of the pending frames, counted with PENDING_FRAME_OVERHEAD each, and of the queued writes */
+        private final AtomicLong pendingBytes = new AtomicLong();
+        /* Whether the connection is no longer read because too many bytes are pending */
+        private final AtomicBoolean readPaused = new AtomicBoolean(false);
+        private final ServerWorker worker;
+        /* Set once the client asked to disconnect, the channel closes after the last write */
+        private boolean closing = false;
+        private boolean closed = false;
+        /* The version of the protocol the frames are encoded with, changed by the selector thread */
+        private volatile Protocol protocol = Protocol.V1;
+        /* Whether the next frame read may be a HelloRequest, true until the first frame */
+        private boolean acceptsHello = true;
+        /* Whether the data of large frames is compressed, as negotiated by the HelloRequest */
+        private volatile boolean compression = false;
+        /* Tag, request type and length of the header decoded last */
+        private int frameTag;
+        private short frameRequest;
+        private int frameLength;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.worker = new ServerWorker(this, database, maxStreamedValue);
+        }
+
+        /**
+         * Reads the available bytes and dispatches every complete frame.
+         */
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            decodeFrames();
+        }
+
+        /**
+         * Dispatches every complete frame in the read buffer, until too many bytes are pending.
+         * A buffer grown for a large frame is replaced by one of READ_BUFFER_SIZE once the
+         * bytes left in it fit.
+         */
+        private void decodeFrames() throws IOException {
+            readBuffer.flip();
+            int headerLength;
+            while ((headerLength = decodeHeader(readBuffer.position())) > 0) {
+                int length = frameLength;
+                if (length < 0 || length > TaggedConnection.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (readBuffer.remaining() < headerLength + length) {
+                    if (readBuffer.capacity() < headerLength + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(headerLength + length);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+
+                readBuffer.position(readBuffer.position() + headerLength);
+                int dataStart = readBuffer.position();
+                readBuffer.position(dataStart + length);
+                boolean hello = acceptsHello && frameRequest == RequestType.HelloRequest.getValue();
+                acceptsHello = false;
+                if (hello) {
+                    // HELLO REQUEST | VERSION (byte) | [FEATURES (byte)], answered in version 1 with
+                    // VERSION (byte) | [FEATURES (byte)], the features only if the client sent them
+                    if (length < 3) {
+                        throw new IOException("Invalid protocol handshake");
+                    }
+                    Protocol chosen = Protocol.negotiate(readBuffer.get(dataStart + 2));
+                    int features = length > 3 && chosen != Protocol.V1 && acceptsCompression
+                        ? readBuffer.get(dataStart + 3) & Protocol.COMPRESSION_FEATURE : 0;
+                    send(frameTag, frameRequest, length > 3
+                        ? new byte[] { (byte) chosen.version(), (byte) features }
+                        : new byte[] { (byte) chosen.version() });
+                    protocol = chosen;
+                    compression = features != 0;
+                    continue;
+                }
+                if (protocol != Protocol.V1 && (frameRequest & Protocol.COMPRESSED) != 0 && !compression) {
+                    throw new IOException("Compressed frame on a connection without compression");
+                }
+
+                PooledBuffer data = BufferPool.DEFAULT.acquire(length);
+                data.write(readBuffer.array(), dataStart, length);
+                dispatch(new TaggedConnection.Frame(frameTag, frameRequest, data));
+                if (pendingBytes.get() >= MAX_PENDING_BYTES) {
+                    pauseReading();
+                    break;
+                }
+            }
+            readBuffer.compact();
+            if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.position() <= READ_BUFFER_SIZE) {
+                readBuffer.flip();
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE).put(readBuffer);
+            }
+        }
+
+        /**
+         * Stops reading the channel until the pending frames and queued writes are drained.
+         * Runs on the selector thread.
+         */
+        private void pauseReading() {
+            writeLock.lock();
+            try {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } finally {
+                writeLock.unlock();
+            }
+            readPaused.set(true);
+            // The workers may have drained the frames before seeing the flag
+            if (pendingBytes.get() <= MAX_PENDING_BYTES / 2 && readPaused.compareAndSet(true, false)) {
+                resumed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Reads the channel again and dispatches the frames left in the read buffer. Runs on
+         * the selector thread.
+         */
+        void resumeReading() throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } finally {
+                writeLock.unlock();
+            }
+            decodeFrames();
+        }
+
+        /**
+         * Counts a pending frame as processed, or a queued write as written, handing the
+         * connection back to the selector once half of the bytes that paused it are gone.
+         */
+        private void released(long bytes) {
+            if (pendingBytes.addAndGet(-bytes) <= MAX_PENDING_BYTES / 2 && readPaused.compareAndSet(true, false)) {
+                resumed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Gets the bytes a pending frame counts for.
+         */
+        private long pendingSize(TaggedConnection.Frame frame) {
+            return PENDING_FRAME_OVERHEAD + frame.buffer.length();
+        }
+
+        /**
+         * Decodes the header of the frame starting at an index of the read buffer into
+         * frameTag, frameRequest and frameLength.
+         *
+         * @return The size of the header, or 0 if it has not arrived in full yet.
+         */
+        private int decodeHeader(int start) throws IOException {
+            if (protocol == Protocol.V1) {
+                // TAG | REQUEST TYPE | LENGTH
+                if (readBuffer.limit() - start < HEADER_SIZE) {
+                    return 0;
+                }
+                frameTag = readBuffer.getInt(start);
+                frameRequest = readBuffer.getShort(start + 4);
+                frameLength = readBuffer.getInt(start + 6);
+                return HEADER_SIZE;
+            }
+
+            // TAG (varint) | OPCODE (byte) | LENGTH (varint)
+            long tag = Protocol.getVarint(readBuffer, start);
+            if (tag < 0) {
+                return 0;
+            }
+            int tagSize = (int) (tag >>> 32);
+            if (start + tagSize >= readBuffer.limit()) {
+                return 0;
+            }
+            long length = Protocol.getVarint(readBuffer, start + tagSize + 1);
+            if (length < 0) {
+                return 0;
+            }
+            int lengthSize = (int) (length >>> 32);
+            frameTag = (int) tag;
+            frameRequest = (short) (readBuffer.get(start + tagSize) & 0xFF);
+            frameLength = (int) length;
+            return tagSize + 1 + lengthSize;
+        }
+
+        @Override
+        public int protocolVersion() {
+            return protocol.version();
+        }
+
+        @Override
+        public boolean compressesFrames() {
+            return compression;
+        }
+
+        /**
+         * Queues a frame and makes sure a worker is draining this connection.
+         */
+        private void dispatch(TaggedConnection.Frame frame) {
+            pendingBytes.addAndGet(pendingSize(frame));
+            pending.add(frame);
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Processes the pending frames in order. Runs on a worker thread. A frame that fails,
+         * even with an unchecked exception, is logged and skipped, so that the frames after it
+         * are still processed. A frame that cannot be decompressed closes the connection, as
+         * in the threads mode, since its request cannot be answered.
+         */
+        private void drain() {
+            do {
+                TaggedConnection.Frame frame;
+                while ((frame = pending.poll()) != null) {
+                    long size = pendingSize(frame);
+                    try {
+                        if (protocol != Protocol.V1 && (frame.requestType & Protocol.COMPRESSED) != 0) {
+                            try {
+                                frame = decompress(frame);
+                            } catch (IOException e) {
+                                Logger.log("Failed to decompress frame " + frame.tag + ": " + e.getMessage(), Logger.LogLevel.ERROR);
+                                closeAfterFlush();
+                                discardPending();
+                                continue;
+                            }
+                        }
+                        if (!worker.processFrame(frame)) {
+                            closeAfterFlush();
+                            discardPending();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Logger.log("Failed to process frame " + frame.tag + ": " + e, Logger.LogLevel.ERROR);
+                    } finally {
+                        released(size);
+                    }
+                }
+                scheduled.set(false);
+            } while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Drops the pending frames, releasing their buffers.
+         */
+        private void discardPending() {
+            TaggedConnection.Frame frame;
+            while ((frame = pending.poll()) != null) {
+                released(pendingSize(frame));
+                if (frame.buffer != null) {
+                    frame.buffer.release();
+                }
+            }
+        }
+
+        /**
+         * Replaces a compressed frame with one holding its decompressed data, releasing its buffer.
+         */
+        private TaggedConnection.Frame decompress(TaggedConnection.Frame frame) throws IOException {
+            try {
+                return new TaggedConnection.Frame(frame.tag, (short) (frame.requestType & ~Protocol.COMPRESSED),
+                    Compression.decompressFrame(frame.buffer, TaggedConnection.MAX_FRAME_SIZE));
+            } finally {
+                frame.buffer.release();
+            }
+        }
+
+        /**
+         * Encodes a frame and writes it, queueing whatever the channel does not accept.
+         */
+        @Override
+        public void send(int tag, short request, byte[] data) throws IOException {
+            if (compression && (request & Protocol.COMPRESSED) == 0) {
+                PooledBuffer packed = Compression.compressFrame(data, 0, data.length);
+                if (packed != null) {
+                    send(tag, (short) (request | Protocol.COMPRESSED), packed);
+                    return;
+                }
+            }
+            Protocol current = protocol;
+            int headerLength = current.headerLength(tag, data.length);
+            ByteBuffer buffer = ByteBuffer.allocate(headerLength + data.length);
+            current.putHeader(buffer.array(), 0, tag, request, data.length);
+            buffer.position(headerLength);
+            buffer.put(data);
+            buffer.flip();
+
+            writeLock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection is closed.");
+                }
+                if (writeQueue.isEmpty()) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    writeQueue.add(buffer);
+                    pendingBytes.addAndGet(buffer.capacity());
+                    enableWrite();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Writes a frame held in a pooled buffer straight from it, copying only the part the
+         * channel does not accept, so that the buffer is released right away.
+         */
+        @Override
+        public void send(int tag, short request, PooledBuffer frame) throws IOException {
+            if (compression && (request & Protocol.COMPRESSED) == 0) {
+                PooledBuffer packed = Compression.compressFrame(frame);
+                if (packed != null) {
+                    frame.release();
+                    frame = packed;
+                    request |= Protocol.COMPRESSED;
+                }
+            }
+            Protocol current = protocol;
+            int length = frame.length() - TaggedConnection.MAX_HEADER_SIZE;
+            int offset = TaggedConnection.MAX_HEADER_SIZE - current.headerLength(tag, length);
+            current.putHeader(frame.array(), offset, tag, request, length);
+
+            writeLock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection is closed.");
+                }
+                ByteBuffer buffer = frame.view(offset);
+                if (writeQueue.isEmpty()) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    ByteBuffer rest = ByteBuffer.allocate(buffer.remaining());
+                    rest.put(buffer).flip();
+                    writeQueue.add(rest);
+                    pendingBytes.addAndGet(rest.capacity());
+                    enableWrite();
+                }
+            } finally {
+                writeLock.unlock();
+                frame.release();
+            }
+        }
+
+        /**
+         * Writes the queued frames. Runs on the selector thread when the channel is writable.
+         */
+        void flush() throws IOException {
+            writeLock.lock();
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buffer = writeQueue.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.poll();
+                    released(buffer.capacity());
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } finally {
+                writeLock.unlock();
+            }
+            if (closing) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection once every queued response has been written.
+         */
+        private void closeAfterFlush() {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closing = true;
+                enableWrite();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Asks the selector to report when the channel is writable.
+         */
+        private void enableWrite() {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            selector.wakeup();
+        }
+
+        /**
+         * Closes the channel and allows a new client to connect. Runs on the selector thread.
+         */
+        void close() {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                writeQueue.clear();
+            } finally {
+                writeLock.unlock();
+            }
+
+            worker.cancelWatches();
+            key.cancel();
+            try {
+                channel.close();
+                Logger.log("Socket closed.", Logger.LogLevel.INFO);
+            } catch (IOException e) {
+                Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+            }
+
+            connectedClients--;
+            Logger.log("Client disconnected. Active clients: " + connectedClients, Logger.LogLevel.INFO);
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+}
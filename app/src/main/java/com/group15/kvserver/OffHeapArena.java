@@ -0,0 +1,300 @@
+package com.group15.kvserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The OffHeapArena class stores values outside the Java heap, in chunks of direct memory, and
+ * identifies each of them by a handle that holds the chunk and the offset of its block. The
+ * length of the value is stored in the first bytes of the block.
+ *
+ * Blocks are rounded up to size classes four per power of two apart. Freed blocks are kept in
+ * a free list per size class and reused by later allocations of the same class. Values larger
+ * than a chunk get a chunk of their own, which is released when they are freed.
+ *
+ * A chunk whose blocks are all free is released too, unless new blocks are still carved from
+ * it, so that the memory of a shard shrinks after its keys are removed. The free list entries
+ * of its blocks are skipped when they are found, and all dropped at once when they hold more
+ * bytes than the other entries; the index of the chunk is only reused after that. Blocks are
+ * never moved, so a chunk with a single block in use is kept whole: after scattered removals
+ * the memory reserved stays near its peak, and the stats report the part that is free.
+ *
+ * An arena is not thread-safe: allocate and free must be called exclusively, while read
+ * can be called concurrently by readers holding the same lock in shared mode.
+ */
+class OffHeapArena {
+    /* Size of the length stored at the start of each block */
+    private static final int BLOCK_HEADER_SIZE = 4;
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    static final int MAX_CHUNK_SIZE = 64 << 20;
+    /* Size of the blocks of each size class, up to the size of a chunk */
+    private static final int[] CLASS_SIZES;
+
+    static {
+        List<Integer> sizes = new ArrayList<>();
+        for (int power = MIN_BLOCK_SIZE; power < MAX_CHUNK_SIZE; power *= 2) {
+            for (int step = 0; step < 4; step++) {
+                sizes.add(power + step * (power / 4));
+            }
+        }
+        sizes.add(MAX_CHUNK_SIZE);
+        CLASS_SIZES = sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /* Chunks of direct memory, null where a large value's chunk was released */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    /* Indexes of released chunks, reused by later chunks */
+    private final Deque<Integer> releasedChunks = new ArrayDeque<>();
+    /* Indexes of released chunks that blocks of the free lists still point to */
+    private final List<Integer> staleChunks = new ArrayList<>();
+    /* Blocks in use in each chunk, and where new blocks stopped being carved from it */
+    private int[] chunkBlocks = new int[16];
+    private int[] chunkEnds = new int[16];
+    /* Handles of the freed blocks of each size class */
+    private final long[][] freeBlocks = new long[CLASS_SIZES.length][];
+    private final int[] freeBlocksCount = new int[CLASS_SIZES.length];
+    /* Chunk new blocks are carved from, and where its free space starts */
+    private int currentChunk = -1;
+    private int currentOffset = 0;
+
+    /* Bytes of direct memory reserved by the chunks */
+    private long reservedBytes = 0;
+    /* Bytes of the blocks in use, including their rounding */
+    private long allocatedBytes = 0;
+    /* Bytes of the values stored */
+    private long valueBytes = 0;
+    /* Bytes of the blocks in the free lists */
+    private long freeBytes = 0;
+    /* Bytes left unused at the end of full chunks */
+    private long wastedBytes = 0;
+    /* Bytes of the blocks in the free lists that belong to released chunks */
+    private long staleBytes = 0;
+    /* Bytes of direct memory released since the arena was created */
+    private long releasedBytes = 0;
+
+    /**
+     * Copies a value into the arena.
+     *
+     * @param value The value to store.
+     * @return The handle of the value.
+     */
+    public long allocate(byte[] value) {
+        int blockSize = BLOCK_HEADER_SIZE + value.length;
+        long handle;
+        if (blockSize > MAX_CHUNK_SIZE) {
+            int chunk = addChunk(blockSize);
+            handle = handle(chunk, 0);
+            allocatedBytes += blockSize;
+        } else {
+            int sizeClass = sizeClass(blockSize);
+            handle = -1;
+            while (handle < 0 && freeBlocksCount[sizeClass] > 0) {
+                long freeBlock = freeBlocks[sizeClass][--freeBlocksCount[sizeClass]];
+                if (chunks.get(chunkIndex(freeBlock)) == null) {
+                    staleBytes -= CLASS_SIZES[sizeClass];
+                } else {
+                    handle = freeBlock;
+                    freeBytes -= CLASS_SIZES[sizeClass];
+                }
+            }
+            if (handle < 0) {
+                handle = carve(CLASS_SIZES[sizeClass]);
+            }
+            chunkBlocks[chunkIndex(handle)]++;
+            allocatedBytes += CLASS_SIZES[sizeClass];
+        }
+
+        ByteBuffer chunk = chunks.get(chunkIndex(handle));
+        int offset = offset(handle);
+        chunk.putInt(offset, value.length);
+        chunk.put(offset + BLOCK_HEADER_SIZE, value);
+        valueBytes += value.length;
+        return handle;
+    }
+
+    /**
+     * Copies a value out of the arena.
+     *
+     * @param handle The handle returned by allocate.
+     * @return A copy of the value.
+     */
+    public byte[] read(long handle) {
+        ByteBuffer chunk = chunks.get(chunkIndex(handle));
+        int offset = offset(handle);
+        byte[] value = new byte[chunk.getInt(offset)];
+        chunk.get(offset + BLOCK_HEADER_SIZE, value);
+        return value;
+    }
+
+    /**
+     * Frees the block of a value so that it can be reused.
+     *
+     * @param handle The handle returned by allocate.
+     */
+    public void free(long handle) {
+        int chunkIndex = chunkIndex(handle);
+        ByteBuffer chunk = chunks.get(chunkIndex);
+        int length = chunk.getInt(offset(handle));
+        int blockSize = BLOCK_HEADER_SIZE + length;
+        valueBytes -= length;
+        if (blockSize > MAX_CHUNK_SIZE) {
+            // The chunk is only referenced here, the garbage collector releases its memory
+            chunks.set(chunkIndex, null);
+            releasedChunks.push(chunkIndex);
+            reservedBytes -= chunk.capacity();
+            releasedBytes += chunk.capacity();
+            allocatedBytes -= blockSize;
+            return;
+        }
+
+        int sizeClass = sizeClass(blockSize);
+        if (freeBlocks[sizeClass] == null) {
+            freeBlocks[sizeClass] = new long[16];
+        } else if (freeBlocksCount[sizeClass] == freeBlocks[sizeClass].length) {
+            freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass], freeBlocksCount[sizeClass] * 2);
+        }
+        freeBlocks[sizeClass][freeBlocksCount[sizeClass]++] = handle;
+        allocatedBytes -= CLASS_SIZES[sizeClass];
+        freeBytes += CLASS_SIZES[sizeClass];
+        if (--chunkBlocks[chunkIndex] == 0 && chunkIndex != currentChunk) {
+            releaseChunk(chunkIndex);
+        }
+    }
+
+    /**
+     * Releases a chunk whose blocks are all free and which blocks are no longer carved from.
+     * Its memory is released by the garbage collector, once the buffer is unreachable.
+     */
+    private void releaseChunk(int chunkIndex) {
+        int capacity = chunks.get(chunkIndex).capacity();
+        // The blocks carved from the chunk cover it up to its end, and are all in the free lists
+        int end = chunkEnds[chunkIndex];
+        chunks.set(chunkIndex, null);
+        staleChunks.add(chunkIndex);
+        reservedBytes -= capacity;
+        releasedBytes += capacity;
+        freeBytes -= end;
+        wastedBytes -= capacity - end;
+        staleBytes += end;
+        if (staleBytes > freeBytes) {
+            dropStaleBlocks();
+        }
+    }
+
+    /**
+     * Removes the blocks of released chunks from the free lists, so that the indexes of the
+     * chunks can be reused.
+     */
+    private void dropStaleBlocks() {
+        for (int sizeClass = 0; sizeClass < CLASS_SIZES.length; sizeClass++) {
+            int kept = 0;
+            for (int i = 0; i < freeBlocksCount[sizeClass]; i++) {
+                long handle = freeBlocks[sizeClass][i];
+                if (chunks.get(chunkIndex(handle)) != null) {
+                    freeBlocks[sizeClass][kept++] = handle;
+                }
+            }
+            freeBlocksCount[sizeClass] = kept;
+        }
+        for (int chunkIndex : staleChunks) {
+            releasedChunks.push(chunkIndex);
+        }
+        staleChunks.clear();
+        staleBytes = 0;
+    }
+
+    /**
+     * Carves a new block from the current chunk, starting a new chunk if it does not fit.
+     */
+    private long carve(int blockSize) {
+        if (currentChunk < 0 || chunks.get(currentChunk).capacity() - currentOffset < blockSize) {
+            if (currentChunk >= 0) {
+                wastedBytes += chunks.get(currentChunk).capacity() - currentOffset;
+                chunkEnds[currentChunk] = currentOffset;
+                if (chunkBlocks[currentChunk] == 0) {
+                    releaseChunk(currentChunk);
+                }
+            }
+            // Chunks grow with the arena, so small shards do not reserve much memory
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, reservedBytes));
+            currentChunk = addChunk((int) Math.max(chunkSize, blockSize));
+            currentOffset = 0;
+        }
+        long handle = handle(currentChunk, currentOffset);
+        currentOffset += blockSize;
+        return handle;
+    }
+
+    /**
+     * Reserves a new chunk of direct memory.
+     *
+     * @return The index of the chunk.
+     */
+    private int addChunk(int size) {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(size);
+        reservedBytes += size;
+        int chunkIndex;
+        if (!releasedChunks.isEmpty()) {
+            chunkIndex = releasedChunks.pop();
+            chunks.set(chunkIndex, chunk);
+        } else {
+            chunks.add(chunk);
+            chunkIndex = chunks.size() - 1;
+            if (chunkIndex == chunkBlocks.length) {
+                chunkBlocks = Arrays.copyOf(chunkBlocks, chunkIndex * 2);
+                chunkEnds = Arrays.copyOf(chunkEnds, chunkIndex * 2);
+            }
+        }
+        chunkBlocks[chunkIndex] = 0;
+        return chunkIndex;
+    }
+
+    /**
+     * Finds the smallest size class that fits a block.
+     */
+    private static int sizeClass(int blockSize) {
+        int index = Arrays.binarySearch(CLASS_SIZES, blockSize);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long handle(int chunkIndex, int offset) {
+        return ((long) chunkIndex << 32) | offset;
+    }
+
+    private static int chunkIndex(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    public long reservedBytes() {
+        return reservedBytes;
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long valueBytes() {
+        return valueBytes;
+    }
+
+    public long freeBytes() {
+        return freeBytes;
+    }
+
+    public long wastedBytes() {
+        return wastedBytes;
+    }
+
+    public long releasedBytes() {
+        return releasedBytes;
+    }
+}
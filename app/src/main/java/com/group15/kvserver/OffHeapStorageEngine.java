@@ -0,0 +1,233 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A storage engine that keeps the values outside the Java heap, so that the heap only holds
+ * the keys and a handle per value and the garbage collector does not have to trace the data.
+ * Every shard has its own OffHeapArena and is guarded by a ReentrantReadWriteLock like in the
+ * LockingStorageEngine. Values are copied into the arena on writes and out of it on reads.
+ */
+class OffHeapStorageEngine implements StorageEngine {
+    private final int shardsCount;
+    /* Maps the keys of each shard to the handles of their values */
+    private final List<Map<String, Long>> shards = new ArrayList<>();
+    /* Holds the values of each shard */
+    private final List<OffHeapArena> arenas = new ArrayList<>();
+    /* Locks for database shards */
+    private final List<ReentrantReadWriteLock> locks = new ArrayList<>();
+
+    /**
+     * Constructs the engine with the given number of shards.
+     * 
+     * @param shardsCount The number of shards.
+     */
+    public OffHeapStorageEngine(int shardsCount) {
+        this.shardsCount = shardsCount;
+        for (int i = 0; i < shardsCount; i++) {
+            shards.add(new HashMap<>());
+            arenas.add(new OffHeapArena());
+            locks.add(new ReentrantReadWriteLock());
+        }
+    }
+
+    @Override
+    public boolean storesArrays() {
+        return false;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+        locks.get(shardIndex).readLock().lock();
+        try {
+            Long handle = shards.get(shardIndex).get(key);
+            return handle == null ? null : arenas.get(shardIndex).read(handle);
+        } finally {
+            locks.get(shardIndex).readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        Map<Integer, List<String>> keysByShard = new TreeMap<>();
+        for (String key : keys) {
+            keysByShard.computeIfAbsent(StorageEngine.shardIndex(key, shardsCount), k -> new ArrayList<>()).add(key);
+        }
+
+        for (int shardIndex : keysByShard.keySet()) {
+            locks.get(shardIndex).readLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, List<String>> shardKeys : keysByShard.entrySet()) {
+                Map<String, Long> currentShard = shards.get(shardKeys.getKey());
+                OffHeapArena arena = arenas.get(shardKeys.getKey());
+                for (String key : shardKeys.getValue()) {
+                    Long handle = currentShard.get(key);
+                    pairs.put(key, handle == null ? null : arena.read(handle));
+                }
+            }
+        } finally {
+            for (int shardIndex : keysByShard.keySet()) {
+                locks.get(shardIndex).readLock().unlock();
+            }
+        }
+        return pairs;
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+        locks.get(shardIndex).writeLock().lock();
+        try {
+            Map<String, Long> currentShard = shards.get(shardIndex);
+            OffHeapArena arena = arenas.get(shardIndex);
+            Long handle = currentShard.get(key);
+            byte[] current = handle == null ? null : arena.read(handle);
+            byte[] value = remapping.apply(key, current);
+            // Returning the current value leaves the key untouched
+            if (value != current) {
+                store(currentShard, arena, key, value);
+            }
+            return value;
+        } finally {
+            locks.get(shardIndex).writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        Map<Integer, Map<String, byte[]>> pairsByShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            int shardIndex = StorageEngine.shardIndex(entry.getKey(), shardsCount);
+            pairsByShard.computeIfAbsent(shardIndex, k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+
+        for (int shardIndex : pairsByShard.keySet()) {
+            locks.get(shardIndex).writeLock().lock();
+        }
+        try {
+            for (Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+                Map<String, Long> currentShard = shards.get(shardPairs.getKey());
+                OffHeapArena arena = arenas.get(shardPairs.getKey());
+                for (Map.Entry<String, byte[]> entry : shardPairs.getValue().entrySet()) {
+                    store(currentShard, arena, entry.getKey(), entry.getValue());
+                    onWrite.accept(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            for (int shardIndex : pairsByShard.keySet()) {
+                locks.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> shardIndexes = new TreeSet<>();
+        for (String key : keys) {
+            shardIndexes.add(StorageEngine.shardIndex(key, shardsCount));
+        }
+
+        for (int shardIndex : shardIndexes) {
+            locks.get(shardIndex).writeLock().lock();
+        }
+        try {
+            Map<String, byte[]> current = new HashMap<>();
+            for (String key : keys) {
+                int shardIndex = StorageEngine.shardIndex(key, shardsCount);
+                Long handle = shards.get(shardIndex).get(key);
+                current.put(key, handle == null ? null : arenas.get(shardIndex).read(handle));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(current).entrySet()) {
+                int shardIndex = StorageEngine.shardIndex(entry.getKey(), shardsCount);
+                store(shards.get(shardIndex), arenas.get(shardIndex), entry.getKey(), entry.getValue());
+                onWrite.accept(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            for (int shardIndex : shardIndexes) {
+                locks.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Replaces the value of a key, freeing the block of the previous one.
+     * Must be called while holding the write lock of the shard.
+     */
+    private static void store(Map<String, Long> shard, OffHeapArena arena, String key, byte[] value) {
+        // Allocate first, so that the key keeps its value if the arena runs out of memory
+        Long handle = value == null ? null : arena.allocate(value);
+        Long previous = handle == null ? shard.remove(key) : shard.put(key, handle);
+        if (previous != null) {
+            arena.free(previous);
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return shardsCount;
+    }
+
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        locks.get(shardIndex).readLock().lock();
+        try {
+            Map<String, byte[]> pairs = new HashMap<>();
+            OffHeapArena arena = arenas.get(shardIndex);
+            for (Map.Entry<String, Long> entry : shards.get(shardIndex).entrySet()) {
+                pairs.put(entry.getKey(), arena.read(entry.getValue()));
+            }
+            return pairs;
+        } finally {
+            locks.get(shardIndex).readLock().unlock();
+        }
+    }
+
+    /**
+     * Reports the off-heap memory of every shard: reserved is the direct memory taken by the
+     * arenas, allocated the part of it in use, values the bytes actually stored, free the
+     * blocks waiting to be reused and wasted the unusable ends of full chunks. Fragmentation
+     * is the percentage of reserved memory that does not hold values.
+     */
+    @Override
+    public Map<String, Long> stats() {
+        long reserved = 0, allocated = 0, values = 0, free = 0, wasted = 0, released = 0;
+        for (int i = 0; i < shardsCount; i++) {
+            locks.get(i).readLock().lock();
+            try {
+                OffHeapArena arena = arenas.get(i);
+                reserved += arena.reservedBytes();
+                allocated += arena.allocatedBytes();
+                values += arena.valueBytes();
+                free += arena.freeBytes();
+                wasted += arena.wastedBytes();
+                released += arena.releasedBytes();
+            } finally {
+                locks.get(i).readLock().unlock();
+            }
+        }
+
+        Map<String, Long> stats = new java.util.LinkedHashMap<>();
+        stats.put("offheap.reserved.bytes", reserved);
+        stats.put("offheap.allocated.bytes", allocated);
+        stats.put("offheap.value.bytes", values);
+        stats.put("offheap.free.bytes", free);
+        stats.put("offheap.wasted.bytes", wasted);
+        stats.put("offheap.released.bytes", released);
+        stats.put("offheap.fragmentation.percent", reserved == 0 ? 0 : 100 * (reserved - values) / reserved);
+        return stats;
+    }
+}
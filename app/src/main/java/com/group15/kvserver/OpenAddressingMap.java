@@ -0,0 +1,421 @@
+package com.group15.kvserver;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A hash table from keys to values that takes far less memory per pair than a HashMap. Keys
+ * are kept as their UTF-8 bytes instead of as String objects, in open addressing with linear
+ * probing, and their hashes are cached in a parallel int array, so a pair takes a slot in
+ * two arrays and the array of its key, with no entry objects. The key and the value of a slot
+ * are next to each other, so a lookup usually misses the cache three times: on the hash, on
+ * the slot and on the bytes of the key.
+ *
+ * Lookups compare the key with the stored bytes character by character and use the hash the
+ * String already caches, so they do not allocate. Removing a pair shifts back the pairs of
+ * the same cluster instead of leaving a tombstone, so lookups never slow down with removals.
+ *
+ * With a PrefixDictionary, the bytes of a key start with the number of its namespace, as a
+ * varint, followed by the rest of the key, so keys that share long prefixes take only a few
+ * bytes more than what tells them apart. Lookups still do not allocate: they compare the key
+ * with the prefix of the stored number and then with the stored bytes.
+ *
+ * Unpaired surrogates are encoded as three bytes, like any other character, so that every
+ * String is kept as a distinct sequence of bytes. Not thread-safe.
+ */
+class OpenAddressingMap {
+    private static final int INITIAL_CAPACITY = 16;
+    /* The table grows once this fraction of its slots is in use */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /* Cached hash of the key of every slot, never 0 except for free slots */
+    private int[] hashes;
+    /* UTF-8 bytes of the key of every slot followed by its value, null for free slots */
+    private byte[][] pairs;
+    /* Numbers the prefixes of the keys, null when keys are kept whole */
+    private final PrefixDictionary prefixes;
+    private int size = 0;
+    /* Memory taken by the arrays of the keys */
+    private long keyBytes = 0;
+    /* Memory the arrays of the keys would take without their prefixes replaced by numbers */
+    private long savedKeyBytes = 0;
+    private long valueBytes = 0;
+
+    /**
+     * Constructs an empty table that keeps keys whole.
+     */
+    public OpenAddressingMap() {
+        this(null);
+    }
+
+    /**
+     * Constructs an empty table.
+     *
+     * @param prefixes The dictionary that numbers the prefixes of the keys, or null to keep keys whole.
+     */
+    public OpenAddressingMap(PrefixDictionary prefixes) {
+        this.prefixes = prefixes;
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.pairs = new byte[2 * INITIAL_CAPACITY][];
+    }
+
+    /**
+     * Gets the value associated with a key.
+     *
+     * @return The value, or null if there is none.
+     */
+    public byte[] get(String key) {
+        int slot = find(key, hash(key));
+        return slot < 0 ? null : pairs[2 * slot + 1];
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @return The previous value, or null if there was none.
+     */
+    public byte[] put(String key, byte[] value) {
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            byte[] previous = pairs[2 * slot + 1];
+            pairs[2 * slot + 1] = value;
+            valueBytes += value.length - previous.length;
+            return previous;
+        }
+
+        if (size + 1 > hashes.length * LOAD_FACTOR) {
+            resize(hashes.length * 2);
+            slot = find(key, hash);
+        }
+        slot = -1 - slot;
+        byte[] encoded = encodeKey(key);
+        hashes[slot] = hash;
+        pairs[2 * slot] = encoded;
+        pairs[2 * slot + 1] = value;
+        size++;
+        keyBytes += footprint(encoded.length);
+        if (prefixes != null) {
+            savedKeyBytes += footprint(encodedLength(key, 0)) - footprint(encoded.length);
+        }
+        valueBytes += value.length;
+        return null;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return The value it had, or null if there was none.
+     */
+    public byte[] remove(String key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        byte[] previous = pairs[2 * slot + 1];
+        size--;
+        keyBytes -= footprint(pairs[2 * slot].length);
+        if (prefixes != null) {
+            savedKeyBytes -= footprint(encodedLength(key, 0)) - footprint(pairs[2 * slot].length);
+        }
+        valueBytes -= previous.length;
+
+        // Shift back the following pairs of the cluster that may live in the freed slot
+        int mask = hashes.length - 1;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashes[hole] = hashes[next];
+                pairs[2 * hole] = pairs[2 * next];
+                pairs[2 * hole + 1] = pairs[2 * next + 1];
+                hole = next;
+            }
+        }
+        hashes[hole] = 0;
+        pairs[2 * hole] = null;
+        pairs[2 * hole + 1] = null;
+        return previous;
+    }
+
+    /**
+     * Gets the number of pairs.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls the action for every pair, decoding the keys.
+     */
+    public void forEach(BiConsumer<String, byte[]> action) {
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) {
+                action.accept(decodeKey(pairs[2 * slot]), pairs[2 * slot + 1]);
+            }
+        }
+    }
+
+    /**
+     * Gets the memory taken by the slot arrays, assuming compressed references.
+     */
+    public long tableBytes() {
+        return 2 * 16L + hashes.length * 12L;
+    }
+
+    /**
+     * Gets the memory taken by the arrays of the keys, with their headers and padding.
+     */
+    public long keyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * Gets the memory saved by replacing the prefixes of the keys with their numbers.
+     */
+    public long savedKeyBytes() {
+        return savedKeyBytes;
+    }
+
+    /**
+     * Gets the total length of the values.
+     */
+    public long valueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * Finds the slot of a key.
+     *
+     * @return The slot, or -1 - the free slot where the key would be placed if it is missing.
+     */
+    private int find(String key, int hash) {
+        int mask = hashes.length - 1;
+        // Probing only reads the hashes, the keys are only compared when their hash matches
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int candidate = hashes[slot];
+            if (candidate == 0) {
+                return -1 - slot;
+            }
+            if (candidate == hash && matchesKey(key, pairs[2 * slot])) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Gets the memory taken by an array: a 16-byte header and its bytes, padded to 8 bytes.
+     */
+    private static long footprint(int length) {
+        return (16L + length + 7) & ~7L;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        byte[][] oldPairs = pairs;
+        hashes = new int[capacity];
+        pairs = new byte[2 * capacity][];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                int slot = oldHashes[i] & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                pairs[2 * slot] = oldPairs[2 * i];
+                pairs[2 * slot + 1] = oldPairs[2 * i + 1];
+            }
+        }
+    }
+
+    /**
+     * Spreads the hash code of the key, which the String caches, since linear probing takes
+     * the lowest bits. The hash 0 is left for free slots.
+     */
+    private static int hash(String key) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Encodes a key to be stored, with the number of its prefix when there is a dictionary.
+     */
+    private byte[] encodeKey(String key) {
+        if (prefixes == null) {
+            return encode(key, 0, 0);
+        }
+        // NUMBER (VARINT) | REST OF THE KEY
+        int number = prefixes.number(key);
+        int header = numberLength(number);
+        byte[] bytes = encode(key, number == 0 ? 0 : prefixes.prefix(number).length(), header);
+        for (int i = 0; i < header; i++, number >>>= 7) {
+            bytes[i] = (byte) (i + 1 < header ? 0x80 | (number & 0x7F) : number);
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the length of a number as a varint.
+     */
+    private static int numberLength(int number) {
+        return number < 1 << 7 ? 1 : number < 1 << 14 ? 2 : 3;
+    }
+
+    /**
+     * Reads the varint at the start of stored bytes.
+     */
+    private static int readNumber(byte[] bytes) {
+        int number = 0;
+        for (int position = 0, shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            number |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return number;
+            }
+        }
+    }
+
+    /**
+     * Checks whether stored bytes are those of the key, without encoding it.
+     */
+    private boolean matchesKey(String key, byte[] bytes) {
+        if (prefixes == null) {
+            return matches(key, 0, bytes, 0);
+        }
+        int number = readNumber(bytes);
+        int position = numberLength(number);
+        if (number == 0) {
+            return matches(key, 0, bytes, position);
+        }
+        String prefix = prefixes.prefix(number);
+        return key.startsWith(prefix) && matches(key, prefix.length(), bytes, position);
+    }
+
+    /**
+     * Decodes stored bytes back to their key.
+     */
+    private String decodeKey(byte[] bytes) {
+        if (prefixes == null) {
+            return decode(bytes, 0);
+        }
+        int number = readNumber(bytes);
+        int position = numberLength(number);
+        return number == 0 ? decode(bytes, position) : prefixes.prefix(number) + decode(bytes, position);
+    }
+
+    /**
+     * Checks whether the bytes from a position are the encoding of the key from a character,
+     * without encoding it.
+     */
+    static boolean matches(String key, int from, byte[] bytes, int position) {
+        int length = key.length();
+        // Every character takes at least one byte
+        if (bytes.length - position < length - from) {
+            return false;
+        }
+        for (int i = from; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                if (position >= bytes.length || bytes[position++] != c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (position + 2 > bytes.length || bytes[position++] != (byte) (0xC0 | c >> 6)
+                    || bytes[position++] != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                if (position + 4 > bytes.length || bytes[position++] != (byte) (0xF0 | codePoint >> 18)
+                    || bytes[position++] != (byte) (0x80 | ((codePoint >> 12) & 0x3F))
+                    || bytes[position++] != (byte) (0x80 | ((codePoint >> 6) & 0x3F))
+                    || bytes[position++] != (byte) (0x80 | (codePoint & 0x3F))) {
+                    return false;
+                }
+            } else {
+                if (position + 3 > bytes.length || bytes[position++] != (byte) (0xE0 | c >> 12)
+                    || bytes[position++] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                    || bytes[position++] != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return position == bytes.length;
+    }
+
+    /**
+     * Gets the length of the encoding of the key from a character.
+     */
+    static int encodedLength(String key, int from) {
+        int length = key.length();
+        int encodedLength = 0;
+        for (int i = from; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                encodedLength += 1;
+            } else if (c < 0x800) {
+                encodedLength += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                encodedLength += 4;
+                i++;
+            } else {
+                encodedLength += 3;
+            }
+        }
+        return encodedLength;
+    }
+
+    /**
+     * Encodes a key from a character as UTF-8, with unpaired surrogates encoded as three bytes.
+     *
+     * @param offset The number of bytes left free at the start of the array.
+     */
+    static byte[] encode(String key, int from, int offset) {
+        int length = key.length();
+        byte[] bytes = new byte[offset + encodedLength(key, from)];
+        int position = offset;
+        for (int i = from; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | c >> 6);
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xE0 | c >> 12);
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes a key encoded by encode, from a position of the array.
+     */
+    static String decode(byte[] bytes, int position) {
+        StringBuilder key = new StringBuilder(bytes.length - position);
+        while (position < bytes.length) {
+            int b = bytes[position++] & 0xFF;
+            if (b < 0x80) {
+                key.append((char) b);
+            } else if (b < 0xE0) {
+                key.append((char) (((b & 0x1F) << 6) | (bytes[position++] & 0x3F)));
+            } else if (b < 0xF0) {
+                key.append((char) (((b & 0x0F) << 12) | ((bytes[position++] & 0x3F) << 6) | (bytes[position++] & 0x3F)));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((bytes[position++] & 0x3F) << 12)
+                    | ((bytes[position++] & 0x3F) << 6) | (bytes[position++] & 0x3F);
+                key.appendCodePoint(codePoint);
+            }
+        }
+        return key.toString();
+    }
+}
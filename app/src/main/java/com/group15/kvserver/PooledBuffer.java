@@ -0,0 +1,447 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An array of bytes borrowed from a BufferPool, read and written with the methods of
+ * DataInputStream and DataOutputStream and with the varints and strings of version 2 of the
+ * Protocol, so that frames are decoded and encoded in place instead of through streams
+ * allocated for every request.
+ *
+ * Writes append after the bytes written so far, growing the array through the pool. Reads
+ * start from the beginning and throw EOFException past the bytes written, like a
+ * DataInputStream at the end of its stream.
+ *
+ * The buffer counts its references: whoever is handed a buffer releases it once done, and
+ * the buffer goes back to its pool when its last reference is released, after which it must
+ * not be used anymore. Writing and reading are not thread-safe.
+ */
+public final class PooledBuffer {
+    /* The pool the buffer returns to, null for buffers that are not pooled */
+    private final BufferPool pool;
+    private byte[] array;
+    /* A view of the whole array, to hand to channels */
+    private ByteBuffer view;
+    /* Number of bytes written */
+    private int length = 0;
+    /* Position of the next byte read */
+    private int position = 0;
+    private final AtomicInteger references = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, byte[] array) {
+        this.pool = pool;
+        this.array = array;
+        this.view = ByteBuffer.wrap(array);
+    }
+
+    /**
+     * Wraps an array that is not pooled, to be read like a pooled buffer.
+     *
+     * @param data The bytes, which become the bytes written to the buffer.
+     */
+    public static PooledBuffer wrap(byte[] data) {
+        PooledBuffer buffer = new PooledBuffer(null, data);
+        buffer.reset();
+        buffer.length = data.length;
+        return buffer;
+    }
+
+    /**
+     * Empties the buffer and gives it a single reference. Called by the pool when the buffer
+     * is acquired.
+     */
+    void reset() {
+        length = 0;
+        position = 0;
+        references.set(1);
+    }
+
+    /**
+     * Adds a reference to the buffer, to be released by whoever it is handed to.
+     */
+    public void retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Buffer already released");
+        }
+    }
+
+    /**
+     * Releases a reference to the buffer, returning it to its pool if it was the last one.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining < 0) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        if (remaining == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Gets the array of the buffer, which holds the bytes written from its start. It is
+     * replaced when the buffer grows.
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * Gets the size of the array of the buffer.
+     */
+    public int capacity() {
+        return array.length;
+    }
+
+    /**
+     * Gets the number of bytes written.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets a view of the bytes written, from the given offset, to hand to a channel. The view
+     * is shared by every call, so only one can be in use at a time.
+     */
+    public ByteBuffer view(int offset) {
+        view.limit(length).position(offset);
+        return view;
+    }
+
+    /**
+     * Copies the bytes written from the given offset to a new array.
+     */
+    public byte[] toByteArray(int offset) {
+        return Arrays.copyOfRange(array, offset, length);
+    }
+
+    /**
+     * Skips bytes to be written later with putInt or putShort, such as a header.
+     */
+    public void reserve(int count) {
+        ensureCapacity(length + count);
+        length += count;
+    }
+
+    /**
+     * Appends bytes read from a stream.
+     *
+     * @throws EOFException If the stream ends first.
+     */
+    public void fill(DataInputStream in, int count) throws IOException {
+        ensureCapacity(length + count);
+        in.readFully(array, length, count);
+        length += count;
+    }
+
+    /**
+     * Gets the number of bytes left to read.
+     */
+    public int available() {
+        return length - position;
+    }
+
+    public boolean readBoolean() throws IOException {
+        require(1);
+        return array[position++] != 0;
+    }
+
+    public short readShort() throws IOException {
+        require(2);
+        short value = (short) ((array[position] & 0xFF) << 8 | (array[position + 1] & 0xFF));
+        position += 2;
+        return value;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = getInt(position);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        long value = (long) getInt(position) << 32 | (getInt(position + 4) & 0xFFFFFFFFL);
+        position += 8;
+        return value;
+    }
+
+    public void readFully(byte[] bytes) throws IOException {
+        require(bytes.length);
+        System.arraycopy(array, position, bytes, 0, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Reads a string written by writeUTF or DataOutputStream.writeUTF: its length in bytes
+     * followed by its characters in modified UTF-8.
+     */
+    public String readUTF() throws IOException {
+        require(2);
+        int utfLength = (array[position] & 0xFF) << 8 | (array[position + 1] & 0xFF);
+        position += 2;
+        require(utfLength);
+        int end = position + utfLength;
+
+        // Most keys are ASCII, which is decoded with a single copy
+        int ascii = position;
+        while (ascii < end && array[ascii] >= 0) {
+            ascii++;
+        }
+        if (ascii == end) {
+            String value = new String(array, position, utfLength, StandardCharsets.ISO_8859_1);
+            position = end;
+            return value;
+        }
+
+        char[] chars = new char[utfLength];
+        int count = 0;
+        while (position < end) {
+            int b = array[position++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && position < end && (array[position] & 0xC0) == 0x80) {
+                chars[count++] = (char) ((b & 0x1F) << 6 | (array[position++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && position + 1 < end && (array[position] & 0xC0) == 0x80
+                && (array[position + 1] & 0xC0) == 0x80) {
+                chars[count++] = (char) ((b & 0x0F) << 12 | (array[position] & 0x3F) << 6 | (array[position + 1] & 0x3F));
+                position += 2;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (position - 1));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Reads an unsigned varint: seven bits per byte, lowest first, with the high bit set on
+     * every byte but the last.
+     */
+    public int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            require(1);
+            int b = array[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads an unsigned varint of up to 64 bits.
+     */
+    public long readVarlong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            require(1);
+            int b = array[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads a string written by writeString: its length in bytes, as a varint, followed by
+     * its characters in UTF-8.
+     */
+    public String readString() throws IOException {
+        int byteLength = readVarint();
+        if (byteLength < 0) {
+            throw new IOException("Invalid string length: " + byteLength);
+        }
+        require(byteLength);
+        String value = new String(array, position, byteLength, StandardCharsets.UTF_8);
+        position += byteLength;
+        return value;
+    }
+
+    public void writeBoolean(boolean value) {
+        ensureCapacity(length + 1);
+        array[length++] = (byte) (value ? 1 : 0);
+    }
+
+    public void writeShort(int value) {
+        ensureCapacity(length + 2);
+        putShort(length, value);
+        length += 2;
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(length + 4);
+        putInt(length, value);
+        length += 4;
+    }
+
+    public void writeLong(long value) {
+        ensureCapacity(length + 8);
+        putInt(length, (int) (value >>> 32));
+        putInt(length + 4, (int) value);
+        length += 8;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(bytes, offset, array, length, count);
+        length += count;
+    }
+
+    /**
+     * Writes an unsigned varint.
+     */
+    public void writeVarint(int value) {
+        ensureCapacity(length + 5);
+        length = Protocol.putVarint(array, length, value);
+    }
+
+    /**
+     * Writes an unsigned varint of up to 64 bits.
+     */
+    public void writeVarlong(long value) {
+        ensureCapacity(length + 10);
+        while ((value & ~0x7FL) != 0) {
+            array[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        array[length++] = (byte) value;
+    }
+
+    /**
+     * Writes a string as its length in bytes, as a varint, followed by its characters in
+     * UTF-8, without the length limit of writeUTF.
+     */
+    public void writeString(String value) {
+        int chars = value.length();
+        int ascii = 0;
+        while (ascii < chars && value.charAt(ascii) < 0x80) {
+            ascii++;
+        }
+        if (ascii < chars) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes);
+            return;
+        }
+        // Most keys are ASCII, which is written without encoding it first
+        writeVarint(chars);
+        ensureCapacity(length + chars);
+        for (int i = 0; i < chars; i++) {
+            array[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a string like DataOutputStream.writeUTF: its length in bytes followed by its
+     * characters in modified UTF-8.
+     *
+     * @throws UTFDataFormatException If the string takes more than 65535 bytes.
+     */
+    public void writeUTF(String value) throws UTFDataFormatException {
+        int chars = value.length();
+        int utfLength = chars;
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                utfLength += c >= 0x800 ? 2 : 1;
+            }
+        }
+        if (utfLength > 65535) {
+            throw new UTFDataFormatException("Encoded string too long: " + utfLength + " bytes");
+        }
+
+        ensureCapacity(length + 2 + utfLength);
+        putShort(length, utfLength);
+        int at = length + 2;
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80 && c != 0) {
+                array[at++] = (byte) c;
+            } else if (c < 0x800) {
+                array[at++] = (byte) (0xC0 | c >> 6);
+                array[at++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                array[at++] = (byte) (0xE0 | c >> 12);
+                array[at++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[at++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        length = at;
+    }
+
+    /**
+     * Overwrites a byte already written or reserved.
+     */
+    public void putByte(int index, int value) {
+        array[index] = (byte) value;
+    }
+
+    /**
+     * Overwrites a short already written or reserved.
+     */
+    public void putShort(int index, int value) {
+        array[index] = (byte) (value >>> 8);
+        array[index + 1] = (byte) value;
+    }
+
+    /**
+     * Overwrites an int already written or reserved.
+     */
+    public void putInt(int index, int value) {
+        array[index] = (byte) (value >>> 24);
+        array[index + 1] = (byte) (value >>> 16);
+        array[index + 2] = (byte) (value >>> 8);
+        array[index + 3] = (byte) value;
+    }
+
+    private int getInt(int index) {
+        return (array[index] & 0xFF) << 24 | (array[index + 1] & 0xFF) << 16
+            | (array[index + 2] & 0xFF) << 8 | (array[index + 3] & 0xFF);
+    }
+
+    private void require(int count) throws EOFException {
+        if (count > length - position) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Grows the array to hold at least the given number of bytes. A pooled buffer takes the
+     * array of a larger buffer of the pool, which goes back to the pool with the old array.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= array.length) {
+            return;
+        }
+        byte[] grown;
+        if (pool == null) {
+            grown = Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+        } else {
+            PooledBuffer larger = pool.acquire(Math.max(capacity, array.length * 2));
+            grown = larger.array;
+            System.arraycopy(array, 0, grown, 0, length);
+            larger.array = array;
+            larger.view = view;
+            larger.release();
+        }
+        array = grown;
+        view = ByteBuffer.wrap(grown);
+    }
+}
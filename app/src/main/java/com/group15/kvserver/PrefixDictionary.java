@@ -0,0 +1,106 @@
+package com.group15.kvserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Numbers the namespaces that keys start with, such as "tenant:acme:user:" in
+ * "tenant:acme:user:1042:profile", so that tables can keep the number of the namespace of a
+ * key instead of its characters. The namespace of a key is its longest prefix that ends with
+ * a separator and has no digits, since digits usually start the part that tells keys apart.
+ *
+ * Numbers are never reused, and a key whose namespace is too short to be worth a number, or
+ * that comes after the dictionary is full, has no namespace. Thread-safe: lookups of a number
+ * never lock.
+ */
+class PrefixDictionary {
+    /* Prefixes shorter than this take about as much memory as their number */
+    private static final int MIN_PREFIX_LENGTH = 4;
+    /* Keeps numbers within three bytes, and the dictionary small, with keys that have no clear namespaces */
+    private static final int MAX_PREFIXES = 1 << 16;
+
+    private final ConcurrentHashMap<String, Integer> numbers = new ConcurrentHashMap<>();
+    /* Prefix of every number, starting from 1, replaced whenever it grows */
+    private volatile String[] prefixes = new String[16];
+    private int count = 0;
+    /* Guards the assignment of numbers */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Gets the number of the namespace of a key, numbering it if it is new.
+     *
+     * @return The number, or 0 if the key has no namespace.
+     */
+    public int number(String key) {
+        int length = prefixLength(key);
+        if (length < MIN_PREFIX_LENGTH) {
+            return 0;
+        }
+        String prefix = key.substring(0, length);
+        Integer number = numbers.get(prefix);
+        if (number != null) {
+            return number;
+        }
+
+        lock.lock();
+        try {
+            number = numbers.get(prefix);
+            if (number != null) {
+                return number;
+            }
+            if (count == MAX_PREFIXES) {
+                return 0;
+            }
+            String[] grown = prefixes;
+            if (count + 1 == grown.length) {
+                grown = Arrays.copyOf(grown, grown.length * 2);
+            }
+            grown[++count] = prefix;
+            // Published before the number, so that whoever sees the number finds its prefix
+            prefixes = grown;
+            numbers.put(prefix, count);
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the prefix with a number given by number.
+     *
+     * @param number The number, not 0.
+     */
+    public String prefix(int number) {
+        return prefixes[number];
+    }
+
+    /**
+     * Gets the number of namespaces numbered.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the length of the namespace of a key: up to its last separator before the first digit.
+     */
+    static int prefixLength(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= '0' && c <= '9') {
+                break;
+            }
+            if (c == ':' || c == '/' || c == '.' || c == '|' || c == '#') {
+                length = i + 1;
+            }
+        }
+        return length;
+    }
+}
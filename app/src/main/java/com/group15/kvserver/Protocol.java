@@ -0,0 +1,312 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The versions of the wire protocol, and how each one encodes frames and their fields.
+ *
+ * Version 1 frames have a 10-byte header (tag, request type and length as an int, a short
+ * and an int), and requests repeat their type as the first short of the data. Strings are
+ * written with writeUTF, so they take at most 64 KB, and lengths and counts take 4 bytes.
+ *
+ * Version 2 frames have a header of a varint tag, a single opcode byte and a varint length,
+ * and the data does not repeat the opcode. Strings are their UTF-8 bytes preceded by their
+ * length, lengths and counts are varints, and numbers are zigzag varints, so that a request
+ * with a small key and value takes a few bytes more than the key and value themselves.
+ *
+ * Connections start with version 1. A client that supports version 2 sends a HelloRequest in
+ * version 1 as its first frame, with the latest version it supports and the features it asks
+ * for; the server answers, still in version 1, with the version both sides use from the next
+ * frame on and the features it accepts. Servers that do not support version 2 are only reached
+ * by clients that skip the handshake.
+ *
+ * The only feature is the Compression of the data of large frames, which version 2 marks with
+ * the COMPRESSED bit of the opcode.
+ *
+ * Values too large for a single frame are streamed in chunks of STREAM_CHUNK_SIZE bytes, every
+ * chunk in a frame of its own with the tag of the transfer, so that the frames of other requests
+ * are sent between them. The sender of a stream has at most STREAM_WINDOW chunks in flight: a
+ * PutStreamRequest is answered chunk by chunk, and the reader of a GetStreamRequest sends a
+ * StreamCreditRequest for the chunks it consumed. The answer to a chunk tells whether it was
+ * received, the value stored or the value rejected, in which case the server drops the chunks
+ * that follow until the last one or the cancellation of the stream.
+ */
+enum Protocol {
+    V1(1),
+    V2(2);
+
+    /* The latest version, which clients ask for by default */
+    static final Protocol LATEST = V2;
+    /* Feature of the handshake that lets both sides compress the data of large frames */
+    static final int COMPRESSION_FEATURE = 1;
+    /* Bit of the opcode of version 2 frames whose data is compressed */
+    static final int COMPRESSED = 0x80;
+    /* Size of the chunks of streamed values, and how many of them may be sent ahead of the reader */
+    static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    static final int STREAM_WINDOW = 4;
+    /* Status of the answer to every chunk of a PutStreamRequest */
+    static final int STREAM_RECEIVED = 0;
+    static final int STREAM_STORED = 1;
+    static final int STREAM_REJECTED = 2;
+
+    private final int version;
+
+    Protocol(int version) {
+        this.version = version;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    /**
+     * Gets the protocol with the given version number.
+     *
+     * @throws IllegalArgumentException If there is no such version.
+     */
+    public static Protocol of(int version) {
+        switch (version) {
+            case 1:
+                return V1;
+            case 2:
+                return V2;
+            default:
+                throw new IllegalArgumentException("Unknown protocol version: " + version);
+        }
+    }
+
+    /**
+     * Chooses the version used with a client that supports up to the given version.
+     */
+    public static Protocol negotiate(int requested) {
+        return of(Math.max(V1.version, Math.min(requested, LATEST.version)));
+    }
+
+    /**
+     * Gets the size of the header of a frame.
+     */
+    public int headerLength(int tag, int length) {
+        if (this == V1) {
+            return TaggedConnection.HEADER_SIZE;
+        }
+        return varintSize(tag) + 1 + varintSize(length);
+    }
+
+    /**
+     * Writes the header of a frame, which takes headerLength bytes.
+     */
+    public void putHeader(byte[] array, int offset, int tag, short request, int length) {
+        if (this == V1) {
+            // TAG | REQUEST TYPE | LENGTH
+            ByteBuffer.wrap(array, offset, TaggedConnection.HEADER_SIZE).putInt(tag).putShort(request).putInt(length);
+            return;
+        }
+        // TAG (varint) | OPCODE (byte) | LENGTH (varint)
+        int at = putVarint(array, offset, tag);
+        array[at++] = (byte) request;
+        putVarint(array, at, length);
+    }
+
+    public void writeString(PooledBuffer out, String value) throws IOException {
+        if (this == V1) {
+            out.writeUTF(value);
+        } else {
+            out.writeString(value);
+        }
+    }
+
+    public String readString(PooledBuffer in) throws IOException {
+        return this == V1 ? in.readUTF() : in.readString();
+    }
+
+    /**
+     * Writes a length or a count.
+     */
+    public void writeLength(PooledBuffer out, int length) {
+        if (this == V1) {
+            out.writeInt(length);
+        } else {
+            out.writeVarint(length);
+        }
+    }
+
+    /**
+     * Reads a length or a count.
+     *
+     * @throws IOException If it is negative.
+     */
+    public int readLength(PooledBuffer in) throws IOException {
+        int length = this == V1 ? in.readInt() : in.readVarint();
+        if (length < 0) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a value preceded by its length.
+     */
+    public void writeValue(PooledBuffer out, byte[] value) {
+        writeLength(out, value.length);
+        out.write(value);
+    }
+
+    /**
+     * Reads a value preceded by its length.
+     */
+    public byte[] readValue(PooledBuffer in) throws IOException {
+        return readBytes(in, readLength(in));
+    }
+
+    /**
+     * Writes the length of a value that may be missing: the length, or -1 if it is missing in
+     * version 1, and the length plus one, or 0 if it is missing, in version 2.
+     *
+     * @param length The length, or -1 if the value is missing.
+     */
+    public void writeOptionalLength(PooledBuffer out, int length) {
+        if (this == V1) {
+            out.writeInt(length);
+        } else {
+            out.writeVarint(length + 1);
+        }
+    }
+
+    /**
+     * Reads a length written by writeOptionalLength.
+     *
+     * @return The length, or -1 if the value is missing.
+     */
+    public int readOptionalLength(PooledBuffer in) throws IOException {
+        int length = this == V1 ? in.readInt() : in.readVarint() - 1;
+        return length < 0 ? -1 : length;
+    }
+
+    /**
+     * Writes a value that may be missing, preceded by its length written by writeOptionalLength.
+     */
+    public void writeOptionalValue(PooledBuffer out, byte[] value) {
+        writeOptionalLength(out, value == null ? -1 : value.length);
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    /**
+     * Reads a value written by writeOptionalValue.
+     *
+     * @return The value, or null if it is missing.
+     */
+    public byte[] readOptionalValue(PooledBuffer in) throws IOException {
+        int length = readOptionalLength(in);
+        return length < 0 ? null : readBytes(in, length);
+    }
+
+    public void writeLong(PooledBuffer out, long value) {
+        if (this == V1) {
+            out.writeLong(value);
+        } else {
+            out.writeVarlong(value << 1 ^ value >> 63);
+        }
+    }
+
+    public long readLong(PooledBuffer in) throws IOException {
+        if (this == V1) {
+            return in.readLong();
+        }
+        long zigzag = in.readVarlong();
+        return zigzag >>> 1 ^ -(zigzag & 1);
+    }
+
+    /**
+     * Writes the time until the keys of a write expire, which is left out if they do not expire.
+     */
+    public void writeTtl(PooledBuffer out, long ttlMillis) {
+        if (ttlMillis > 0) {
+            writeLong(out, ttlMillis);
+        }
+    }
+
+    /**
+     * Reads the time until the keys of a write expire, which ends the request if present.
+     *
+     * @return The time, or 0 if the keys do not expire.
+     */
+    public long readTtl(PooledBuffer in) throws IOException {
+        return in.available() >= (this == V1 ? 8 : 1) ? readLong(in) : 0;
+    }
+
+    /**
+     * Reads a number of bytes, checking that the frame holds them before allocating them.
+     */
+    private static byte[] readBytes(PooledBuffer in, int length) throws IOException {
+        if (length > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets the number of bytes of an unsigned varint.
+     */
+    static int varintSize(int value) {
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    /**
+     * Writes an unsigned varint: seven bits per byte, lowest first, with the high bit set on
+     * every byte but the last.
+     *
+     * @return The index after the varint.
+     */
+    static int putVarint(byte[] array, int index, int value) {
+        while ((value & ~0x7F) != 0) {
+            array[index++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        array[index++] = (byte) value;
+        return index;
+    }
+
+    /**
+     * Reads an unsigned varint from a stream.
+     */
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads the unsigned varint at an index of a buffer, which may not have arrived in full yet.
+     *
+     * @return The number of bytes of the varint in the upper 32 bits and its value in the lower
+     *         32 bits, or -1 if the buffer ends before the varint.
+     */
+    static long getVarint(ByteBuffer buffer, int index) throws IOException {
+        int limit = buffer.limit();
+        int value = 0;
+        for (int size = 0; size < 5; size++) {
+            if (index + size >= limit) {
+                return -1;
+            }
+            int b = buffer.get(index + size);
+            value |= (b & 0x7F) << (7 * size);
+            if (b >= 0) {
+                return (long) (size + 1) << 32 | (value & 0xFFFFFFFFL);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
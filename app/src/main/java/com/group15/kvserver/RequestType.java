@@ -0,0 +1,34 @@
+package com.group15.kvserver;
+
+/**
+ * Enum representing different types of requests handled by the server.
+ */
+enum RequestType {
+    AuthRequest((short)0),
+    RegisterRequest((short)1),
+    PutRequest((short)2),
+    GetRequest((short)3),
+    MultiPutRequest((short)4),
+    MultiGetRequest((short)5),
+    GetWhenRequest((short)6),
+    DisconnectRequest((short)7),
+    ScanRequest((short)8),
+    CompareAndSetRequest((short)9),
+    IncrementRequest((short)10),
+    PutIfAbsentRequest((short)11),
+    TransactionRequest((short)12),
+    HelloRequest((short)13),
+    PutStreamRequest((short)14),
+    GetStreamRequest((short)15),
+    StreamCreditRequest((short)16);
+
+    private final short value;
+
+    RequestType(short value) {
+        this.value = value;
+    }
+
+    public short getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,388 @@
+package com.group15.kvserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of key-value pairs sorted by key, written by the LsmStorageEngine when it
+ * flushes a memtable or compacts other tables. Removed keys are kept as tombstones, so that
+ * they hide the values of older tables.
+ *
+ * The pairs are written in blocks of about 16 KB, each pair as key length, key (UTF-8), value
+ * length and value, with a length of -1 for tombstones. The blocks are followed by the index,
+ * the first key and offset of every block, and by a Bloom filter of the keys. Only the index
+ * and the filter are kept in memory: a lookup that passes the filter reads a single block.
+ *
+ * Tables no longer used by the engine are retired: their file is closed and deleted once
+ * nothing can read them, when the table is garbage collected, so readers never need to
+ * register with the table. Tables are forced to disk when written, so that the engine can
+ * list them in its manifest and open them again after a restart.
+ */
+class SSTable {
+    /* Identifies table files ("KVST") */
+    private static final int MAGIC = 0x4B565354;
+    /* Pairs are grouped in blocks of at least this size, the unit read from disk */
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /* Smallest and largest keys of the table */
+    final String smallest;
+    final String largest;
+    final long sizeInBytes;
+    final int count;
+    /* First key of every block */
+    private final String[] blockKeys;
+    /* Offset of every block, followed by the end of the last one */
+    private final long[] blockOffsets;
+    private final BloomFilter bloom;
+    private final Resources resources;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * The file of a table, kept apart from the table so that it can be closed once the table
+     * is unreachable.
+     */
+    private static class Resources implements Runnable {
+        final Path file;
+        final FileChannel channel;
+        volatile boolean retired = false;
+
+        Resources(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.close();
+                if (retired) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                // Files left behind are deleted when the engine opens its directory again
+            }
+        }
+    }
+
+    private SSTable(Path file, String smallest, String largest, long sizeInBytes, int count,
+                    String[] blockKeys, long[] blockOffsets, BloomFilter bloom) throws IOException {
+        this.smallest = smallest;
+        this.largest = largest;
+        this.sizeInBytes = sizeInBytes;
+        this.count = count;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.bloom = bloom;
+        this.resources = new Resources(file, FileChannel.open(file, StandardOpenOption.READ));
+        this.cleanable = CLEANER.register(this, resources);
+    }
+
+    /**
+     * Writes pairs to a new table until it reaches the given size, leaving the remaining
+     * pairs in the iterator.
+     *
+     * @param file The file to write.
+     * @param pairs The pairs, in ascending key order, with LsmStorageEngine.TOMBSTONE for removed keys.
+     * @param maxBytes The size after which no more pairs are written.
+     * @return The table, or null if there were no pairs.
+     * @throws IOException If the file cannot be written.
+     */
+    static SSTable write(Path file, Iterator<Map.Entry<String, byte[]>> pairs, long maxBytes) throws IOException {
+        if (!pairs.hasNext()) {
+            return null;
+        }
+
+        List<String> blockKeys = new ArrayList<>();
+        List<Long> blockOffsets = new ArrayList<>();
+        long[] hashes = new long[1024];
+        int count = 0;
+        String smallest = null;
+        String largest = null;
+        long offset = 0;
+        long blockStart = -BLOCK_SIZE;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE))) {
+            // KEY LENGTH | KEY | VALUE LENGTH | VALUE .., with a length of -1 for tombstones
+            while (pairs.hasNext() && offset < maxBytes) {
+                Map.Entry<String, byte[]> pair = pairs.next();
+                String key = pair.getKey();
+                if (offset - blockStart >= BLOCK_SIZE) {
+                    blockStart = offset;
+                    blockKeys.add(key);
+                    blockOffsets.add(offset);
+                }
+                if (smallest == null) {
+                    smallest = key;
+                }
+                largest = key;
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = BloomFilter.hash(key);
+
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                byte[] value = pair.getValue();
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                if (value == LsmStorageEngine.TOMBSTONE) {
+                    out.writeInt(-1);
+                    offset += 8 + keyBytes.length;
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                    offset += 8 + keyBytes.length + value.length;
+                }
+            }
+            blockOffsets.add(offset);
+
+            // N BLOCKS | KEY LENGTH | KEY | OFFSET .. | BLOOM FILTER | INDEX OFFSET | PAIRS | MAGIC
+            out.writeInt(blockKeys.size());
+            for (int i = 0; i < blockKeys.size(); i++) {
+                byte[] keyBytes = blockKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(blockOffsets.get(i));
+            }
+            BloomFilter bloom = BloomFilter.of(hashes, count);
+            bloom.write(out);
+            out.writeLong(offset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            // The table must be on disk before the manifest lists it
+            channel.force(false);
+
+            return new SSTable(file, smallest, largest, out.size(), count, blockKeys.toArray(new String[0]),
+                blockOffsets.stream().mapToLong(Long::longValue).toArray(), bloom);
+        }
+    }
+
+    /**
+     * Opens a table written before, reading its index and Bloom filter.
+     *
+     * @param file The file of the table.
+     * @return The table.
+     * @throws IOException If the file cannot be read or is not a table.
+     */
+    static SSTable open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16) {
+                throw new IOException("Not a table file: " + file);
+            }
+            // .. | INDEX OFFSET | PAIRS | MAGIC
+            ByteBuffer footer = read(channel, file, size - 16, 16);
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - 16) {
+                throw new IOException("Not a table file: " + file);
+            }
+
+            ByteBuffer index = read(channel, file, indexOffset, (int) (size - 16 - indexOffset));
+            String[] blockKeys = new String[index.getInt()];
+            long[] blockOffsets = new long[blockKeys.length + 1];
+            for (int i = 0; i < blockKeys.length; i++) {
+                blockKeys[i] = readKey(index);
+                blockOffsets[i] = index.getLong();
+            }
+            blockOffsets[blockKeys.length] = indexOffset;
+            BloomFilter bloom = BloomFilter.read(index);
+
+            // The largest key is the last one of the last block
+            int last = blockKeys.length - 1;
+            ByteBuffer block = read(channel, file, blockOffsets[last], (int) (indexOffset - blockOffsets[last]));
+            String largest = null;
+            while (block.hasRemaining()) {
+                largest = readKey(block);
+                int length = block.getInt();
+                block.position(block.position() + Math.max(length, 0));
+            }
+            return new SSTable(file, blockKeys[0], largest, size, count, blockKeys, blockOffsets, bloom);
+        } catch (RuntimeException e) {
+            throw new IOException("Table is corrupted: " + file, e);
+        }
+    }
+
+    /**
+     * Checks whether a key is within the range of keys of the table.
+     */
+    boolean covers(String key) {
+        return key.compareTo(smallest) >= 0 && key.compareTo(largest) <= 0;
+    }
+
+    /**
+     * Checks the Bloom filter of the table.
+     *
+     * @param hash The hash of the key, calculated with BloomFilter.hash.
+     * @return false if the key is certainly not in the table.
+     */
+    boolean mayContain(long hash) {
+        return bloom.mayContain(hash);
+    }
+
+    /**
+     * Looks up a key, reading the block that may hold it.
+     *
+     * @param key The key.
+     * @return The value, LsmStorageEngine.TOMBSTONE if the key was removed, or null if the table does not have the key.
+     */
+    byte[] get(String key) {
+        ByteBuffer block = readBlock(blockOf(key));
+        while (block.hasRemaining()) {
+            int comparison = readKey(block).compareTo(key);
+            int length = block.getInt();
+            if (comparison == 0) {
+                return readValue(block, length);
+            } else if (comparison > 0) {
+                return null;
+            }
+            block.position(block.position() + Math.max(length, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Walks the pairs of the table in ascending key order, reading one block at a time.
+     *
+     * @param startKey The first key to walk, inclusive.
+     * @return The pairs from the first key, with LsmStorageEngine.TOMBSTONE for removed keys.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(String startKey) {
+        return new Iterator<>() {
+            private int nextBlock = Math.max(0, blockOf(startKey));
+            private ByteBuffer block = ByteBuffer.allocate(0);
+            private Map.Entry<String, byte[]> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (!block.hasRemaining()) {
+                        if (nextBlock == blockKeys.length) {
+                            return false;
+                        }
+                        block = readBlock(nextBlock++);
+                    }
+                    String key = readKey(block);
+                    byte[] value = readValue(block, block.getInt());
+                    if (key.compareTo(startKey) >= 0) {
+                        next = Map.entry(key, value);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> pair = next;
+                next = null;
+                return pair;
+            }
+        };
+    }
+
+    /**
+     * Gets the file of the table.
+     */
+    Path file() {
+        return resources.file;
+    }
+
+    /**
+     * Marks the table as no longer used, so that its file is deleted once it is unreachable.
+     */
+    void retire() {
+        resources.retired = true;
+    }
+
+    /**
+     * Closes and deletes the file right away. The table must not be read anymore.
+     */
+    void delete() {
+        resources.retired = true;
+        cleanable.clean();
+    }
+
+    /**
+     * Gets the memory taken by the index and the Bloom filter of the table.
+     */
+    long memoryBytes() {
+        long bytes = bloom.sizeInBytes() + blockOffsets.length * 8L;
+        for (String key : blockKeys) {
+            bytes += 40 + 2L * key.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds the last block whose first key is not greater than the key, or 0 if there is none.
+     */
+    private int blockOf(String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockKeys[middle].compareTo(key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer readBlock(int block) {
+        long offset = blockOffsets[block];
+        try {
+            return read(resources.channel, resources.file, offset, (int) (blockOffsets[block + 1] - offset));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, Path file, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Table is truncated: " + file);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static String readKey(ByteBuffer block) {
+        byte[] key = new byte[block.getInt()];
+        block.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readValue(ByteBuffer block, int length) {
+        if (length < 0) {
+            return LsmStorageEngine.TOMBSTONE;
+        }
+        byte[] value = new byte[length];
+        block.get(value);
+        return value;
+    }
+}
@@ -0,0 +1,1009 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * A class representing the server's database, including methods for handling sharding and locks.
+ * The key-value pairs are kept by a pluggable storage engine, while this class keeps the
+ * get-when requests consistent with the writes.
+ */
+class ServerDatabase {
+    volatile int databaseShardsCount;
+    int usersShardsCount;
+
+    /* Stores the key-value pairs of the database shards */
+    StorageEngine storage;
+    /* Splits the key-value pairs into shards, the innermost engine of storage */
+    ShardedStorageEngine shardedStorage;
+    /* Keeps large values compressed, the outermost engine of storage, null when values are stored as they are */
+    CompressingStorageEngine compressedStorage;
+    /* Stores user data for different user shards */
+    List<Map<String, String>> usersShards;
+
+    /* Locks for user shards */
+    List<ReentrantLock> usersLocks;
+    /* Get-when requests waiting for a condition */
+    WatchRegistry watches;
+    /* Log of the writes, null when the database is kept in memory only */
+    WriteAheadLog wal;
+    /* Directory of the snapshot and the logs, null when the database is kept in memory only */
+    Path dataDirectory;
+    /* Directory of the tables of the lsm engine, null with the other engines */
+    private final LsmDirectory lsmDirectory;
+    /* Generation of the log being written, incremented by every snapshot */
+    long logGeneration;
+    /* Only one snapshot is written at a time */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    /* Writes the periodic snapshots, null when they are disabled */
+    private java.util.concurrent.ScheduledExecutorService snapshotScheduler;
+    /* When each expiring key expires, in milliseconds since the epoch */
+    ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    /* Finds the keys whose deadline was reached */
+    private final TimingWheel expirations = new TimingWheel(EXPIRATION_TICK_MILLIS);
+    /* Removes the keys whose deadline was reached, every tick of the wheel */
+    private final java.util.concurrent.ScheduledExecutorService reaper;
+    /* Outcomes of the transactions */
+    private final java.util.concurrent.atomic.LongAdder committedTransactions = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder conflictedTransactions = new java.util.concurrent.atomic.LongAdder();
+
+    /* Types of the records of the write-ahead log */
+    private static final byte PUT_RECORD = 1;
+    private static final byte MULTI_PUT_RECORD = 2;
+    private static final byte REGISTER_RECORD = 3;
+    private static final byte EXPIRING_PUT_RECORD = 4;
+    private static final byte REMOVE_RECORD = 5;
+    private static final byte TRANSACTION_RECORD = 6;
+    /* A key moved to another shard of the lsm engine while resharding, with its stored value */
+    private static final byte MOVE_RECORD = 7;
+    /* Flag of the type of the records whose keys are UTF-8 bytes after their length, which
+       holds keys of any size; records without it, written before, have writeUTF keys */
+    private static final byte UTF8_KEYS = 0x40;
+
+    /* Resolution of the expiration of keys */
+    private static final long EXPIRATION_TICK_MILLIS = 10;
+
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    /**
+     * Constructor initializes the server database with the specified number of shards.
+     */
+    public ServerDatabase(int databaseShardsCount, int usersShardsCount) {
+        this(databaseShardsCount, usersShardsCount, "locking");
+    }
+
+    /**
+     * Constructor initializes the server database with the specified number of shards,
+     * storing the key-value pairs with the given storage engine (locking, concurrent, offheap or compact).
+     */
+    public ServerDatabase(int databaseShardsCount, int usersShardsCount, String storageType) {
+        this(databaseShardsCount, usersShardsCount, storageType, null, 0);
+    }
+
+    /**
+     * Constructor initializes the server database with the specified number of shards,
+     * storing the key-value pairs with the given storage engine. The lsm engine keeps its
+     * tables in the given directory, and opens the tables it left there in a previous run.
+     *
+     * @param lsmDirectory The directory of the lsm engine, ignored by the other engines.
+     * @param memtableBytes The total size of the memtables of the lsm engine, split between the shards.
+     */
+    public ServerDatabase(int databaseShardsCount, int usersShardsCount, String storageType, LsmDirectory lsmDirectory,
+                          long memtableBytes) {
+        this.databaseShardsCount = databaseShardsCount;
+        this.usersShardsCount = usersShardsCount;
+        this.lsmDirectory = storageType.equals("lsm") ? lsmDirectory : null;
+
+        this.shardedStorage = createStorage(storageType, databaseShardsCount, lsmDirectory, memtableBytes, this::syncLog);
+        this.storage = shardedStorage;
+        this.usersShards = new java.util.ArrayList<>();
+        this.usersLocks = new java.util.ArrayList<>();
+        
+        this.watches = new WatchRegistry();
+
+        for (int i = 0; i < usersShardsCount; i++) {
+            this.usersShards.add(new HashMap<>());
+            this.usersLocks.add(new ReentrantLock());
+        }
+
+        this.reaper = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleAtFixedRate(this::expireDue, EXPIRATION_TICK_MILLIS, EXPIRATION_TICK_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the database shards, each kept by a storage engine with the given name. The shards
+     * of the lsm engine keep their tables in subdirectories of the given directory, and start
+     * with the layout it holds, which may differ from the given number of shards.
+     *
+     * @param syncLog Forces the write-ahead log to disk before the lsm engine flushes a memtable.
+     */
+    static ShardedStorageEngine createStorage(String storageType, int databaseShardsCount, LsmDirectory lsmDirectory,
+                                              long memtableBytes, Runnable syncLog) {
+        switch (storageType) {
+            case "locking":
+                return new ShardedStorageEngine(databaseShardsCount, () -> new LockingStorageEngine(1));
+            case "concurrent":
+                return new ShardedStorageEngine(databaseShardsCount, () -> new ConcurrentStorageEngine(1));
+            case "offheap":
+                return new ShardedStorageEngine(databaseShardsCount, () -> new OffHeapStorageEngine(1));
+            case "compact":
+                PrefixDictionary prefixes = new PrefixDictionary();
+                return new ShardedStorageEngine(databaseShardsCount, () -> new CompactStorageEngine(prefixes));
+            case "lsm":
+                if (lsmDirectory == null) {
+                    throw new IllegalArgumentException("The lsm storage engine needs a directory.");
+                }
+                long shardMemtableBytes = Math.max(1 << 20, memtableBytes / databaseShardsCount);
+                return new ShardedStorageEngine(lsmDirectory.shardsCount(), lsmDirectory.targetCount(),
+                    shardIndex -> new LsmStorageEngine(lsmDirectory.shard(shardIndex), shardMemtableBytes, syncLog));
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + storageType);
+        }
+    }
+
+    /**
+     * Forces the write-ahead log to disk, if it is enabled.
+     */
+    private void syncLog() {
+        WriteAheadLog log = wal;
+        if (log != null) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Stores a single array for all the keys with the same value. Must be called before the
+     * database is used, and before limitMemory.
+     * 
+     * @throws IllegalArgumentException If the storage engine copies the values it stores,
+     *                                  so that there is no array to share.
+     */
+    public void deduplicateValues() {
+        if (!shardedStorage.storesArrays()) {
+            throw new IllegalArgumentException("Value deduplication needs a storage engine that keeps the values in the heap.");
+        }
+        this.storage = new DedupStorageEngine(storage);
+    }
+
+    /**
+     * Keeps the database within a memory budget, evicting keys chosen by the given policy.
+     * Must be called before the database is used.
+     * 
+     * @param budget The memory budget, in bytes.
+     * @param policyName "lru" or "tinylfu".
+     */
+    public void limitMemory(long budget, String policyName) {
+        this.storage = new EvictingStorageEngine(storage, budget, EvictionPolicy.create(policyName, budget), this::evicted);
+    }
+
+    /**
+     * Keeps large values compressed, so that they take less memory and are sent to the clients
+     * that compress frames as they are stored. Must be called before the database is used, and
+     * after deduplicateValues and limitMemory, so that they see the values as they are stored.
+     */
+    public void compressValues() {
+        this.compressedStorage = new CompressingStorageEngine(storage);
+        this.storage = compressedStorage;
+    }
+
+    /**
+     * Calculates the shard index for a given key based on the hash of the key.
+     */
+    public int getDatabaseShardIndex(String key) {
+        return StorageEngine.shardIndex(key, databaseShardsCount);
+    }
+
+    /**
+     * Calculates the shard index for a given user based on the hash of the username.
+     */
+    public int getUsersShardIndex(String key) {
+        return Math.floorMod(key.hashCode(), usersShardsCount);
+    }
+
+    /**
+     * Changes the number of database shards while the server keeps running. The keys whose
+     * shard changes are moved in the background of the calling thread, and reads and writes
+     * keep being served while they move. Snapshots wait for the move to finish.
+     * 
+     * @param shardsCount The new number of database shards.
+     */
+    public void reshard(int shardsCount) {
+        snapshotLock.lock();
+        try {
+            if (lsmDirectory != null && lsmDirectory.isMigrating()) {
+                // The migration left by the previous run goes first
+                moveShards(lsmDirectory.targetCount());
+            }
+            moveShards(shardsCount);
+        } catch (IOException e) {
+            Logger.log("Failed to reshard the tables: " + e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the keys to a new number of shards. The lsm engine records the migration in its
+     * directory first, and only records its end once the shards have been flushed, with the
+     * snapshot when there is a data directory, so a restart never reads keys from the wrong shards.
+     * Must be called while holding the snapshot lock.
+     */
+    private void moveShards(int shardsCount) throws IOException {
+        if (lsmDirectory != null && !lsmDirectory.isMigrating() && shardsCount > 0
+            && shardsCount != shardedStorage.shardsCount()) {
+            lsmDirectory.startMigration(shardsCount);
+        }
+        // A moved key may leave the tables of its old shard before it reaches those of its new
+        // one, so the log holds it until the tables are flushed
+        java.util.function.BiConsumer<String, byte[]> onMove = (key, value) -> { };
+        if (lsmDirectory != null && wal != null) {
+            onMove = (key, value) -> wal.append(encodeRecord(MOVE_RECORD, 0, Map.of(key, value)));
+        }
+        long start = System.nanoTime();
+        long moved = shardedStorage.reshard(shardsCount, onMove);
+        databaseShardsCount = shardsCount;
+        if (lsmDirectory != null && lsmDirectory.isMigrating()) {
+            if (dataDirectory != null) {
+                snapshot();
+            } else {
+                lsmDirectory.finishMigration();
+            }
+        }
+        Logger.log("Resharded to " + shardsCount + " shards in " + (System.nanoTime() - start) / 1_000_000
+            + " ms, moved " + moved + " keys.", Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Gets the value associated with a key.
+     */
+    public byte[] get(String key) {
+        byte[] value = storage.get(key);
+        if (value != null && isExpired(key, System.currentTimeMillis())) {
+            expire(key);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Gets the value of a key as it is kept compressed, to be sent in a compressed frame.
+     *
+     * @return The value as stored by CompressingStorageEngine, or null if values are not kept
+     *         compressed, the key is missing or expired, or its value is not compressed.
+     */
+    public byte[] getCompressed(String key) {
+        if (compressedStorage == null) {
+            return null;
+        }
+        byte[] stored = compressedStorage.getCompressed(key);
+        return stored != null && isExpired(key, System.currentTimeMillis()) ? null : stored;
+    }
+
+    /**
+     * Walks the pairs whose keys are in a range, in ascending key order, skipping the keys
+     * that expired. The walk does not block writers and may or may not see the writes made
+     * while it runs.
+     * 
+     * @param startKey The first key of the range, inclusive.
+     * @param endKey The end of the range, exclusive, or null for a range without end.
+     * @return An iterator over the pairs of the range.
+     */
+    public java.util.Iterator<Map.Entry<String, byte[]>> scan(String startKey, String endKey) {
+        long now = System.currentTimeMillis();
+        return java.util.stream.StreamSupport.stream(java.util.Spliterators.spliteratorUnknownSize(
+                shardedStorage.scan(startKey, endKey), java.util.Spliterator.ORDERED), false)
+            .filter(pair -> !isExpired(pair.getKey(), now))
+            .map(pair -> compressedStorage == null ? pair
+                : Map.entry(pair.getKey(), CompressingStorageEngine.decode(pair.getValue())))
+            .iterator();
+    }
+
+    /**
+     * Gets statistics about the database, such as the memory used by the storage engine, and
+     * about the frames the connections sent and compressed and the buffers that held them.
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new java.util.LinkedHashMap<>();
+        stats.put("transactions.committed", committedTransactions.sum());
+        stats.put("transactions.conflicts", conflictedTransactions.sum());
+        stats.putAll(TaggedConnection.stats());
+        stats.putAll(Compression.stats());
+        stats.putAll(BufferPool.DEFAULT.stats());
+        stats.putAll(storage.stats());
+        return stats;
+    }
+
+    /**
+     * Gets the values associated with a set of keys.
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        Map<String, byte[]> pairs = storage.multiGet(keys);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            if (pair.getValue() != null && isExpired(pair.getKey(), now)) {
+                expire(pair.getKey());
+                pair.setValue(null);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Puts a key-value pair and returns the get-when requests whose condition now holds.
+     * When the write-ahead log is enabled, returns once the write is logged.
+     */
+    public List<WatchRegistry.Watch> put(String key, byte[] value) throws IOException {
+        return put(key, value, 0);
+    }
+
+    /**
+     * Puts a key-value pair that expires after the given time, or never if it is 0,
+     * and returns the get-when requests whose condition now holds.
+     * When the write-ahead log is enabled, returns once the write is logged. If the write
+     * fails, the get-when requests it already took from the registry are answered before
+     * the failure is thrown, since the value they wait for may already be visible.
+     */
+    public List<WatchRegistry.Watch> put(String key, byte[] value, long ttlMillis) throws IOException {
+        List<WatchRegistry.Watch> ready = new java.util.ArrayList<>();
+        long deadline = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        long[] sequence = new long[1];
+        try {
+            storage.compute(key, (k, current) -> {
+                if (wal != null) {
+                    sequence[0] = wal.append(deadline > 0
+                        ? encodeRecord(EXPIRING_PUT_RECORD, deadline, Map.of(k, value))
+                        : encodeRecord(PUT_RECORD, 0, Map.of(k, value)));
+                }
+                setDeadline(k, deadline);
+                ready.addAll(watches.match(k, value));
+                return value;
+            });
+            if (wal != null) {
+                wal.sync(sequence[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            completeWatches(ready);
+            throw e;
+        }
+        return ready;
+    }
+
+    /**
+     * Puts multiple key-value pairs and returns the get-when requests whose condition now holds.
+     * When the write-ahead log is enabled, returns once the write is logged.
+     */
+    public List<WatchRegistry.Watch> multiPut(Map<String, byte[]> pairs) throws IOException {
+        return multiPut(pairs, 0);
+    }
+
+    /**
+     * Puts multiple key-value pairs that expire after the given time, or never if it is 0,
+     * and returns the get-when requests whose condition now holds.
+     * When the write-ahead log is enabled, returns once the write is logged. If the write
+     * fails, the get-when requests it already took from the registry are answered before
+     * the failure is thrown.
+     */
+    public List<WatchRegistry.Watch> multiPut(Map<String, byte[]> pairs, long ttlMillis) throws IOException {
+        List<WatchRegistry.Watch> ready = new java.util.ArrayList<>();
+        long deadline = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        long[] sequence = new long[1];
+        try {
+            storage.multiPut(pairs, (k, value) -> {
+                // Every shard is already locked on the first write, log the whole operation as one record
+                if (wal != null && sequence[0] == 0) {
+                    sequence[0] = wal.append(encodeRecord(deadline > 0 ? EXPIRING_PUT_RECORD : MULTI_PUT_RECORD, deadline, pairs));
+                }
+                setDeadline(k, deadline);
+                ready.addAll(watches.match(k, value));
+            });
+            if (wal != null && sequence[0] != 0) {
+                wal.sync(sequence[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            completeWatches(ready);
+            throw e;
+        }
+        return ready;
+    }
+
+    /**
+     * Replaces the value of a key with the given value if its current value is the expected one.
+     * When the write-ahead log is enabled, returns once the write is logged.
+     * 
+     * @param key The key.
+     * @param expected The expected value, or null if the key is expected to be missing.
+     * @param value The new value, or null to remove the key.
+     * @param ttlMillis The time until the new value expires, or 0 if it does not expire.
+     * @return true if the value was replaced.
+     */
+    public boolean compareAndSet(String key, byte[] expected, byte[] value, long ttlMillis) throws IOException {
+        byte[] previous = update(key, current -> java.util.Arrays.equals(current, expected) ? value : current, ttlMillis);
+        return java.util.Arrays.equals(previous, expected);
+    }
+
+    /**
+     * Adds a number to the value of a key, which holds an integer written in decimal digits.
+     * A missing key counts as 0. The key keeps its deadline, if it has one.
+     * When the write-ahead log is enabled, returns once the write is logged.
+     * 
+     * @param key The key.
+     * @param delta The number to add.
+     * @return The new value of the key.
+     * @throws NumberFormatException If the value of the key is not an integer.
+     * @throws ArithmeticException If the new value does not fit in a long.
+     */
+    public long increment(String key, long delta) throws IOException {
+        long[] result = new long[1];
+        update(key, current -> {
+            long number = current == null ? 0 : Long.parseLong(new String(current, StandardCharsets.US_ASCII));
+            result[0] = Math.addExact(number, delta);
+            return Long.toString(result[0]).getBytes(StandardCharsets.US_ASCII);
+        }, -1);
+        return result[0];
+    }
+
+    /**
+     * Puts a key-value pair unless the key already has a value.
+     * When the write-ahead log is enabled, returns once the write is logged.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @param ttlMillis The time until the value expires, or 0 if it does not expire.
+     * @return The current value of the key, or null if the value was stored.
+     */
+    public byte[] putIfAbsent(String key, byte[] value, long ttlMillis) throws IOException {
+        return update(key, current -> current == null ? value : current, ttlMillis);
+    }
+
+    /**
+     * Commits a transaction: writes its keys if every key it read still has the value it read,
+     * checked and written while no other operation can update any of its keys. Keys that
+     * expired count as missing, and the keys written no longer expire.
+     * When the write-ahead log is enabled, returns once the writes are logged.
+     * 
+     * @param reads The keys read by the transaction, with the values read, or null for keys that were missing.
+     * @param writes The keys written by the transaction, with their new values, or null to remove them.
+     * @return true if the transaction was committed, false if a key it read has changed.
+     */
+    public boolean commit(Map<String, byte[]> reads, Map<String, byte[]> writes) throws IOException {
+        List<WatchRegistry.Watch> ready = new java.util.ArrayList<>();
+        Set<String> keys = new java.util.HashSet<>(reads.keySet());
+        keys.addAll(writes.keySet());
+        boolean[] committed = new boolean[1];
+        long[] sequence = new long[1];
+        try {
+            storage.multiCompute(keys, current -> {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String, byte[]> read : reads.entrySet()) {
+                    byte[] value = current.get(read.getKey());
+                    if (!java.util.Arrays.equals(value != null && isExpired(read.getKey(), now) ? null : value, read.getValue())) {
+                        return Map.of();
+                    }
+                }
+                committed[0] = true;
+                return writes;
+            }, (k, value) -> {
+                // Every key is already locked on the first write, log the whole transaction as one record
+                if (wal != null && sequence[0] == 0) {
+                    sequence[0] = wal.append(encodeRecord(TRANSACTION_RECORD, 0, writes));
+                }
+                setDeadline(k, 0);
+                ready.addAll(watches.match(k, value));
+            });
+            if (wal != null && sequence[0] != 0) {
+                wal.sync(sequence[0]);
+            }
+        } finally {
+            // Answered even if the log fails, the writes are already visible
+            completeWatches(ready);
+        }
+        (committed[0] ? committedTransactions : conflictedTransactions).increment();
+        return committed[0];
+    }
+
+    /**
+     * Atomically replaces the value of a key with one calculated from its current value, and
+     * answers the get-when requests whose condition now holds. Keys that expired count as
+     * missing. The resulting value is logged as a put or a removal, so replaying the log
+     * leaves the same value whatever operation calculated it.
+     * 
+     * @param key The key.
+     * @param update Receives the current value, or null, and returns the new value, null to
+     *               remove the key, or the current value itself to leave the key untouched.
+     * @param ttlMillis The time until the new value expires, 0 if it does not expire, or -1 to
+     *                  keep the deadline of the current value.
+     * @return The value before the update, or null if there was none.
+     */
+    private byte[] update(String key, java.util.function.UnaryOperator<byte[]> update, long ttlMillis) throws IOException {
+        List<WatchRegistry.Watch> ready = new java.util.ArrayList<>();
+        byte[][] previous = new byte[1][];
+        long[] sequence = new long[1];
+        try {
+            storage.compute(key, (k, current) -> {
+                long now = System.currentTimeMillis();
+                byte[] live = current != null && isExpired(k, now) ? null : current;
+                previous[0] = live;
+                byte[] value = update.apply(live);
+                if (value == live) {
+                    return current;
+                }
+
+                long deadline = value == null ? 0
+                    : ttlMillis > 0 ? now + ttlMillis
+                    : ttlMillis < 0 && live != null ? deadlines.getOrDefault(k, 0L) : 0;
+                if (wal != null) {
+                    sequence[0] = wal.append(value == null ? encodeRecord(REMOVE_RECORD, 0, Map.of(k, new byte[0]))
+                        : deadline > 0 ? encodeRecord(EXPIRING_PUT_RECORD, deadline, Map.of(k, value))
+                        : encodeRecord(PUT_RECORD, 0, Map.of(k, value)));
+                }
+                setDeadline(k, deadline);
+                ready.addAll(watches.match(k, value));
+                return value;
+            });
+            if (wal != null && sequence[0] != 0) {
+                wal.sync(sequence[0]);
+            }
+        } finally {
+            // Answered even if the log fails, the write is already visible
+            completeWatches(ready);
+        }
+        return previous[0];
+    }
+
+    /**
+     * Sets when a key expires, or makes it permanent if the deadline is 0.
+     * Called while holding the lock of the key.
+     */
+    private void setDeadline(String key, long deadline) {
+        if (deadline > 0) {
+            deadlines.put(key, deadline);
+            expirations.schedule(key, deadline);
+        } else if (!deadlines.isEmpty()) {
+            deadlines.remove(key);
+        }
+    }
+
+    /**
+     * Checks whether a key has reached its deadline.
+     */
+    private boolean isExpired(String key, long now) {
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now;
+    }
+
+    /**
+     * Removes a key if it has reached its deadline, answering the get-when requests waiting
+     * for it to be missing. The deadline is checked again under the lock of the key, since
+     * the key may have been written again in the meantime.
+     */
+    private void expire(String key) {
+        List<WatchRegistry.Watch> ready = new java.util.ArrayList<>();
+        storage.compute(key, (k, current) -> {
+            if (!isExpired(k, System.currentTimeMillis())) {
+                return current;
+            }
+            deadlines.remove(k);
+            if (current == null) {
+                return null;
+            }
+            ready.addAll(watches.match(k, null));
+            return null;
+        });
+        completeWatches(ready);
+    }
+
+    /**
+     * Forgets the deadline of a key evicted to keep the database within its memory budget, and
+     * takes the get-when requests waiting for it to be missing, like expire. Called while
+     * holding the lock of the key.
+     *
+     * @return Answers the requests, once the lock of the key is released.
+     */
+    private Runnable evicted(String key) {
+        deadlines.remove(key);
+        List<WatchRegistry.Watch> ready = watches.match(key, null);
+        return ready.isEmpty() ? null : () -> completeWatches(ready);
+    }
+
+    /**
+     * Removes the keys whose deadline was reached. Runs periodically on the expiration thread.
+     */
+    private void expireDue() {
+        try {
+            long now = System.currentTimeMillis();
+            for (TimingWheel.Entry entry : expirations.advance(now)) {
+                // Keys written again since they were scheduled have a different deadline
+                Long deadline = deadlines.get(entry.key);
+                if (deadline != null && deadline == entry.deadline) {
+                    expire(entry.key);
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.log("Failed to expire keys: " + e.getMessage(), Logger.LogLevel.ERROR);
+        }
+    }
+
+    /**
+     * Answers the get-when requests whose condition was met by a write.
+     * Called after the write released its shard locks.
+     * 
+     * @param ready The requests to answer.
+     */
+    public void completeWatches(List<WatchRegistry.Watch> ready) {
+        for (WatchRegistry.Watch watch : ready) {
+            try {
+                byte[] result = get(watch.key);
+                watch.sender.send(watch.tag, RequestType.GetWhenRequest.getValue(), result != null ? result : new byte[0]);
+                Logger.log("Sent result for key: " + watch.key, Logger.LogLevel.INFO);
+            } catch (IOException e) {
+                Logger.log("Failed to send result: " + e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Registers a new user.
+     * When the write-ahead log is enabled, returns once the registration is logged.
+     * 
+     * @return true if the user was registered, false if the username is taken.
+     */
+    public boolean register(String username, String password) throws IOException {
+        long sequence;
+        int userShardIndex = getUsersShardIndex(username);
+        usersLocks.get(userShardIndex).lock();
+        try {
+            Map<String, String> currentShard = usersShards.get(userShardIndex);
+            if (currentShard.containsKey(username)) {
+                return false;
+            }
+            currentShard.put(username, password);
+            sequence = wal != null ? wal.append(encodeRecord(REGISTER_RECORD, 0, Map.of(username, password.getBytes(StandardCharsets.UTF_8)))) : 0;
+        } finally {
+            usersLocks.get(userShardIndex).unlock();
+        }
+        if (wal != null) {
+            wal.sync(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a get-when request unless its condition already holds.
+     * The check and the registration are atomic with respect to writes of the condition key.
+     * 
+     * @return true if the condition already holds, false if the request was registered.
+     */
+    public boolean watch(String keyCond, WatchRegistry.Watch watch) {
+        boolean[] holds = new boolean[1];
+        storage.compute(keyCond, (k, current) -> {
+            byte[] value = current != null && isExpired(k, System.currentTimeMillis()) ? null : current;
+            if (WatchRegistry.holds(watch.expected, value)) {
+                holds[0] = true;
+            } else {
+                watches.register(k, watch);
+            }
+            return current;
+        });
+        return holds[0];
+    }
+
+    /**
+     * Opens the data directory. The database is first rebuilt from the latest snapshot and the
+     * logs written after it, then new writes are appended to the newest log. The lsm engine
+     * starts from the tables it flushed, and the logs replay the writes made after them.
+     * 
+     * @param directory The directory that holds the snapshot and the logs.
+     * @param fsyncPolicy "always", "never" or an interval in milliseconds.
+     */
+    public void openDataDirectory(Path directory, String fsyncPolicy) throws IOException {
+        this.dataDirectory = directory;
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        long firstGeneration = 0;
+        if (Files.exists(snapshotFile)) {
+            long start = System.nanoTime();
+            firstGeneration = Snapshot.load(snapshotFile,
+                (key, value) -> storage.compute(key, (k, current) -> value),
+                (username, password) -> {
+                    int userShardIndex = getUsersShardIndex(username);
+                    usersLocks.get(userShardIndex).lock();
+                    try {
+                        usersShards.get(userShardIndex).put(username, new String(password, StandardCharsets.UTF_8));
+                    } finally {
+                        usersLocks.get(userShardIndex).unlock();
+                    }
+                },
+                (key, deadline) -> setDeadline(key, java.nio.ByteBuffer.wrap(deadline).getLong()));
+            Logger.log("Loaded snapshot in " + (System.nanoTime() - start) / 1_000_000 + " ms.", Logger.LogLevel.INFO);
+        }
+
+        // Logs older than the snapshot are already covered by it
+        List<Long> generations = new java.util.ArrayList<>();
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("wal-") && name.endsWith(".log")) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // Not one of our logs
+                    }
+                }
+            }
+        }
+        java.util.Collections.sort(generations);
+        long lastGeneration = firstGeneration;
+        for (long generation : generations) {
+            if (generation < firstGeneration) {
+                Files.delete(directory.resolve(logName(generation)));
+            } else if (generation > lastGeneration) {
+                lastGeneration = generation;
+            }
+        }
+        for (long generation : generations) {
+            if (generation >= firstGeneration && generation < lastGeneration) {
+                WriteAheadLog.replay(directory.resolve(logName(generation)), this::replay);
+            }
+        }
+
+        this.logGeneration = lastGeneration;
+        this.wal = new WriteAheadLog(directory.resolve(logName(lastGeneration)), fsyncPolicy, this::replay);
+
+        // The tables of the lsm engine may have been left in the middle of a migration or with
+        // another number of shards
+        if (lsmDirectory != null && (lsmDirectory.isMigrating() || shardedStorage.shardsCount() != databaseShardsCount)) {
+            reshard(databaseShardsCount);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the database to the data directory and deletes the logs it covers.
+     * Writers keep running while it is written, only waiting while their shard is copied. The
+     * shards of the lsm engine are flushed to their tables instead of being copied.
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            // Writes logged from now on go to a new log, which is replayed after the snapshot.
+            // Each shard is copied after every write logged to the old log has been applied to it,
+            // and replaying a write that the snapshot already holds leaves the same value.
+            long generation = logGeneration + 1;
+            wal.rotate(dataDirectory.resolve(logName(generation)));
+            logGeneration = generation;
+
+            long start = System.nanoTime();
+            List<java.util.function.Supplier<Map<String, byte[]>>> databaseSections = new java.util.ArrayList<>();
+            if (lsmDirectory != null) {
+                // The tables then hold every write of the old log, and the migration they were
+                // in is over, so the directory must say so before the old log is deleted
+                shardedStorage.flush();
+                if (!shardedStorage.isMigrating()) {
+                    lsmDirectory.finishMigration();
+                }
+            } else {
+                for (int i = 0; i < storage.shardsCount(); i++) {
+                    int shardIndex = i;
+                    databaseSections.add(() -> storage.copyShard(shardIndex));
+                }
+            }
+            List<java.util.function.Supplier<Map<String, byte[]>>> userSections = new java.util.ArrayList<>();
+            for (int i = 0; i < usersShardsCount; i++) {
+                int shardIndex = i;
+                userSections.add(() -> {
+                    Map<String, byte[]> users = new HashMap<>();
+                    usersLocks.get(shardIndex).lock();
+                    try {
+                        for (Map.Entry<String, String> user : usersShards.get(shardIndex).entrySet()) {
+                            users.put(user.getKey(), user.getValue().getBytes(StandardCharsets.UTF_8));
+                        }
+                    } finally {
+                        usersLocks.get(shardIndex).unlock();
+                    }
+                    return users;
+                });
+            }
+
+            // The previous snapshot is only replaced once the new one is complete
+            Path temporaryFile = dataDirectory.resolve(SNAPSHOT_FILE + ".tmp");
+            java.util.function.Supplier<Map<String, byte[]>> deadlineSection = () -> {
+                Map<String, byte[]> copy = new HashMap<>();
+                for (Map.Entry<String, Long> deadline : deadlines.entrySet()) {
+                    copy.put(deadline.getKey(), java.nio.ByteBuffer.allocate(8).putLong(deadline.getValue()).array());
+                }
+                return copy;
+            };
+            Snapshot.write(temporaryFile, generation, databaseSections, userSections, List.of(deadlineSection));
+            Files.move(temporaryFile, dataDirectory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Delete the logs covered by the snapshot, newest first
+            long old = generation - 1;
+            while (old >= 0 && Files.deleteIfExists(dataDirectory.resolve(logName(old)))) {
+                old--;
+            }
+            Logger.log("Wrote snapshot in " + (System.nanoTime() - start) / 1_000_000 + " ms.", Logger.LogLevel.INFO);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot periodically in a background thread.
+     * 
+     * @param intervalSeconds The time between snapshots, in seconds.
+     */
+    public void startSnapshots(long intervalSeconds) {
+        snapshotScheduler = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                Logger.log("Failed to write the snapshot: " + e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        }, intervalSeconds, intervalSeconds, java.util.concurrent.TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the expiration of keys and closes the data directory, if any. The database must
+     * not be used afterwards.
+     */
+    public void close() throws IOException {
+        reaper.shutdown();
+        try {
+            reaper.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeDataDirectory();
+    }
+
+    /**
+     * Stops the snapshots, writes the pending records of the write-ahead log and closes it.
+     */
+    public void closeDataDirectory() throws IOException {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    /**
+     * Gets the name of the log file of a generation.
+     */
+    private static String logName(long generation) {
+        return "wal-" + generation + ".log";
+    }
+
+    /**
+     * Encodes a record of the write-ahead log.
+     * 
+     * @param type The type of the record.
+     * @param deadline When the keys expire, only written for expiring puts.
+     * @param pairs The key-value pairs written, or the username and password registered.
+     *              Only transactions may have null values, for the keys they remove.
+     */
+    private static byte[] encodeRecord(byte type, long deadline, Map<String, byte[]> pairs) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(baos)) {
+            // TYPE | [DEADLINE] | N PAIRS | KEY LENGTH | KEY | VALUE LENGTH | VALUE | ..., with a length of -1 for removed keys
+            out.writeByte(type | UTF8_KEYS);
+            if (type == EXPIRING_PUT_RECORD) {
+                out.writeLong(deadline);
+            }
+            out.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                byte[] key = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                if (pair.getValue() == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(pair.getValue().length);
+                out.write(pair.getValue());
+            }
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies a record of the write-ahead log while the database is being rebuilt.
+     * 
+     * @param record The contents of the record.
+     */
+    private void replay(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte flags = in.readByte();
+            byte type = (byte) (flags & ~UTF8_KEYS);
+            long deadline = type == EXPIRING_PUT_RECORD ? in.readLong() : 0;
+            int numberOfPairs = in.readInt();
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < numberOfPairs; i++) {
+                String key;
+                if ((flags & UTF8_KEYS) != 0) {
+                    byte[] keyBytes = new byte[in.readInt()];
+                    in.readFully(keyBytes);
+                    key = new String(keyBytes, StandardCharsets.UTF_8);
+                } else {
+                    key = in.readUTF();
+                }
+                int length = in.readInt();
+                byte[] value = length < 0 ? null : new byte[length];
+                if (value != null) {
+                    in.readFully(value);
+                }
+                pairs.put(key, value);
+            }
+
+            switch (type) {
+                case PUT_RECORD:
+                case MULTI_PUT_RECORD:
+                case EXPIRING_PUT_RECORD:
+                    // Keys whose deadline passed while the server was down expire right away
+                    storage.multiPut(pairs, (k, value) -> setDeadline(k, deadline));
+                    break;
+                case REMOVE_RECORD:
+                    for (String key : pairs.keySet()) {
+                        storage.compute(key, (k, current) -> {
+                            setDeadline(k, 0);
+                            return null;
+                        });
+                    }
+                    break;
+                case TRANSACTION_RECORD:
+                    storage.multiCompute(pairs.keySet(), current -> pairs, (k, value) -> setDeadline(k, 0));
+                    break;
+                case MOVE_RECORD:
+                    // The value as the shards store it, which keeps its deadline
+                    for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                        shardedStorage.compute(pair.getKey(), (k, current) -> pair.getValue());
+                    }
+                    break;
+                case REGISTER_RECORD:
+                    for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                        String username = pair.getKey();
+                        usersShards.get(getUsersShardIndex(username)).put(username, new String(pair.getValue(), StandardCharsets.UTF_8));
+                    }
+                    break;
+                default:
+                    Logger.log("Unknown log record type: " + type, Logger.LogLevel.ERROR);
+            }
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+}
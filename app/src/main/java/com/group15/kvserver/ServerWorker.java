@@ -0,0 +1,822 @@
+package com.group15.kvserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * A class that represents a worker that handles communication with a client.
+ * This class handles the logic for processing different requests sent by the client.
+ */
+class ServerWorker implements Runnable {
+    /* Scans send their pairs in pages of at most this many pairs */
+    private static final int SCAN_PAGE_PAIRS = 256;
+    /* Scans send a page once it holds this many bytes */
+    private static final int SCAN_PAGE_BYTES = 64 * 1024;
+    /* Initial size of the buffer of a response, which grows for larger values */
+    private static final int RESPONSE_BUFFER_SIZE = 512;
+    /* Largest value that can be streamed, the largest array the JVM allocates */
+    static final int MAX_STREAMED_VALUE = Integer.MAX_VALUE - 8;
+    /* Values a connection may be receiving in chunks at once */
+    private static final int MAX_INCOMING_STREAMS = 16;
+    /* Streams a connection may keep open, counting the rejected ones whose chunks are still dropped */
+    private static final int MAX_STREAM_ENTRIES = 64 * MAX_INCOMING_STREAMS;
+    /* Every request type by value, since values() copies the array on every call */
+    private static final RequestType[] REQUEST_TYPES = RequestType.values();
+
+    private Socket socket;
+    private ServerDatabase database;
+    private final Demultiplexer demultiplexer;
+    /* Destination of the responses, either the demultiplexer or a non-blocking connection */
+    private final FrameSender sender;
+    /* Condition keys this connection registered get-when requests for */
+    private final Set<String> watchedKeys = ConcurrentHashMap.newKeySet();
+    /* The version of the protocol of the frame being processed, read from the sender for every frame */
+    private Protocol protocol = Protocol.V1;
+    /* Whether the response of the frame being processed holds compressed data, set by its handler */
+    private boolean responseCompressed = false;
+    /* Values being received and sent in chunks, by the tag of their stream */
+    private final Map<Integer, IncomingStream> incomingStreams = new HashMap<>();
+    private final Map<Integer, OutgoingStream> outgoingStreams = new HashMap<>();
+    /* Number of incoming streams that were not rejected */
+    private int receivingStreams = 0;
+    /* Largest value a client may stream */
+    private final int maxStreamedValue;
+    /* Set when the connection must be closed, since a request could not be answered */
+    private boolean failed = false;
+
+    /**
+     * A value received in chunks, which is put once its last chunk arrives. A value whose length
+     * was announced is copied into place as its chunks arrive, in an array that grows with them
+     * up to that length, so that a length announced by a client never reserves more memory than
+     * the chunks it sends; otherwise the chunks are kept and joined with the last one. A rejected
+     * value keeps its entry, without its chunks, until the client sends the last chunk or cancels
+     * the stream, so that the chunks already in flight are not taken for a new stream.
+     */
+    private static class IncomingStream {
+        final String key;
+        /* The length of the value, or -1 if it was not announced */
+        final int announcedLength;
+        /* The value, if its length was announced, or the chunks received so far */
+        byte[] value;
+        List<byte[]> chunks;
+        long length = 0;
+        boolean rejected = false;
+
+        IncomingStream(String key, int announcedLength) {
+            this.key = key;
+            this.announcedLength = announcedLength;
+            if (announcedLength >= 0) {
+                this.value = new byte[Math.min(announcedLength, Protocol.STREAM_WINDOW * Protocol.STREAM_CHUNK_SIZE)];
+            } else {
+                this.chunks = new java.util.ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * A value sent in chunks, as long as the client has credits for them.
+     */
+    private static class OutgoingStream {
+        final byte[] value;
+        int offset;
+        int credits;
+
+        OutgoingStream(byte[] value, int offset, int credits) {
+            this.value = value;
+            this.offset = offset;
+            this.credits = credits;
+        }
+    }
+
+    /**
+     * Constructor initializes the worker with the client's socket and server database.
+     *
+     * @param sendDelayNanos How long a response may wait to be written with the ones that follow it.
+     * @param acceptsCompression Whether to compress frames if the client asks for it.
+     * @param maxStreamedValue The largest value the client may stream, in bytes.
+     */
+    public ServerWorker(Socket socket, ServerDatabase database, ThreadFactory threadFactory, long sendDelayNanos,
+                        boolean acceptsCompression, int maxStreamedValue) throws IOException {
+        this.demultiplexer = new Demultiplexer(new TaggedConnection(socket, sendDelayNanos, acceptsCompression), threadFactory);
+        this.sender = demultiplexer;
+        this.database = database;
+        this.socket = socket;
+        this.maxStreamedValue = maxStreamedValue;
+    }
+
+    /**
+     * Constructor initializes a worker that does not own a socket. Frames are handed to it
+     * through processFrame and the responses are written to the given sender.
+     *
+     * @param maxStreamedValue The largest value the client may stream, in bytes.
+     */
+    public ServerWorker(FrameSender sender, ServerDatabase database, int maxStreamedValue) {
+        this.demultiplexer = null;
+        this.sender = sender;
+        this.database = database;
+        this.socket = null;
+        this.maxStreamedValue = maxStreamedValue;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean running = true;
+            while (running) {
+                if (socket.isClosed()) {
+                    running = false;
+                    break;
+                }
+
+                TaggedConnection.Frame frame;
+                try {
+                    // Receive a request frame from the client
+                    frame = demultiplexer.receiveAny();
+                } catch (InterruptedException e) {
+                    Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                    break;
+                }
+
+                running = processFrame(frame);
+            }
+        }
+        catch (IOException e) {
+            Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            cancelWatches();
+            try {
+                demultiplexer.close();
+                socket.close();
+                Logger.log("Socket closed.", Logger.LogLevel.INFO);
+            } catch (IOException e) {
+                Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+            } finally {
+                Server.signalClientDisconnection();
+            }
+        }
+    }
+
+    /**
+     * Processes a single request frame and sends its response, if any. The pooled buffer of
+     * the frame, if it has one, is released once the request is handled.
+     * 
+     * @param frame The request frame received from the client.
+     * @return false if the client disconnected or the connection must be closed, true otherwise.
+     * @throws IOException If an error occurs while sending the response.
+     */
+    public boolean processFrame(TaggedConnection.Frame frame) throws IOException {
+        PooledBuffer in = frame.buffer != null ? frame.buffer : PooledBuffer.wrap(frame.data);
+        try {
+            // Version 1 repeats the request type at the start of the data
+            protocol = Protocol.of(sender.protocolVersion());
+            short requestType = protocol == Protocol.V1 ? in.readShort() : frame.requestType;
+            if (requestType == RequestType.DisconnectRequest.getValue()) {
+                System.out.println("Client requested disconnect.");
+                sender.send(frame.tag, requestType, new byte[0]);
+                return false;
+            }
+            if (requestType >= 0 && requestType < REQUEST_TYPES.length) {
+                RequestType r = REQUEST_TYPES[requestType];
+                responseCompressed = false;
+                PooledBuffer response = handleRequest(r, in, frame.tag);
+                if (response != null) {
+                    sender.send(frame.tag, (short) (responseCompressed ? r.getValue() | Protocol.COMPRESSED : r.getValue()),
+                        response);
+                }
+                if (r == RequestType.GetStreamRequest || r == RequestType.StreamCreditRequest) {
+                    sendChunks(frame.tag);
+                }
+            } else {
+                Logger.log("Invalid request type: " + requestType, Logger.LogLevel.ERROR);
+            }
+        }
+        catch (EOFException e) {
+            // Client disconnects
+            return false;
+        } finally {
+            in.release();
+        }
+        return !failed;
+    }
+
+    /**
+     * Removes the get-when requests of this connection that are still waiting.
+     */
+    public void cancelWatches() {
+        database.watches.cancel(sender, watchedKeys);
+    }
+
+    /**
+     * Handles different types of requests from the client and returns the appropriate response,
+     * in a pooled buffer whose first TaggedConnection.MAX_HEADER_SIZE bytes are left for the header.
+     * The fields are encoded with the protocol of the connection. Returns null if the request
+     * is not answered now, and also if it failed, in which case processFrame closes the connection.
+     */
+    public PooledBuffer handleRequest(RequestType requestType, PooledBuffer in, int tag){
+        PooledBuffer out = BufferPool.DEFAULT.acquire(RESPONSE_BUFFER_SIZE);
+        out.reserve(TaggedConnection.MAX_HEADER_SIZE);
+        try {
+            switch (requestType) {
+                case AuthRequest:
+                    handleAuthRequest(in, out);
+                    break;
+                case RegisterRequest:
+                    handleRegisterRequest(in, out);
+                    break;
+                case PutRequest:
+                    handlePutRequest(in, out);
+                    break;
+                case GetRequest:
+                    handleGetRequest(in, out);
+                    break;
+                case MultiPutRequest:
+                    handleMultiPutRequest(in, out);
+                    break;
+                case MultiGetRequest:
+                    handleMultiGetRequest(in, out);
+                    break;
+                case GetWhenRequest:
+                    int flag = handleGetWhenRequest(in, out, tag);
+                    if (flag == -1) {
+                        out.release();
+                        return null;
+                    }
+                    break;
+                case ScanRequest:
+                    handleScanRequest(in, out, tag);
+                    break;
+                case CompareAndSetRequest:
+                    handleCompareAndSetRequest(in, out);
+                    break;
+                case IncrementRequest:
+                    handleIncrementRequest(in, out);
+                    break;
+                case PutIfAbsentRequest:
+                    handlePutIfAbsentRequest(in, out);
+                    break;
+                case TransactionRequest:
+                    handleTransactionRequest(in, out);
+                    break;
+                case PutStreamRequest:
+                    if (!handlePutStreamRequest(in, out, tag)) {
+                        out.release();
+                        return null;
+                    }
+                    break;
+                case GetStreamRequest:
+                    handleGetStreamRequest(in, out, tag);
+                    break;
+                case StreamCreditRequest:
+                    handleStreamCreditRequest(in, tag);
+                    out.release();
+                    return null;
+                default:
+                    break;
+            }
+            return out;
+        } catch (IOException | RuntimeException e) {
+            // The request cannot be answered, such as a write the log failed to sync, so the
+            // connection is closed for its client to fail the request instead of waiting for it
+            Logger.log("Failed to handle " + requestType + ": " + e, Logger.LogLevel.ERROR);
+            failed = true;
+            out.release();
+            return null;
+        }
+    }
+
+    /*
+     * Handles an authentication request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleAuthRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        String username = protocol.readString(in);
+        String password = protocol.readString(in);
+        int userShardIndex = database.getUsersShardIndex(username);
+        database.usersLocks.get(userShardIndex).lock();
+        try {
+            Map<String, String> currentShard = database.usersShards.get(userShardIndex);
+            if (currentShard.containsKey(username) && currentShard.get(username).equals(password)) {
+                out.writeBoolean(true);
+            }
+        } 
+        finally {
+            database.usersLocks.get(userShardIndex).unlock();
+        }
+    }
+
+    /*
+     * Handles a registration request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleRegisterRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        String username = protocol.readString(in);
+        String password = protocol.readString(in);
+        out.writeBoolean(database.register(username, password));
+    }
+
+    /*
+     * Handles a put request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handlePutRequest(PooledBuffer in, PooledBuffer out) throws IOException{
+        // KEY | VALUE LENGTH | VALUE | [TTL MILLIS]
+        String key = protocol.readString(in);
+        byte[] value = protocol.readValue(in);
+        long ttlMillis = protocol.readTtl(in);
+
+        put(key, value, ttlMillis);
+    }
+
+    /*
+     * Handles a get request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleGetRequest(PooledBuffer in, PooledBuffer out) throws IOException{
+        // KEY
+        String key = protocol.readString(in);
+        byte[] stored = sender.compressesFrames() ? database.getCompressed(key) : null;
+        if (stored != null) {
+            // The data of a compressed frame, whose Deflate stream is the stored one after a
+            // stored block with the value size: ORIGINAL LENGTH | VALUE SIZE | DEFLATED VALUE
+            int length = CompressingStorageEngine.originalLength(stored);
+            byte[] size = new byte[Protocol.varintSize(length + 1)];
+            Protocol.putVarint(size, 0, length + 1);
+            out.writeVarint(size.length + length);
+            Compression.writeStoredBlock(out, size, 0, size.length);
+            out.write(stored, CompressingStorageEngine.STREAM_OFFSET, stored.length - CompressingStorageEngine.STREAM_OFFSET);
+            responseCompressed = true;
+            return;
+        }
+        byte[] value = get(key);
+
+        // VALUE SIZE | VALUE, or a missing value if the key does not exist
+        protocol.writeOptionalValue(out, value);
+    }
+
+    /*
+     * Handles a chunk of a value streamed by the client. Every chunk is answered once it is
+     * received, which lets the client send the next one, and the value is put with the last one.
+     * The chunks of a rejected value are dropped without an answer.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     * @param tag The tag of the stream.
+     * @return true if the chunk is answered, false otherwise.
+     */
+    private boolean handlePutStreamRequest(PooledBuffer in, PooledBuffer out, int tag) throws IOException {
+        // LAST CHUNK | [KEY | VALUE LENGTH, or a missing length if unknown, in the first chunk] | CHUNK
+        boolean last = in.readBoolean();
+        IncomingStream stream = incomingStreams.get(tag);
+        boolean fits = true;
+        if (stream == null) {
+            if (incomingStreams.size() >= MAX_STREAM_ENTRIES) {
+                // The client keeps opening streams without cancelling the rejected ones
+                Logger.log("Too many streams open, closing the connection", Logger.LogLevel.WARN);
+                failed = true;
+                return false;
+            }
+            String key = protocol.readString(in);
+            int announcedLength = protocol.readOptionalLength(in);
+            // Rejected before anything is reserved for it
+            fits = announcedLength <= maxStreamedValue && receivingStreams < MAX_INCOMING_STREAMS;
+            stream = new IncomingStream(key, fits ? announcedLength : -1);
+            incomingStreams.put(tag, stream);
+            receivingStreams++;
+        }
+        if (last) {
+            incomingStreams.remove(tag);
+        }
+        if (stream.rejected) {
+            return false;
+        }
+
+        int start = in.length() - in.available();
+        int size = in.available();
+        long length = stream.length + size;
+        fits &= stream.announcedLength >= 0
+            ? length <= stream.announcedLength && (!last || length == stream.announcedLength)
+            : length <= maxStreamedValue;
+        if (!fits) {
+            Logger.log("Streamed value of key " + stream.key + " rejected after " + length + " bytes", Logger.LogLevel.WARN);
+            stream.rejected = true;
+            stream.value = null;
+            stream.chunks = null;
+            receivingStreams--;
+            // STATUS
+            out.reserve(1);
+            out.putByte(out.length() - 1, Protocol.STREAM_REJECTED);
+            return true;
+        }
+        if (last) {
+            receivingStreams--;
+        }
+        if (stream.value != null) {
+            if (length > stream.value.length) {
+                stream.value = java.util.Arrays.copyOf(stream.value,
+                    (int) Math.min(stream.announcedLength, Math.max(length, 2L * stream.value.length)));
+            }
+            System.arraycopy(in.array(), start, stream.value, (int) stream.length, size);
+        } else {
+            stream.chunks.add(java.util.Arrays.copyOfRange(in.array(), start, start + size));
+        }
+        stream.length = length;
+
+        if (last) {
+            byte[] value = stream.value;
+            if (value == null) {
+                // Chunks are dropped as they are joined, so that the collector can take them back
+                value = new byte[(int) length];
+                int offset = 0;
+                for (int i = 0; i < stream.chunks.size(); i++) {
+                    byte[] part = stream.chunks.set(i, null);
+                    System.arraycopy(part, 0, value, offset, part.length);
+                    offset += part.length;
+                }
+            }
+            stream.value = null;
+            stream.chunks = null;
+            put(stream.key, value, 0);
+        }
+
+        // STATUS
+        out.reserve(1);
+        out.putByte(out.length() - 1, last ? Protocol.STREAM_STORED : Protocol.STREAM_RECEIVED);
+        return true;
+    }
+
+    /*
+     * Handles a request to stream a value to the client. The response holds the first chunk,
+     * and the following ones are sent by sendChunks as the client grants credits for them.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the first chunk to.
+     * @param tag The tag of the stream.
+     */
+    private void handleGetStreamRequest(PooledBuffer in, PooledBuffer out, int tag) throws IOException {
+        // KEY
+        String key = protocol.readString(in);
+        byte[] value = get(key);
+
+        // VALUE LENGTH, or a missing length if the key does not exist | FIRST CHUNK
+        protocol.writeOptionalLength(out, value == null ? -1 : value.length);
+        if (value != null) {
+            int length = Math.min(value.length, Protocol.STREAM_CHUNK_SIZE);
+            out.write(value, 0, length);
+            if (length < value.length) {
+                outgoingStreams.put(tag, new OutgoingStream(value, length, Protocol.STREAM_WINDOW - 1));
+            }
+        }
+    }
+
+    /*
+     * Handles the credits a client grants to a value streamed to it, or the cancellation of a
+     * stream in either direction.
+     * 
+     * @param in The buffer to read the request from.
+     * @param tag The tag of the stream.
+     */
+    private void handleStreamCreditRequest(PooledBuffer in, int tag) throws IOException {
+        // CHUNKS, or 0 to cancel the stream
+        int chunks = protocol.readLength(in);
+        if (chunks == 0) {
+            outgoingStreams.remove(tag);
+            IncomingStream stream = incomingStreams.remove(tag);
+            if (stream != null && !stream.rejected) {
+                receivingStreams--;
+            }
+            return;
+        }
+        OutgoingStream stream = outgoingStreams.get(tag);
+        if (stream != null) {
+            stream.credits += chunks;
+        }
+    }
+
+    /*
+     * Sends the chunks of a streamed value the client has credits for, each in a frame of its
+     * own, and forgets the stream once its last chunk is sent.
+     * 
+     * @param tag The tag of the stream.
+     * @throws IOException If an error occurs while sending a chunk.
+     */
+    private void sendChunks(int tag) throws IOException {
+        OutgoingStream stream = outgoingStreams.get(tag);
+        if (stream == null) {
+            return;
+        }
+        while (stream.credits > 0 && stream.offset < stream.value.length) {
+            // CHUNK
+            int length = Math.min(stream.value.length - stream.offset, Protocol.STREAM_CHUNK_SIZE);
+            PooledBuffer chunk = BufferPool.DEFAULT.acquire(TaggedConnection.MAX_HEADER_SIZE + length);
+            chunk.reserve(TaggedConnection.MAX_HEADER_SIZE);
+            chunk.write(stream.value, stream.offset, length);
+            stream.offset += length;
+            stream.credits--;
+            sender.send(tag, RequestType.GetStreamRequest.getValue(), chunk);
+        }
+        if (stream.offset == stream.value.length) {
+            outgoingStreams.remove(tag);
+        }
+    }
+
+    /*
+     * Handles a multi-put request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleMultiPutRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // N PAIRS | KEY | VALUE LENGTH | VALUE | KEY | VALUE LENGTH | VALUE | ... | [TTL MILLIS]
+        int numberOfPairs = protocol.readLength(in);
+        Map<String, byte[]> pairs = new java.util.HashMap<>();
+
+        for (int i = 0; i < numberOfPairs; i++) {
+            String key = protocol.readString(in);
+            pairs.put(key, protocol.readValue(in));
+        }
+        long ttlMillis = protocol.readTtl(in);
+
+        multiPut(pairs, ttlMillis);
+    }
+
+    /*
+     * Handles a multi-get request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleMultiGetRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // N KEYS | KEY | ...
+        int numberOfKeys = protocol.readLength(in);
+        Set<String> keys = new java.util.HashSet<>();
+        for (int i = 0; i < numberOfKeys; i++) {
+            String key = protocol.readString(in);
+            keys.add(key);
+        }
+        Map<String, byte[]> pairs = multiGet(keys);
+
+        // N PAIRS | KEY | VALUE LENGTH | VALUE .., with a missing value for keys that do not exist
+        protocol.writeLength(out, pairs.size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            protocol.writeString(out, pair.getKey());
+            protocol.writeOptionalValue(out, pair.getValue());
+        }
+    }
+
+    /*
+     * Handles a get-when request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the request was successful, -1 otherwise.
+     */
+    private int handleGetWhenRequest(PooledBuffer in, PooledBuffer out, int tag) throws IOException {
+        // Chaves e valores para a condição
+        String key = protocol.readString(in);
+        String keyCond = protocol.readString(in);
+        byte[] valueCond = protocol.readValue(in);
+
+        byte[] result = getWhen(key, keyCond, valueCond, tag);
+        if (result != null) {
+            out.write(result);
+            return 0;
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /*
+     * Handles a scan request from the client. The pairs are sent in pages as they are found,
+     * every page but the last one in a frame of its own with the tag of the request.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the last page to.
+     * @param tag The tag associated with the request.
+     */
+    private void handleScanRequest(PooledBuffer in, PooledBuffer out, int tag) throws IOException {
+        // START KEY | HAS END | [END KEY] | LIMIT (0 for no limit)
+        String startKey = protocol.readString(in);
+        String endKey = in.readBoolean() ? protocol.readString(in) : null;
+        int limit = protocol.readLength(in);
+
+        // Every page in version 1: N PAIRS | KEY | VALUE LENGTH | VALUE ... | LAST PAGE
+        // and in version 2: LAST PAGE | KEY | VALUE LENGTH | VALUE ..., up to the end of the frame
+        // Pages are written after room for the header and the number of pairs or the last page flag, filled in once full
+        java.util.Iterator<Map.Entry<String, byte[]>> pairs = database.scan(startKey, endKey);
+        int pageStart = TaggedConnection.MAX_HEADER_SIZE;
+        int pairsStart = pageStart + (protocol == Protocol.V1 ? 4 : 1);
+        PooledBuffer page = BufferPool.DEFAULT.acquire(SCAN_PAGE_BYTES);
+        try {
+            page.reserve(pairsStart);
+            int pagePairs = 0;
+            int sent = 0;
+            while (pairs.hasNext() && (limit == 0 || sent < limit)) {
+                Map.Entry<String, byte[]> pair = pairs.next();
+                protocol.writeString(page, pair.getKey());
+                protocol.writeValue(page, pair.getValue());
+                pagePairs++;
+                sent++;
+                if (pagePairs == SCAN_PAGE_PAIRS || page.length() - pairsStart >= SCAN_PAGE_BYTES) {
+                    if (protocol == Protocol.V1) {
+                        page.putInt(pageStart, pagePairs);
+                        page.writeBoolean(false);
+                    } else {
+                        page.putByte(pageStart, 0);
+                    }
+                    PooledBuffer full = page;
+                    page = null;
+                    sender.send(tag, RequestType.ScanRequest.getValue(), full);
+                    page = BufferPool.DEFAULT.acquire(SCAN_PAGE_BYTES);
+                    page.reserve(pairsStart);
+                    pagePairs = 0;
+                }
+            }
+            if (protocol == Protocol.V1) {
+                out.writeInt(pagePairs);
+                out.write(page.array(), pairsStart, page.length() - pairsStart);
+                out.writeBoolean(true);
+            } else {
+                out.writeBoolean(true);
+                out.write(page.array(), pairsStart, page.length() - pairsStart);
+            }
+        } finally {
+            if (page != null) {
+                page.release();
+            }
+        }
+    }
+
+    /*
+     * Handles a compare-and-set request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleCompareAndSetRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // KEY | EXPECTED LENGTH | EXPECTED | VALUE LENGTH | VALUE | [TTL MILLIS], either value possibly missing
+        String key = protocol.readString(in);
+        byte[] expected = protocol.readOptionalValue(in);
+        byte[] value = protocol.readOptionalValue(in);
+        long ttlMillis = protocol.readTtl(in);
+
+        // SWAPPED
+        out.writeBoolean(database.compareAndSet(key, expected, value, ttlMillis));
+    }
+
+    /*
+     * Handles an increment request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleIncrementRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // KEY | DELTA
+        String key = protocol.readString(in);
+        long delta = protocol.readLong(in);
+
+        // SUCCESS | [NEW VALUE], failing if the value is not an integer or overflows
+        try {
+            long value = database.increment(key, delta);
+            out.writeBoolean(true);
+            protocol.writeLong(out, value);
+        } catch (NumberFormatException | ArithmeticException e) {
+            out.writeBoolean(false);
+        }
+    }
+
+    /*
+     * Handles a put-if-absent request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handlePutIfAbsentRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // KEY | VALUE LENGTH | VALUE | [TTL MILLIS]
+        String key = protocol.readString(in);
+        byte[] value = protocol.readValue(in);
+        long ttlMillis = protocol.readTtl(in);
+        byte[] current = database.putIfAbsent(key, value, ttlMillis);
+
+        // CURRENT VALUE SIZE | CURRENT VALUE, or a missing value if the value was stored
+        protocol.writeOptionalValue(out, current);
+    }
+
+    /*
+     * Handles a transaction commit request from the client.
+     * 
+     * @param in The buffer to read the request from.
+     * @param out The buffer to write the response to.
+     */
+    private void handleTransactionRequest(PooledBuffer in, PooledBuffer out) throws IOException {
+        // N READS | KEY | VALUE LENGTH | VALUE .. | N WRITES | KEY | VALUE LENGTH | VALUE ..,
+        // with a missing value for keys read missing or removed
+        Map<String, byte[]> reads = new HashMap<>();
+        int numberOfReads = protocol.readLength(in);
+        for (int i = 0; i < numberOfReads; i++) {
+            String key = protocol.readString(in);
+            reads.put(key, protocol.readOptionalValue(in));
+        }
+        Map<String, byte[]> writes = new HashMap<>();
+        int numberOfWrites = protocol.readLength(in);
+        for (int i = 0; i < numberOfWrites; i++) {
+            String key = protocol.readString(in);
+            writes.put(key, protocol.readOptionalValue(in));
+        }
+
+        // COMMITTED
+        out.writeBoolean(database.commit(reads, writes));
+    }
+
+    /**
+     * Puts a key-value pair into the database.
+     * 
+     * @param key The key to store.
+     * @param value The value to store.
+     * @param ttlMillis The time until the key expires, or 0 if it does not expire.
+     */
+    private void put(String key, byte[] value, long ttlMillis) throws IOException {
+        completeWatches(database.put(key, value, ttlMillis));
+    }
+
+    /**
+     * Gets the value associated with a key from the database.
+     * 
+     * @param key The key to retrieve.
+     * @return The value associated with the key.
+     */
+    private byte[] get(String key) {
+        return database.get(key);
+    }
+    
+    /**
+     * Puts multiple key-value pairs into the database.
+     * 
+     * @param pairs A map of key-value pairs to store.
+     * @param ttlMillis The time until the keys expire, or 0 if they do not expire.
+     */
+    private void multiPut(Map<String, byte[]> pairs, long ttlMillis) throws IOException {
+        completeWatches(database.multiPut(pairs, ttlMillis));
+    }
+
+    /**
+     * Gets multiple values associated with a set of keys from the database.
+     * 
+     * @param keys A set of keys to retrieve.
+     * @return A map of key-value pairs.
+     */
+    private Map<String, byte[]> multiGet(Set<String> keys) {
+        return database.multiGet(keys);
+    }
+
+    /**
+     * Gets the value associated with a key from the database when a condition is met.
+     * If the condition does not hold yet, the request is registered in the watch registry
+     * and answered by the write that makes it hold.
+     * 
+     * @param key The key to retrieve.
+     * @param keyCond The key representing the condition.
+     * @param valueCond The value representing the condition.
+     * @param tag The tag of the request.
+     * @return The value associated with the key, or null if the request is waiting.
+     */
+    private byte[] getWhen(String key, String keyCond, byte[] valueCond, int tag) {
+        watchedKeys.add(keyCond);
+        if (!database.watch(keyCond, new WatchRegistry.Watch(sender, tag, key, valueCond))) {
+            return null;
+        }
+
+        Logger.log("Condition met for key: " + keyCond, Logger.LogLevel.INFO);
+        byte[] result = database.get(key);
+        return result != null ? result : new byte[0];
+    }
+
+    /**
+     * Answers the get-when requests whose condition was met by a write.
+     * Called after the write released its shard locks.
+     * 
+     * @param ready The requests to answer.
+     */
+    private void completeWatches(List<WatchRegistry.Watch> ready) {
+        database.completeWatches(ready);
+    }
+}
@@ -0,0 +1,795 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * A storage engine that splits the keyspace into shards, each kept by an engine of its own,
+ * and that can change the number of shards while it is being used. Keys are placed with
+ * jump consistent hashing, so adding a shard only moves the keys that belong to it and
+ * removing the last shard only moves the keys it held.
+ *
+ * Every shard has a gate: single-key writes hold the gate of the shard that owns their key
+ * in shared mode, while multi-key operations take the gates of all their shards in exclusive
+ * mode, in ascending shard order. Single-key reads take no gate.
+ *
+ * Resharding moves the keys one shard at a time, in small batches. While a shard is being
+ * moved its keys may be in the old or in the new shard: each key is moved atomically inside
+ * a compute of the old shard, written to the new shard before being removed from the old one,
+ * so a read that misses in the old shard finds the key in the new one. Writes to a key that
+ * has not been moved yet move it first. The shard keeps owning its keys until all of them
+ * have been moved, and only then do their writers switch to the gates of the new shards.
+ *
+ * Every shard also keeps its keys in a skip list, updated inside the compute that writes the
+ * key, so that keys can be walked in order, unless its engine can walk them itself.
+ * Scans merge the ordered keys of all shards.
+ *
+ * Multi-key reads are served from snapshots. A reader holds the gates of its shards only to
+ * take a snapshot version from the clock, then reads without them. While some snapshot is
+ * open, every write takes a new version from the clock and keeps the value it replaced in
+ * the version chain of its key, so a reader that finds a value newer than its snapshot walks
+ * the chain back to the value it had then. Versions older than every open snapshot are no
+ * longer needed and are dropped by the writers of their key and when a reader finishes.
+ */
+class ShardedStorageEngine implements StorageEngine {
+    /* Migration states of the shards being resharded */
+    private static final int PENDING = 0;
+    private static final int MOVING = 1;
+    private static final int MOVED = 2;
+    /* Number of keys moved at a time, while holding the gate of their shard */
+    private static final int MIGRATION_BATCH = 1024;
+
+    /**
+     * A shard: the engine that keeps its pairs, its gate and the ordered index of its keys.
+     */
+    private static class Shard {
+        final StorageEngine engine;
+        final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+        /* Null when the engine walks its keys in order itself */
+        final ConcurrentSkipListSet<String> index;
+
+        Shard(StorageEngine engine) {
+            this.engine = engine;
+            this.index = engine.isOrdered() ? null : new ConcurrentSkipListSet<>();
+        }
+
+        /**
+         * Computes a new value for a key of the shard, keeping the index up to date.
+         */
+        byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+            if (index == null) {
+                return engine.compute(key, remapping);
+            }
+            return engine.compute(key, (k, current) -> {
+                byte[] value = remapping.apply(k, current);
+                if (current == null && value != null) {
+                    index.add(k);
+                } else if (current != null && value == null) {
+                    index.remove(k);
+                }
+                return value;
+            });
+        }
+
+        /**
+         * Walks the keys of a range of the shard in ascending order.
+         */
+        Iterator<String> keys(String startKey, String endKey) {
+            if (index == null) {
+                return engine.keys(startKey, endKey);
+            }
+            return (endKey == null ? index.tailSet(startKey, true) : index.subSet(startKey, true, endKey, false)).iterator();
+        }
+    }
+
+    /**
+     * A value replaced while some snapshot was open: the version of the write that replaced it,
+     * the value itself, null if the key did not exist, and the versions replaced before.
+     */
+    private static class Version {
+        final long version;
+        final byte[] previous;
+        /* Cut when it is older than every open snapshot */
+        volatile Version older;
+
+        Version(long version, byte[] previous, Version older) {
+            this.version = version;
+            this.previous = previous;
+            this.older = older;
+        }
+    }
+
+    /**
+     * The shards of the engine at some point in time. A new layout is installed when a
+     * migration starts and when it ends, only the migration states change in place.
+     */
+    private static class Layout {
+        /* The old and the new shards during a migration */
+        final Shard[] shards;
+        /* Number of shards the keys are placed in, or were placed in before the migration */
+        final int shardsCount;
+        /* Number of shards the keys are being moved to, equal to shardsCount without a migration */
+        final int targetCount;
+        /* Migration state of every shard of the old placement, null without a migration */
+        final AtomicIntegerArray states;
+
+        Layout(Shard[] shards, int shardsCount, int targetCount) {
+            this.shards = shards;
+            this.shardsCount = shardsCount;
+            this.targetCount = targetCount;
+            this.states = shardsCount == targetCount ? null : new AtomicIntegerArray(shardsCount);
+        }
+    }
+
+    /* Creates the engine of the shard with a given index */
+    private final IntFunction<StorageEngine> shardFactory;
+    private volatile Layout layout;
+    /* Only one migration runs at a time */
+    private final ReentrantLock reshardLock = new ReentrantLock();
+    /* Called for every key moved by the running migration, before it leaves its old shard */
+    private volatile BiConsumer<String, byte[]> moveListener = (key, value) -> { };
+    private final LongAdder movedKeys = new LongAdder();
+
+    /* Versions of the writes made while some snapshot is open */
+    private final AtomicLong clock = new AtomicLong();
+    /* Versions of the open snapshots, with the number of readers of each */
+    private final ConcurrentSkipListMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+    /* Version chains of the keys written while some snapshot was open, newest first */
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+    /* Only one reader drops old versions at a time */
+    private final ReentrantLock collectLock = new ReentrantLock();
+    private final LongAdder collectedVersions = new LongAdder();
+
+    /**
+     * Constructs the engine with the given number of shards.
+     *
+     * @param shardsCount The number of shards.
+     * @param shardFactory Creates the engine that keeps the pairs of a shard.
+     */
+    public ShardedStorageEngine(int shardsCount, Supplier<StorageEngine> shardFactory) {
+        this(shardsCount, shardsCount, shardIndex -> shardFactory.get());
+    }
+
+    /**
+     * Constructs the engine over shards whose engines keep their pairs across restarts. If the
+     * number of shards was being changed when they were last used, the migration is resumed:
+     * a key may be in its old or in its new shard, and writes move it before writing it, until
+     * reshard finishes moving the rest.
+     *
+     * @param shardsCount The number of shards the keys were placed in.
+     * @param targetCount The number of shards the keys were being moved to, or shardsCount.
+     * @param shardFactory Creates the engine of the shard with a given index.
+     */
+    public ShardedStorageEngine(int shardsCount, int targetCount, IntFunction<StorageEngine> shardFactory) {
+        if (shardsCount <= 0 || targetCount <= 0) {
+            throw new IllegalArgumentException("The number of shards must be positive: " + shardsCount + ", " + targetCount);
+        }
+        this.shardFactory = shardFactory;
+        Shard[] shards = new Shard[Math.max(shardsCount, targetCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(shardFactory.apply(i));
+        }
+        Layout initial = new Layout(shards, shardsCount, targetCount);
+        if (initial.states != null) {
+            for (int shardIndex = 0; shardIndex < shardsCount; shardIndex++) {
+                initial.states.set(shardIndex, movesKeys(shardIndex, shardsCount, targetCount) ? MOVING : MOVED);
+            }
+        }
+        this.layout = initial;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        while (true) {
+            Layout current = layout;
+            byte[] value = read(current, key);
+            // A miss may come from shards emptied by a migration that started meanwhile
+            if (value != null || layout == current) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Gets the values of a set of keys as they were at a single point in time. The gates of
+     * their shards are only held while the snapshot is taken, so writers are not kept waiting
+     * while the values are read.
+     */
+    @Override
+    public Map<String, byte[]> multiGet(Set<String> keys) {
+        TreeSet<Integer> owners = new TreeSet<>();
+        Layout current = lockOwners(keys, owners);
+        long snapshot;
+        try {
+            // No write to these keys is running, and the next ones will keep what they replace
+            snapshot = clock.get();
+            snapshots.merge(snapshot, 1, Integer::sum);
+        } finally {
+            for (int shardIndex : owners) {
+                current.shards[shardIndex].gate.writeLock().unlock();
+            }
+        }
+
+        try {
+            Map<String, byte[]> pairs = new HashMap<>();
+            while (true) {
+                boolean missed = false;
+                for (String key : keys) {
+                    byte[] value = read(current, key);
+                    pairs.put(key, value);
+                    missed |= value == null;
+                }
+                // A miss may come from shards emptied by a migration that started meanwhile, so the
+                // whole batch is read again from the new layout, as of the same snapshot
+                if (!missed || layout == current) {
+                    break;
+                }
+                current = layout;
+            }
+            // The chains are read after the values, since writes add to them before their value is seen
+            if (!versions.isEmpty()) {
+                for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                    for (Version version = versions.get(pair.getKey()); version != null && version.version > snapshot;
+                         version = version.older) {
+                        pair.setValue(version.previous);
+                    }
+                }
+            }
+            return pairs;
+        } finally {
+            snapshots.compute(snapshot, (version, readers) -> readers == 1 ? null : readers - 1);
+            collectVersions();
+        }
+    }
+
+    /**
+     * Wraps a write of a key so that, while some snapshot is open, the value it replaces is
+     * kept in the version chain of the key. Must be called while holding the gate of the owner
+     * of the key, which keeps new snapshots of the key from being taken meanwhile.
+     *
+     * @param version Supplies the version of the write, taken from the clock when first needed.
+     */
+    private BiFunction<String, byte[], byte[]> versioned(BiFunction<String, byte[], byte[]> remapping, long[] version) {
+        return (k, current) -> {
+            byte[] value = remapping.apply(k, current);
+            if (value != current && !snapshots.isEmpty()) {
+                if (version[0] == 0) {
+                    version[0] = clock.incrementAndGet();
+                }
+                long horizon = horizon();
+                Version older = versions.get(k);
+                if (older != null && older.version <= horizon) {
+                    older = null;
+                } else if (older != null) {
+                    truncate(older, horizon);
+                }
+                versions.put(k, new Version(version[0], current, older));
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Gets the version below which no snapshot reads, now or in the future. The clock is read
+     * before the snapshots, so a snapshot opened in between is older than any write it missed.
+     */
+    private long horizon() {
+        long horizon = clock.get();
+        Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+        return oldest == null ? horizon : Math.min(horizon, oldest.getKey());
+    }
+
+    /**
+     * Cuts the versions of a chain that are older than the horizon.
+     */
+    private void truncate(Version chain, long horizon) {
+        for (Version version = chain; version.older != null; version = version.older) {
+            if (version.older.version <= horizon) {
+                version.older = null;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Drops the version chains that no open snapshot needs, unless another reader is doing it.
+     */
+    private void collectVersions() {
+        if (versions.isEmpty() || !collectLock.tryLock()) {
+            return;
+        }
+        try {
+            long horizon = horizon();
+            for (Map.Entry<String, Version> entry : versions.entrySet()) {
+                Version chain = entry.getValue();
+                if (chain.version <= horizon) {
+                    // Left alone if a writer added a newer version meanwhile
+                    if (versions.remove(entry.getKey(), chain)) {
+                        collectedVersions.increment();
+                    }
+                } else {
+                    truncate(chain, horizon);
+                }
+            }
+        } finally {
+            collectLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping) {
+        while (true) {
+            Layout current = layout;
+            int owner = owner(current, key);
+            ReentrantReadWriteLock gate = current.shards[owner].gate;
+            gate.readLock().lock();
+            try {
+                // The shard may have been moved or replaced while waiting for its gate
+                if (layout == current && owner(current, key) == owner) {
+                    return writeLocation(current, key).compute(key, versioned(remapping, new long[1]));
+                }
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> owners = new TreeSet<>();
+        Layout current = lockOwners(pairs.keySet(), owners);
+        // Every pair is written with the same version, so snapshots see all of them or none
+        long[] version = new long[1];
+        try {
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                writeLocation(current, entry.getKey()).compute(entry.getKey(), versioned((k, value) -> {
+                    onWrite.accept(k, entry.getValue());
+                    return entry.getValue();
+                }, version));
+            }
+        } finally {
+            for (int shardIndex : owners) {
+                current.shards[shardIndex].gate.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                             BiConsumer<String, byte[]> onWrite) {
+        TreeSet<Integer> owners = new TreeSet<>();
+        Layout current = lockOwners(keys, owners);
+        long[] version = new long[1];
+        try {
+            Map<String, byte[]> values = new HashMap<>();
+            for (String key : keys) {
+                values.put(key, read(current, key));
+            }
+            for (Map.Entry<String, byte[]> entry : remapping.apply(values).entrySet()) {
+                writeLocation(current, entry.getKey()).compute(entry.getKey(), versioned((k, value) -> {
+                    onWrite.accept(k, entry.getValue());
+                    return entry.getValue();
+                }, version));
+            }
+        } finally {
+            for (int shardIndex : owners) {
+                current.shards[shardIndex].gate.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public int shardsCount() {
+        return layout.shardsCount;
+    }
+
+    /**
+     * Copies the key-value pairs of a shard. Must not be called while resharding, since
+     * the keys being moved may be in either of their shards.
+     */
+    @Override
+    public Map<String, byte[]> copyShard(int shardIndex) {
+        Layout current = layout;
+        current.shards[shardIndex].gate.writeLock().lock();
+        try {
+            return current.shards[shardIndex].engine.copyShard(0);
+        } finally {
+            current.shards[shardIndex].gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds up the statistics of every shard. The fragmentation of the off-heap shards and the
+     * memory per key of the compact shards are calculated again from the totals.
+     */
+    @Override
+    public Map<String, Long> stats() {
+        Layout current = layout;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("shards.count", (long) current.targetCount);
+        stats.put("shards.migrating", current.states == null ? 0L : 1L);
+        stats.put("shards.moved.keys", movedKeys.sum());
+        stats.put("mvcc.snapshots", (long) snapshots.values().stream().mapToInt(Integer::intValue).sum());
+        stats.put("mvcc.versioned.keys", (long) versions.size());
+        stats.put("mvcc.collected.keys", collectedVersions.sum());
+        for (Shard shard : current.shards) {
+            for (Map.Entry<String, Long> stat : shard.engine.stats().entrySet()) {
+                if (!stat.getKey().endsWith(".percent")) {
+                    stats.merge(stat.getKey(), stat.getValue(), Long::sum);
+                }
+            }
+        }
+        if (stats.containsKey("offheap.reserved.bytes")) {
+            long reserved = stats.get("offheap.reserved.bytes");
+            long values = stats.get("offheap.value.bytes");
+            stats.put("offheap.fragmentation.percent", reserved == 0 ? 0 : 100 * (reserved - values) / reserved);
+        }
+        if (stats.containsKey("compact.keys")) {
+            long keys = stats.get("compact.keys");
+            long overhead = stats.get("compact.table.bytes") + stats.get("compact.key.bytes");
+            stats.put("compact.overhead.bytes.per.key", keys == 0 ? 0 : overhead / keys);
+        }
+        return stats;
+    }
+
+    /**
+     * Walks the pairs whose keys are in a range, in ascending key order, merging the ordered
+     * indexes of the shards. The walk does not block writers and is weakly consistent: it
+     * sees every key that exists for its whole duration, may or may not see keys written or
+     * removed meanwhile, and may miss keys moved by a resharding that runs at the same time.
+     *
+     * @param startKey The first key of the range, inclusive.
+     * @param endKey The end of the range, exclusive, or null for a range without end.
+     * @return An iterator over the pairs of the range.
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan(String startKey, String endKey) {
+        List<Iterator<String>> shardKeys = new ArrayList<>();
+        for (Shard shard : layout.shards) {
+            shardKeys.add(shard.keys(startKey, endKey));
+        }
+        return new ScanIterator(shardKeys);
+    }
+
+    /**
+     * Merges the sorted keys of every shard with a heap holding the next key of each shard,
+     * reading the value of every key as it is reached.
+     */
+    private class ScanIterator implements Iterator<Map.Entry<String, byte[]>> {
+        /* The next key of each shard that has not been walked to the end, with its shard */
+        private final PriorityQueue<Map.Entry<String, Iterator<String>>> heads =
+            new PriorityQueue<>(Map.Entry.comparingByKey());
+        private Map.Entry<String, byte[]> next;
+        private String lastKey;
+
+        ScanIterator(List<Iterator<String>> shardKeys) {
+            for (Iterator<String> keys : shardKeys) {
+                if (keys.hasNext()) {
+                    heads.add(Map.entry(keys.next(), keys));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !heads.isEmpty()) {
+                Map.Entry<String, Iterator<String>> head = heads.poll();
+                if (head.getValue().hasNext()) {
+                    heads.add(Map.entry(head.getValue().next(), head.getValue()));
+                }
+                // A key being moved can be in the index of both of its shards
+                String key = head.getKey();
+                if (key.equals(lastKey)) {
+                    continue;
+                }
+                lastKey = key;
+                byte[] value = get(key);
+                if (value != null) {
+                    next = Map.entry(key, value);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> pair = next;
+            next = null;
+            return pair;
+        }
+    }
+
+    /**
+     * Changes the number of shards, moving the keys whose shard changes. Reads and writes
+     * keep running while the keys are moved, writers only wait while a batch of keys of
+     * their shard is moved. Returns once every key is in its new shard. A migration resumed
+     * by the constructor is finished first.
+     *
+     * @param shardsCount The new number of shards.
+     * @return The number of keys moved.
+     */
+    public long reshard(int shardsCount) {
+        return reshard(shardsCount, (key, value) -> { });
+    }
+
+    /**
+     * Changes the number of shards, reporting every key moved.
+     *
+     * @param shardsCount The new number of shards.
+     * @param onMove Called for every key moved and its value, while the key cannot be written
+     *               by any other operation, before it is removed from its old shard.
+     * @return The number of keys moved.
+     */
+    public long reshard(int shardsCount, BiConsumer<String, byte[]> onMove) {
+        if (shardsCount <= 0) {
+            throw new IllegalArgumentException("The number of shards must be positive: " + shardsCount);
+        }
+        reshardLock.lock();
+        try {
+            moveListener = onMove;
+            Layout previous = layout;
+            if (shardsCount == previous.targetCount && previous.states == null) {
+                return 0;
+            }
+            long movedBefore = movedKeys.sum();
+
+            Layout migration = previous;
+            if (previous.states == null) {
+                // The old and the new shards live side by side until the migration ends
+                int size = Math.max(previous.shardsCount, shardsCount);
+                Shard[] shards = Arrays.copyOf(previous.shards, size);
+                for (int i = previous.shardsCount; i < size; i++) {
+                    shards[i] = new Shard(shardFactory.apply(i));
+                }
+                migration = new Layout(shards, previous.shardsCount, shardsCount);
+                for (int shardIndex = 0; shardIndex < previous.shardsCount; shardIndex++) {
+                    if (!movesKeys(shardIndex, previous.shardsCount, shardsCount)) {
+                        migration.states.set(shardIndex, MOVED);
+                    }
+                }
+                install(previous, migration);
+            }
+
+            for (int shardIndex = 0; shardIndex < migration.shardsCount; shardIndex++) {
+                if (migration.states.get(shardIndex) != MOVED) {
+                    migrate(migration, shardIndex);
+                }
+            }
+
+            int targetCount = migration.targetCount;
+            install(migration, new Layout(Arrays.copyOf(migration.shards, targetCount), targetCount, targetCount));
+            // The shards removed by shrinking are empty now
+            for (int shardIndex = targetCount; shardIndex < migration.shards.length; shardIndex++) {
+                migration.shards[shardIndex].engine.close();
+            }
+            return movedKeys.sum() - movedBefore + reshard(shardsCount, onMove);
+        } finally {
+            moveListener = (key, value) -> { };
+            reshardLock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a shard has keys to move when the number of shards changes. When
+     * shrinking, the shards that remain keep all their keys.
+     */
+    private static boolean movesKeys(int shardIndex, int shardsCount, int targetCount) {
+        return shardIndex >= targetCount || targetCount > shardsCount;
+    }
+
+    /**
+     * Flushes the engine of every shard. Writes to a shard wait while it is flushed, so every
+     * write that completed before the call is flushed. Must not be called while resharding.
+     */
+    @Override
+    public void flush() throws IOException {
+        Layout current = layout;
+        for (Shard shard : current.shards) {
+            shard.gate.writeLock().lock();
+            try {
+                shard.engine.flush();
+            } finally {
+                shard.gate.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the engines of the shards keep the arrays they are given, all of them
+     * being created by the same factory.
+     */
+    @Override
+    public boolean storesArrays() {
+        return layout.shards[0].engine.storesArrays();
+    }
+
+    /**
+     * Checks whether a migration left unfinished by a previous run still has to be finished by reshard.
+     */
+    public boolean isMigrating() {
+        return layout.states != null;
+    }
+
+    /**
+     * Moves the keys of a shard that belong to other shards after the migration.
+     */
+    private void migrate(Layout migration, int shardIndex) {
+        ReentrantReadWriteLock gate = migration.shards[shardIndex].gate;
+        // From now on, writers move their key before writing it, so no key is left behind
+        gate.writeLock().lock();
+        try {
+            migration.states.set(shardIndex, MOVING);
+        } finally {
+            gate.writeLock().unlock();
+        }
+
+        // No key that must move is added to the shard anymore, so walking its keys while they
+        // change still reaches all of them, and moving a key that is already gone does nothing
+        Iterator<String> keys = migration.shards[shardIndex].keys("", null);
+        while (keys.hasNext()) {
+            // The shared gate keeps multi-key operations from seeing a batch half moved
+            gate.readLock().lock();
+            try {
+                for (int moved = 0; moved < MIGRATION_BATCH && keys.hasNext(); ) {
+                    String key = keys.next();
+                    if (StorageEngine.shardIndex(key, migration.targetCount) != shardIndex) {
+                        move(migration, key);
+                        moved++;
+                    }
+                }
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // Wait for the writers of the shard before its keys change owners
+        gate.writeLock().lock();
+        try {
+            migration.states.set(shardIndex, MOVED);
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a key from its old shard to its new shard, if it is still in the old one.
+     */
+    private void move(Layout migration, String key) {
+        Shard target = migration.shards[StorageEngine.shardIndex(key, migration.targetCount)];
+        migration.shards[StorageEngine.shardIndex(key, migration.shardsCount)].compute(key, (k, value) -> {
+            if (value != null) {
+                moveListener.accept(k, value);
+                target.compute(k, (unused, current) -> value);
+                movedKeys.increment();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Replaces the layout once every operation on the previous one has finished.
+     */
+    private void install(Layout previous, Layout next) {
+        for (Shard shard : previous.shards) {
+            shard.gate.writeLock().lock();
+        }
+        layout = next;
+        for (Shard shard : previous.shards) {
+            shard.gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the shard whose gate guards a key.
+     */
+    private static int owner(Layout current, String key) {
+        int shardIndex = StorageEngine.shardIndex(key, current.shardsCount);
+        if (current.states != null && current.states.get(shardIndex) == MOVED) {
+            return StorageEngine.shardIndex(key, current.targetCount);
+        }
+        return shardIndex;
+    }
+
+    /**
+     * Reads a key from wherever it is, without taking any gate.
+     */
+    private static byte[] read(Layout current, String key) {
+        int shardIndex = StorageEngine.shardIndex(key, current.shardsCount);
+        if (current.states == null) {
+            return current.shards[shardIndex].engine.get(key);
+        }
+        int targetIndex = StorageEngine.shardIndex(key, current.targetCount);
+        if (targetIndex == shardIndex || current.states.get(shardIndex) == MOVED) {
+            return current.shards[targetIndex].engine.get(key);
+        }
+        byte[] value = current.shards[shardIndex].engine.get(key);
+        // Keys are written to their new shard before being removed from the old one
+        if (value == null && current.states.get(shardIndex) != PENDING) {
+            value = current.shards[targetIndex].engine.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the shard a key must be written to, moving the key there first if its shard is
+     * being moved. Must be called while holding the gate of the owner of the key.
+     */
+    private Shard writeLocation(Layout current, String key) {
+        int shardIndex = StorageEngine.shardIndex(key, current.shardsCount);
+        if (current.states == null) {
+            return current.shards[shardIndex];
+        }
+        int targetIndex = StorageEngine.shardIndex(key, current.targetCount);
+        if (targetIndex == shardIndex) {
+            return current.shards[shardIndex];
+        }
+        switch (current.states.get(shardIndex)) {
+            case PENDING:
+                return current.shards[shardIndex];
+            case MOVING:
+                move(current, key);
+                return current.shards[targetIndex];
+            default:
+                return current.shards[targetIndex];
+        }
+    }
+
+    /**
+     * Locks the gates of the owners of the keys in exclusive mode, in ascending order.
+     *
+     * @param keys The keys.
+     * @param owners Receives the indexes of the gates locked.
+     * @return The layout the gates belong to.
+     */
+    private Layout lockOwners(Set<String> keys, TreeSet<Integer> owners) {
+        while (true) {
+            Layout current = layout;
+            for (String key : keys) {
+                owners.add(owner(current, key));
+            }
+            for (int shardIndex : owners) {
+                current.shards[shardIndex].gate.writeLock().lock();
+            }
+
+            boolean valid = layout == current;
+            for (String key : keys) {
+                if (!valid) {
+                    break;
+                }
+                valid = owners.contains(owner(current, key));
+            }
+            if (valid) {
+                return current;
+            }
+            for (int shardIndex : owners) {
+                current.shards[shardIndex].gate.writeLock().unlock();
+            }
+            owners.clear();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.group15.kvserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The Snapshot class writes and restores point-in-time copies of the database.
+ *
+ * A snapshot file starts with a header that holds the generation of the first log to replay
+ * after it and a directory with the offset, length, number of pairs and CRC32 of every section.
+ * Each section holds the pairs of one shard as key length, key (UTF-8), value length and value.
+ * The deadlines of the keys that expire are kept in sections of the same format.
+ * Sections are written one at a time, so writers only wait while their own shard is copied,
+ * and they are restored in parallel from a memory-mapped file, one task per section.
+ */
+class Snapshot {
+    /* Identifies snapshot files ("KVSN") */
+    private static final int MAGIC = 0x4B56534E;
+    private static final int VERSION = 2;
+    /* Size of the fixed part of the header: magic, version, log generation and section counts */
+    private static final int HEADER_SIZE = 28;
+    /* Size of each directory entry: offset, length, number of pairs and checksum */
+    private static final int SECTION_ENTRY_SIZE = 24;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot, copying one section at a time.
+     *
+     * @param file The file to write, replaced if it exists.
+     * @param logGeneration The generation of the first log that holds writes the snapshot may miss.
+     * @param databaseSections Copy the pairs of each database shard.
+     * @param userSections Copy the usernames and passwords of each user shard.
+     * @param deadlineSections Copy the keys that expire and their deadlines, as 8-byte values.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Path file, long logGeneration, List<Supplier<Map<String, byte[]>>> databaseSections,
+                             List<Supplier<Map<String, byte[]>>> userSections,
+                             List<Supplier<Map<String, byte[]>>> deadlineSections) throws IOException {
+        List<Supplier<Map<String, byte[]>>> sections = new ArrayList<>(databaseSections);
+        sections.addAll(userSections);
+        sections.addAll(deadlineSections);
+        int headerSize = HEADER_SIZE + SECTION_ENTRY_SIZE * sections.size();
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(logGeneration);
+        header.putInt(databaseSections.size());
+        header.putInt(userSections.size());
+        header.putInt(deadlineSections.size());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(headerSize);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE), crc));
+
+            long offset = headerSize;
+            for (Supplier<Map<String, byte[]>> section : sections) {
+                Map<String, byte[]> pairs = section.get();
+                crc.reset();
+                long length = 0;
+                for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                    byte[] key = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] value = pair.getValue();
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeInt(value.length);
+                    out.write(value);
+                    length += 8 + key.length + value.length;
+                }
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot section is too large to be mapped: " + length + " bytes");
+                }
+                header.putLong(offset);
+                header.putLong(length);
+                header.putInt(pairs.size());
+                header.putInt((int) crc.getValue());
+                offset += length;
+            }
+            out.flush();
+
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Restores a snapshot. The sections are mapped and decoded in parallel, so the consumers
+     * must be thread-safe.
+     *
+     * @param file The snapshot file.
+     * @param database Receives every key-value pair of the database.
+     * @param users Receives every username and password.
+     * @param deadlines Receives every key that expires and its deadline, as an 8-byte value.
+     * @return The generation of the first log to replay after the snapshot.
+     * @throws IOException If the file cannot be read or is corrupted.
+     */
+    public static long load(Path file, BiConsumer<String, byte[]> database, BiConsumer<String, byte[]> users,
+                            BiConsumer<String, byte[]> deadlines) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer fixedHeader = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (fixedHeader.getInt() != MAGIC || fixedHeader.getInt() != VERSION) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            long logGeneration = fixedHeader.getLong();
+            int databaseSections = fixedHeader.getInt();
+            int userSections = fixedHeader.getInt();
+            int deadlineSections = fixedHeader.getInt();
+            int sections = databaseSections + userSections + deadlineSections;
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) SECTION_ENTRY_SIZE * sections);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int i = 0; i < sections; i++) {
+                    long offset = directory.getLong();
+                    long length = directory.getLong();
+                    int count = directory.getInt();
+                    int checksum = directory.getInt();
+                    if (offset + length > channel.size()) {
+                        throw new IOException("Snapshot is truncated: " + file);
+                    }
+                    MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    BiConsumer<String, byte[]> consumer = i < databaseSections ? database
+                        : i < databaseSections + userSections ? users : deadlines;
+                    tasks.add(executor.submit(() -> {
+                        loadSection(section, count, checksum, consumer);
+                        return null;
+                    }));
+                }
+
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading the snapshot.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+            return logGeneration;
+        }
+    }
+
+    /**
+     * Verifies and decodes the pairs of a section.
+     */
+    private static void loadSection(ByteBuffer section, int count, int checksum, BiConsumer<String, byte[]> consumer) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(section.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot section is corrupted.");
+        }
+
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[section.getInt()];
+            section.get(key);
+            byte[] value = new byte[section.getInt()];
+            section.get(value);
+            consumer.accept(new String(key, StandardCharsets.UTF_8), value);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The StorageEngine interface represents the way the key-value pairs of the server are stored.
+ * Implementations decide how the keyspace is split into shards and how concurrent operations
+ * are synchronized, but they all guarantee that single-key updates are atomic and that
+ * multi-key operations never observe or leave a partial update.
+ */
+interface StorageEngine {
+    /**
+     * Gets the value associated with a key.
+     * 
+     * @param key The key to retrieve.
+     * @return The value associated with the key, or null if there is none.
+     */
+    byte[] get(String key);
+
+    /**
+     * Gets the values associated with a set of keys, as a consistent snapshot.
+     * 
+     * @param keys The keys to retrieve.
+     * @return A map from every key to its value, or to null if there is none.
+     */
+    Map<String, byte[]> multiGet(Set<String> keys);
+
+    /**
+     * Atomically computes a new value for a key from its current value.
+     * No other update of the key can happen while the remapping function runs.
+     * 
+     * @param key The key to update.
+     * @param remapping Receives the key and its current value (or null) and returns the new value,
+     *                  or null to remove the key.
+     * @return The new value associated with the key.
+     */
+    byte[] compute(String key, BiFunction<String, byte[], byte[]> remapping);
+
+    /**
+     * Atomically stores multiple key-value pairs.
+     * 
+     * @param pairs The key-value pairs to store.
+     * @param onWrite Called for every pair while it cannot be observed or updated by any other operation.
+     */
+    void multiPut(Map<String, byte[]> pairs, BiConsumer<String, byte[]> onWrite);
+
+    /**
+     * Atomically writes some of a set of keys with values calculated from the current values
+     * of all of them. No other update of the keys can happen while the function runs.
+     * 
+     * @param keys The keys the function reads.
+     * @param remapping Receives a map from every key to its current value (or null) and returns
+     *                  the keys to write, which must be among the keys given, with their new
+     *                  values, or null to remove them.
+     * @param onWrite Called for every key written while it cannot be observed or updated by any other operation.
+     */
+    void multiCompute(Set<String> keys, Function<Map<String, byte[]>, Map<String, byte[]>> remapping,
+                      BiConsumer<String, byte[]> onWrite);
+
+    /**
+     * Gets the number of shards the keyspace is split into.
+     * 
+     * @return The number of shards.
+     */
+    int shardsCount();
+
+    /**
+     * Copies the key-value pairs of a shard. Writes to the shard wait while it is copied,
+     * so the copy includes every write that completed before the call.
+     * 
+     * @param shardIndex The index of the shard.
+     * @return A copy of the pairs of the shard.
+     */
+    Map<String, byte[]> copyShard(int shardIndex);
+
+    /**
+     * Gets statistics about the engine, such as the memory it uses.
+     * 
+     * @return A map from the name of every statistic to its value.
+     */
+    default Map<String, Long> stats() {
+        return Map.of();
+    }
+
+    /**
+     * Checks whether the engine keeps the arrays it is given and returns them from reads, or
+     * copies the values into its own memory or files instead.
+     * 
+     * @return true if the arrays written are the ones stored.
+     */
+    default boolean storesArrays() {
+        return true;
+    }
+
+    /**
+     * Checks whether the engine can walk its keys in order itself, with keys, so that no
+     * separate index of its keys is needed.
+     * 
+     * @return true if keys is supported.
+     */
+    default boolean isOrdered() {
+        return false;
+    }
+
+    /**
+     * Walks the keys of a range in ascending order, without blocking writers. Keys written or
+     * removed while the keys are walked may or may not be seen.
+     * 
+     * @param startKey The first key of the range, inclusive.
+     * @param endKey The end of the range, exclusive, or null for a range without end.
+     * @return An iterator over the keys of the range.
+     */
+    default Iterator<String> keys(String startKey, String endKey) {
+        throw new UnsupportedOperationException("The keys of this engine are not ordered.");
+    }
+
+    /**
+     * Writes the pairs the engine keeps in memory to its files and waits until they are on
+     * disk, so that every write that completed before the call survives a restart. Engines
+     * that keep their pairs in memory only do nothing.
+     * 
+     * @throws IOException If the pairs cannot be written.
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Releases the resources of the engine. Reads that are still running may complete, but
+     * the engine must not be used afterwards.
+     */
+    default void close() {
+    }
+
+    /**
+     * Calculates the shard index of a key with jump consistent hashing (Lamping and Veach).
+     * Going from n to n + 1 shards only moves about 1 / (n + 1) of the keys, all of them to the
+     * new shard, and going back only moves the keys of the last shard.
+     * 
+     * @param key The key.
+     * @param shardsCount The number of shards.
+     * @return The index of the shard the key belongs to.
+     */
+    static int shardIndex(String key, int shardsCount) {
+        // Spread the bits of the hash code, since the generator below starts from it
+        long hash = key.hashCode() * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        long shard = -1;
+        long next = 0;
+        while (next < shardsCount) {
+            shard = next;
+            hash = hash * 2862933555777941757L + 1;
+            next = (long) ((shard + 1) * ((double) (1L << 31) / (double) ((hash >>> 33) + 1)));
+        }
+        return (int) shard;
+    }
+}
@@ -6,6 +6,18 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,19 +26,99 @@ import java.util.concurrent.locks.ReentrantLock;
  * Each frame consists of a tag, a request type, and a data payload. The connection ensures thread-safe communication
  * using locks for both sending and receiving frames.
  * 
+ * Frames are sent like the records of the WriteAheadLog: a sender queues its frame, and the
+ * first sender to find no write in progress writes every queued frame with a single gathering
+ * write, while the senders that arrive meanwhile wait for it. With a maximum delay, senders
+ * return as soon as their frame is queued, and the frames are written together once they
+ * fill a batch, once the delay runs out or when flush is called, whichever comes first.
+ * 
+ * Frames can also be received and sent in buffers of the BufferPool. A pooled frame to send
+ * reserves its first MAX_HEADER_SIZE bytes for its header, which is written at their end so
+ * that the frame is written as it is, and the buffer is released once written.
+ * 
+ * Frames are encoded with version 1 of the Protocol until the connection negotiates another
+ * one: the client calls handshake before anything else, and the server answers the
+ * HelloRequest it receives as its first frame, without handing it to the caller of receive.
+ * When the handshake also enables Compression, large frames are compressed as they are sent
+ * and decompressed as they are received, so the callers of send and receive never see it.
+ * 
  * This class implements AutoCloseable to handle the closing of the socket connection properly when it is no longer needed.
  */
-public class TaggedConnection implements AutoCloseable {
+public class TaggedConnection implements FrameSender, AutoCloseable {
+    /* Size of the frame header in version 1 of the protocol: tag (int), request type (short) and length (int) */
+    public static final int HEADER_SIZE = 10;
+    /* Bytes pooled frames reserve for their header, which fit the header of any version */
+    public static final int MAX_HEADER_SIZE = 11;
+    /* Largest frame data the server side receives, compressed or not, so that a header cannot make it reserve more */
+    public static final int MAX_FRAME_SIZE = 256 << 20;
+    /* Largest frame data the client side receives from the server, the largest array */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    /* Queued frames are written without waiting any longer once they hold this many bytes */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    /* Writes the frames whose delay ran out, for every connection */
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Frames sent and writes that sent them, over every connection */
+    private static final LongAdder FRAMES_SENT = new LongAdder();
+    private static final LongAdder WRITES = new LongAdder();
+    /* Bytes of the frames sent and received, over every connection */
+    private static final LongAdder BYTES_SENT = new LongAdder();
+    private static final LongAdder BYTES_RECEIVED = new LongAdder();
+
     /* The socket associated with this connection */
     private final Socket socket;
+    /* The channel of the socket, null if it has none, in which case frames are written to out */
+    private final SocketChannel channel;
     /* The input stream for reading data from the socket */
     private final DataInputStream in;
     /* The output stream for writing data to the socket */
     private final DataOutputStream out;
-    /* Lock for sending frames */
+    /* How long a frame may wait to be written with the frames that follow it, 0 to write it right away */
+    private final long maxDelayNanos;
+    /* Lock for sending frames, guarding the queued frames and the sequence numbers */
     private final Lock sendLock = new ReentrantLock();
+    /* Signals the senders waiting for a batch to be written */
+    private final Condition batchWritten = sendLock.newCondition();
     /* Lock for receiving frames */
     private final Lock receiveLock = new ReentrantLock();
+    /* The version of the protocol the frames are encoded with */
+    private volatile Protocol protocol = Protocol.V1;
+    /* Whether the next frame received may be a HelloRequest, true until the first frame */
+    private boolean acceptsHello = true;
+    /* Whether the server side accepts to compress frames if the client asks for it */
+    private final boolean acceptsCompression;
+    /* Largest data of a frame received, once decompressed */
+    private final int maxFrameSize;
+    /* Whether the data of large frames is compressed, as negotiated by the handshake */
+    private volatile boolean compression = false;
+    /* Tag and request type of the header read last, guarded by the receive lock */
+    private int receivedTag;
+    private short receivedRequest;
+    /* Whether the data of the frame whose header was read last is compressed */
+    private boolean receivedCompressed;
+
+    /* Headers and payloads of the frames queued but not yet written */
+    private List<ByteBuffer> pending = new ArrayList<>();
+    /* Pooled buffers of the frames queued, released once written */
+    private List<PooledBuffer> pendingBuffers = new ArrayList<>();
+    /* Lists of the last batch written, reused for the next batch queued */
+    private List<ByteBuffer> spare = new ArrayList<>();
+    private List<PooledBuffer> spareBuffers = new ArrayList<>();
+    /* Array handed to gathering writes, only used by the sender writing a batch */
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private int pendingBytes = 0;
+    /* Sequence number of the last frame queued, and of the last one written */
+    private long queuedSequence = 0;
+    private long writtenSequence = 0;
+    /* Whether a sender is writing a batch */
+    private boolean writing = false;
+    /* Whether the queued frames will be written when their delay runs out */
+    private boolean flushScheduled = false;
+    /* The error that broke the connection, after which every send fails */
+    private IOException failure = null;
 
     /**
      * A nested class representing a frame of data that can be sent or received over the connection.
@@ -37,8 +129,10 @@ public class TaggedConnection implements AutoCloseable {
         public final int tag;
         /* The request type of the frame. */
         public final short requestType;
-        /* The data payload of the frame. */
+        /* The data payload of the frame, null if it is in buffer. */
         public final byte[] data;
+        /* The pooled buffer holding the data payload of the frame, null if it is in data. */
+        public final PooledBuffer buffer;
 
         /**
          * Constructs a new Frame with the given tag, request type, and data payload.
@@ -51,18 +145,72 @@ public class TaggedConnection implements AutoCloseable {
             this.tag = tag;
             this.requestType = requestType;
             this.data = data;
+            this.buffer = null;
+        }
+
+        /**
+         * Constructs a new Frame whose data payload is in a pooled buffer, which whoever
+         * handles the frame must release.
+         * 
+         * @param tag The tag identifying the frame.
+         * @param requestType The request type of the frame.
+         * @param buffer The buffer holding the data payload of the frame.
+         */
+        public Frame(int tag, short requestType, PooledBuffer buffer) {
+            this.tag = tag;
+            this.requestType = requestType;
+            this.data = null;
+            this.buffer = buffer;
         }
     }
 
     /**
-     * Constructs a TaggedConnection with the given socket.
+     * Constructs a TaggedConnection with the given socket, writing every frame right away.
      * Initializes the input and output streams for communication over the socket.
      * 
      * @param socket The socket used for the connection.
      * @throws IOException If an error occurs while creating the input/output streams.
      */
     public TaggedConnection(Socket socket) throws IOException {
+        this(socket, 0);
+    }
+
+    /**
+     * Constructs a TaggedConnection with the given socket, letting frames wait up to the
+     * given delay to be written together with the frames that follow them.
+     * 
+     * @param socket The socket used for the connection.
+     * @param maxDelayNanos The maximum delay of a frame, in nanoseconds, or 0 to write every frame right away.
+     * @throws IOException If an error occurs while creating the input/output streams.
+     */
+    public TaggedConnection(Socket socket, long maxDelayNanos) throws IOException {
+        this(socket, maxDelayNanos, false, MAX_ARRAY_SIZE);
+    }
+
+    /**
+     * Constructs a TaggedConnection with the given socket, letting frames wait up to the
+     * given delay to be written together with the frames that follow them, for the server
+     * side of a connection that may agree to compress frames. Frames longer than MAX_FRAME_SIZE,
+     * compressed or not, are refused.
+     * 
+     * @param socket The socket used for the connection.
+     * @param maxDelayNanos The maximum delay of a frame, in nanoseconds, or 0 to write every frame right away.
+     * @param acceptsCompression Whether to compress frames if the client asks for it in its HelloRequest.
+     * @throws IOException If an error occurs while creating the input/output streams.
+     */
+    public TaggedConnection(Socket socket, long maxDelayNanos, boolean acceptsCompression) throws IOException {
+        this(socket, maxDelayNanos, acceptsCompression, MAX_FRAME_SIZE);
+    }
+
+    private TaggedConnection(Socket socket, long maxDelayNanos, boolean acceptsCompression, int maxFrameSize)
+            throws IOException {
         this.socket = socket;
+        this.acceptsCompression = acceptsCompression;
+        this.maxFrameSize = maxFrameSize;
+        this.channel = socket.getChannel();
+        this.maxDelayNanos = maxDelayNanos;
+        // Responses sent in several frames, such as scan pages, must not wait for the previous ACK
+        socket.setTcpNoDelay(true);
         this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
@@ -86,19 +234,284 @@ public class TaggedConnection implements AutoCloseable {
      * @param data The data to be sent.
      * @throws IOException If an error occurs during sending the frame.
      */
+    @Override
     public void send(int tag, short request, byte[] data) throws IOException {
+        if (compression && (request & Protocol.COMPRESSED) == 0) {
+            PooledBuffer packed = Compression.compressFrame(data, 0, data.length);
+            if (packed != null) {
+                send(tag, (short) (request | Protocol.COMPRESSED), packed);
+                return;
+            }
+        }
+
+        // HEADER | DATA
+        Protocol current = protocol;
+        byte[] header = new byte[current.headerLength(tag, data.length)];
+        current.putHeader(header, 0, tag, request, data.length);
+        long sequence;
         sendLock.lock();
         try {
-            out.writeInt(tag); 
-            out.writeShort(request);
-            out.writeInt(data.length); 
-            out.write(data); 
-            out.flush();
+            if (failure != null) {
+                throw failure;
+            }
+            pending.add(ByteBuffer.wrap(header));
+            pending.add(ByteBuffer.wrap(data));
+            pendingBytes += header.length + data.length;
+            sequence = ++queuedSequence;
+            if (!mustWrite()) {
+                return;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Sends a frame held in a pooled buffer, whose first MAX_HEADER_SIZE bytes are reserved
+     * for the header and followed by the data. The buffer is released once written, or if the
+     * frame cannot be sent. Requests with the COMPRESSED bit set already hold compressed data.
+     * 
+     * @param tag The tag for the frame.
+     * @param request The request type for the frame.
+     * @param frame The buffer holding the frame.
+     * @throws IOException If an error occurs during sending the frame.
+     */
+    @Override
+    public void send(int tag, short request, PooledBuffer frame) throws IOException {
+        if (compression && (request & Protocol.COMPRESSED) == 0) {
+            PooledBuffer packed = Compression.compressFrame(frame);
+            if (packed != null) {
+                frame.release();
+                frame = packed;
+                request |= Protocol.COMPRESSED;
+            }
+        }
+
+        // HEADER | DATA, the header ending where the data starts
+        Protocol current = protocol;
+        int length = frame.length() - MAX_HEADER_SIZE;
+        int offset = MAX_HEADER_SIZE - current.headerLength(tag, length);
+        current.putHeader(frame.array(), offset, tag, request, length);
+        long sequence;
+        sendLock.lock();
+        try {
+            if (failure != null) {
+                frame.release();
+                throw failure;
+            }
+            pending.add(frame.view(offset));
+            pendingBuffers.add(frame);
+            pendingBytes += frame.length() - offset;
+            sequence = ++queuedSequence;
+            if (!mustWrite()) {
+                return;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Decides whether the frame just queued is written right away, or else schedules the
+     * queued frames to be written once their delay runs out. Called while holding the send lock.
+     */
+    private boolean mustWrite() {
+        if (maxDelayNanos == 0 || pendingBytes >= MAX_BATCH_BYTES) {
+            return true;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.schedule(this::flushDelayed, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Writes every frame queued so far without waiting for its delay to run out.
+     * 
+     * @throws IOException If an error occurs during sending the frames.
+     */
+    public void flush() throws IOException {
+        long sequence;
+        sendLock.lock();
+        try {
+            sequence = queuedSequence;
+        } finally {
+            sendLock.unlock();
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Gets the version of the protocol the connection uses.
+     */
+    public int protocolVersion() {
+        return protocol.version();
+    }
+
+    /**
+     * Checks whether the data of large frames is compressed, as negotiated by the handshake.
+     */
+    @Override
+    public boolean compressesFrames() {
+        return compression;
+    }
+
+    /**
+     * Negotiates the version of the protocol and whether frames are compressed, on the client
+     * side, before any other frame is sent or received. Version 1 needs no handshake, so that
+     * servers that only know it can still be reached, and never compresses frames.
+     * 
+     * @param version The latest version the client supports.
+     * @param compression Whether to ask the server to compress large frames.
+     * @throws IOException If the server does not answer the handshake.
+     */
+    public void handshake(int version, boolean compression) throws IOException {
+        receiveLock.lock();
+        try {
+            acceptsHello = false;
+        } finally {
+            receiveLock.unlock();
+        }
+        if (version <= Protocol.V1.version()) {
+            return;
+        }
+
+        // HELLO REQUEST | VERSION (byte) | FEATURES (byte)
+        int features = compression ? Protocol.COMPRESSION_FEATURE : 0;
+        send(0, RequestType.HelloRequest.getValue(),
+            new byte[] { 0, (byte) RequestType.HelloRequest.getValue(), (byte) version, (byte) features });
+        flush();
+        // VERSION (byte) | FEATURES (byte), servers that do not know of features only answer the version
+        Frame answer = receive();
+        if (answer.requestType != RequestType.HelloRequest.getValue() || answer.data.length < 1 || answer.data.length > 2
+            || answer.data[0] < Protocol.V1.version() || answer.data[0] > version) {
+            throw new IOException("Unexpected answer to the protocol handshake");
+        }
+        protocol = Protocol.of(answer.data[0]);
+        this.compression = protocol != Protocol.V1 && answer.data.length == 2
+            && (answer.data[1] & features & Protocol.COMPRESSION_FEATURE) != 0;
+    }
+
+    /**
+     * Gets the number of frames sent and of writes that sent them, and the bytes sent and
+     * received, over every connection.
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("connections.frames.sent", FRAMES_SENT.sum());
+        stats.put("connections.writes", WRITES.sum());
+        stats.put("connections.bytes.sent", BYTES_SENT.sum());
+        stats.put("connections.bytes.received", BYTES_RECEIVED.sum());
+        return stats;
+    }
+
+    /**
+     * Writes the queued frames once their delay ran out. Runs on the flusher thread, so a
+     * failure is left for the next send to report.
+     */
+    private void flushDelayed() {
+        sendLock.lock();
+        try {
+            flushScheduled = false;
+        } finally {
+            sendLock.unlock();
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            // Kept in failure
+        }
+    }
+
+    /**
+     * Waits until the frame with the given sequence number is written. Writes the queued
+     * frames if no other sender is doing it.
+     */
+    private void sync(long sequence) throws IOException {
+        sendLock.lock();
+        try {
+            while (writtenSequence < sequence) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (writing) {
+                    batchWritten.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Write everything queued so far
+                writing = true;
+                List<ByteBuffer> batch = pending;
+                List<PooledBuffer> batchBuffers = pendingBuffers;
+                long batchSequence = queuedSequence;
+                pending = spare;
+                pendingBuffers = spareBuffers;
+                pendingBytes = 0;
+                sendLock.unlock();
+                try {
+                    write(batch);
+                    FRAMES_SENT.add(batchSequence - writtenSequence);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    for (PooledBuffer buffer : batchBuffers) {
+                        buffer.release();
+                    }
+                    batch.clear();
+                    batchBuffers.clear();
+                    sendLock.lock();
+                    spare = batch;
+                    spareBuffers = batchBuffers;
+                    writing = false;
+                    if (failure == null) {
+                        writtenSequence = batchSequence;
+                    }
+                    batchWritten.signalAll();
+                }
+            }
         } finally {
             sendLock.unlock();
         }
     }
 
+    /**
+     * Writes a batch of frames with a single gathering write, or to the output stream with a
+     * single flush when the socket has no channel.
+     */
+    private void write(List<ByteBuffer> batch) throws IOException {
+        if (channel == null) {
+            for (ByteBuffer buffer : batch) {
+                out.write(buffer.array(), buffer.position(), buffer.remaining());
+                BYTES_SENT.add(buffer.remaining());
+            }
+            out.flush();
+            WRITES.increment();
+            return;
+        }
+
+        int count = batch.size();
+        if (gather.length < count) {
+            gather = new ByteBuffer[Math.max(count, gather.length * 2)];
+        }
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            gather[i] = batch.get(i);
+            remaining += gather[i].remaining();
+        }
+        BYTES_SENT.add(remaining);
+        try {
+            while (remaining > 0) {
+                remaining -= channel.write(gather, 0, count);
+                WRITES.increment();
+            }
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+        }
+    }
+
     /**
      * Receives a frame from the connection. The method blocks until a complete frame is received.
      * Ensures thread-safety by locking the receive operation.
@@ -109,24 +522,123 @@ public class TaggedConnection implements AutoCloseable {
     public Frame receive() throws IOException {
         receiveLock.lock();
         try {
-            int tag = in.readInt(); 
-            short request = in.readShort();
-            int length = in.readInt(); 
+            int length = readHeader();
             byte[] data = new byte[length];
             in.readFully(data); 
-            return new Frame(tag, request, data);
+            if (receivedCompressed) {
+                data = Compression.decompressFrame(data, maxFrameSize);
+            }
+            return new Frame(receivedTag, receivedRequest, data);
         } finally {
             receiveLock.unlock();
         }
     }
 
     /**
-     * Closes the connection by closing the underlying socket.
+     * Receives a frame from the connection into a buffer of the BufferPool, which whoever
+     * handles the frame must release. The method blocks until a complete frame is received.
+     * 
+     * @return A Frame object containing the received tag, request type, and buffer.
+     * @throws IOException If an error occurs during receiving the frame.
+     */
+    public Frame receivePooled() throws IOException {
+        receiveLock.lock();
+        try {
+            int length = readHeader();
+            PooledBuffer buffer = BufferPool.DEFAULT.acquire(length);
+            try {
+                buffer.fill(in, length);
+                if (receivedCompressed) {
+                    PooledBuffer packed = buffer;
+                    buffer = null;
+                    try {
+                        buffer = Compression.decompressFrame(packed, maxFrameSize);
+                    } finally {
+                        packed.release();
+                    }
+                }
+            } catch (IOException e) {
+                if (buffer != null) {
+                    buffer.release();
+                }
+                throw e;
+            }
+            return new Frame(receivedTag, receivedRequest, buffer);
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the header of the next frame into receivedTag, receivedRequest and receivedCompressed,
+     * answering the HelloRequest that may come first. Called while holding the receive lock.
+     * 
+     * @return The length of the data of the frame.
+     */
+    private int readHeader() throws IOException {
+        while (true) {
+            int length;
+            if (protocol == Protocol.V1) {
+                // TAG | REQUEST TYPE | LENGTH
+                receivedTag = in.readInt();
+                receivedRequest = in.readShort();
+                length = in.readInt();
+            } else {
+                // TAG (varint) | OPCODE (byte) | LENGTH (varint)
+                receivedTag = Protocol.readVarint(in);
+                receivedRequest = (short) in.readUnsignedByte();
+                length = Protocol.readVarint(in);
+            }
+            receivedCompressed = protocol != Protocol.V1 && (receivedRequest & Protocol.COMPRESSED) != 0;
+            if (receivedCompressed) {
+                if (!compression) {
+                    throw new IOException("Compressed frame on a connection without compression");
+                }
+                receivedRequest &= ~Protocol.COMPRESSED;
+            }
+            if (length < 0 || length > maxFrameSize) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            BYTES_RECEIVED.add(protocol.headerLength(receivedTag, length) + length);
+
+            boolean hello = acceptsHello && receivedRequest == RequestType.HelloRequest.getValue();
+            acceptsHello = false;
+            if (!hello) {
+                return length;
+            }
+
+            // HELLO REQUEST | VERSION (byte) | [FEATURES (byte)], answered in version 1 with
+            // VERSION (byte) | [FEATURES (byte)], the features only if the client sent them
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if (length < 3) {
+                throw new IOException("Invalid protocol handshake");
+            }
+            Protocol chosen = Protocol.negotiate(data[2]);
+            int features = length > 3 && chosen != Protocol.V1 && acceptsCompression
+                ? data[3] & Protocol.COMPRESSION_FEATURE : 0;
+            send(receivedTag, receivedRequest, length > 3
+                ? new byte[] { (byte) chosen.version(), (byte) features }
+                : new byte[] { (byte) chosen.version() });
+            flush();
+            protocol = chosen;
+            compression = features != 0;
+        }
+    }
+
+    /**
+     * Closes the connection by closing the underlying socket, after writing the queued frames.
      * 
      * @throws IOException If an error occurs while closing the socket.
      */
     @Override
     public void close() throws IOException {
-        socket.close();
+        try {
+            flush();
+        } catch (IOException e) {
+            // The socket is closed anyway
+        } finally {
+            socket.close();
+        }
     }
 }
\ No newline at end of file
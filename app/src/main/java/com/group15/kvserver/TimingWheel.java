@@ -0,0 +1,144 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The TimingWheel class keeps the keys that expire, so that they can be found when their time
+ * comes without scanning every key. Time advances in ticks and the wheel has four levels of
+ * 64 slots: a key is placed in the lowest level whose range covers its deadline, and the keys
+ * of a slot of a higher level are moved to the lower levels when the wheel reaches that slot.
+ * Scheduling a key and advancing one tick are both constant time.
+ *
+ * Rescheduling or removing a key does not take its old entry out of the wheel. Entries are
+ * only hints: the caller checks the current deadline of each key returned by advance.
+ */
+class TimingWheel {
+    private static final int LEVELS = 4;
+    /* Each level has 2^SLOT_BITS slots */
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    /**
+     * A key scheduled to expire.
+     */
+    static class Entry {
+        final String key;
+        final long deadline;
+
+        Entry(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    /* Slots of every level, created when first used */
+    private final List<List<List<Entry>>> slots = new ArrayList<>();
+    /* Entries whose deadline had passed when they were scheduled */
+    private List<Entry> due = new ArrayList<>();
+    /* Number of ticks since the wheel started */
+    private long currentTick = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructs a wheel that starts now.
+     *
+     * @param tickMillis The length of a tick, in milliseconds.
+     */
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        for (int level = 0; level < LEVELS; level++) {
+            slots.add(new ArrayList<>(Collections.nCopies(1 << SLOT_BITS, null)));
+        }
+    }
+
+    /**
+     * Schedules a key to expire.
+     *
+     * @param key The key.
+     * @param deadline When the key expires, in milliseconds since the epoch.
+     */
+    public void schedule(String key, long deadline) {
+        lock.lock();
+        try {
+            add(new Entry(key, deadline));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Places an entry in its slot. Must be called while holding the lock.
+     */
+    private void add(Entry entry) {
+        // Round up, so that keys never expire before their deadline
+        long tick = Math.floorDiv(entry.deadline - startMillis + tickMillis - 1, tickMillis);
+        long delay = tick - currentTick;
+        if (delay <= 0) {
+            due.add(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (delay >= 1L << (SLOT_BITS * LEVELS)) {
+            // Beyond the range of the wheel, wait in the farthest slot and be placed again from there
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+        List<Entry> entries = slots.get(level).get(slot);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            slots.get(level).set(slot, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     *
+     * @param nowMillis The current time, in milliseconds since the epoch.
+     * @return The entries whose deadline was reached.
+     */
+    public List<Entry> advance(long nowMillis) {
+        long targetTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        lock.lock();
+        try {
+            List<Entry> expired = due;
+            due = new ArrayList<>();
+            while (currentTick < targetTick) {
+                currentTick++;
+                // Move down the slots of the higher levels that start at this tick
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                        int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+                        List<Entry> entries = slots.get(level).set(slot, null);
+                        if (entries != null) {
+                            for (Entry entry : entries) {
+                                add(entry);
+                            }
+                        }
+                    }
+                }
+
+                int slot = (int) currentTick & SLOT_MASK;
+                List<Entry> entries = slots.get(0).set(slot, null);
+                if (entries != null) {
+                    expired.addAll(entries);
+                }
+                expired.addAll(due);
+                due.clear();
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.group15.kvserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An eviction policy based on W-TinyLFU. New keys enter a small LRU window. When the window
+ * is full, its least recently used key becomes a candidate for the main space, a segmented
+ * LRU split into probation and protected parts, and it is only admitted if it was used more
+ * often than the key the main space would evict for it. Keys read while on probation are
+ * promoted to the protected part.
+ *
+ * Usage frequencies are estimated by a count-min sketch of 4-bit counters, halved
+ * periodically so that keys that stop being used lose their history.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+    /* Share of the budget given to the window */
+    private static final double WINDOW_SHARE = 0.01;
+    /* Share of the main space given to the protected part */
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final long windowMaximum;
+    private final long mainMaximum;
+    private final long protectedMaximum;
+
+    /* The segments map their keys to their weights, from the least to the most recently used */
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<>();
+    private long windowWeight = 0;
+    private long probationWeight = 0;
+    private long protectedWeight = 0;
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    /**
+     * Constructs the policy for the given budget.
+     *
+     * @param budget The memory budget, in bytes.
+     */
+    public TinyLfuPolicy(long budget) {
+        this.windowMaximum = Math.max(1, (long) (budget * WINDOW_SHARE));
+        this.mainMaximum = budget - windowMaximum;
+        this.protectedMaximum = (long) (mainMaximum * PROTECTED_SHARE);
+    }
+
+    @Override
+    public void recordWrite(String key, long weight) {
+        sketch.increment(key);
+        Long previous;
+        // Rewritten keys keep their segment, new keys enter the window
+        if ((previous = probation.remove(key)) != null) {
+            probation.put(key, weight);
+            probationWeight += weight - previous;
+        } else if ((previous = protectedSegment.remove(key)) != null) {
+            protectedSegment.put(key, weight);
+            protectedWeight += weight - previous;
+        } else {
+            previous = window.remove(key);
+            window.put(key, weight);
+            windowWeight += weight - (previous == null ? 0 : previous);
+        }
+    }
+
+    @Override
+    public void recordRemoval(String key) {
+        Long previous;
+        if ((previous = window.remove(key)) != null) {
+            windowWeight -= previous;
+        } else if ((previous = probation.remove(key)) != null) {
+            probationWeight -= previous;
+        } else if ((previous = protectedSegment.remove(key)) != null) {
+            protectedWeight -= previous;
+        }
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        sketch.increment(key);
+        Long weight;
+        if ((weight = window.remove(key)) != null) {
+            window.put(key, weight);
+        } else if ((weight = probation.remove(key)) != null) {
+            probationWeight -= weight;
+            protectedSegment.put(key, weight);
+            protectedWeight += weight;
+            // Demote the least recently used protected keys back to probation
+            while (protectedWeight > protectedMaximum && protectedSegment.size() > 1) {
+                Map.Entry<String, Long> demoted = removeEldest(protectedSegment);
+                protectedWeight -= demoted.getValue();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationWeight += demoted.getValue();
+            }
+        } else if ((weight = protectedSegment.remove(key)) != null) {
+            protectedSegment.put(key, weight);
+        }
+    }
+
+    @Override
+    public String evict() {
+        while (windowWeight > windowMaximum || (probation.isEmpty() && protectedSegment.isEmpty())) {
+            Map.Entry<String, Long> candidate = eldest(window);
+            if (candidate == null) {
+                return null;
+            }
+
+            // While the main space has room, keys leaving the window enter it without competing
+            if (probationWeight + protectedWeight + candidate.getValue() <= mainMaximum) {
+                removeEldest(window);
+                windowWeight -= candidate.getValue();
+                probation.put(candidate.getKey(), candidate.getValue());
+                probationWeight += candidate.getValue();
+                continue;
+            }
+
+            LinkedHashMap<String, Long> victimSegment = !probation.isEmpty() ? probation : protectedSegment;
+            Map.Entry<String, Long> victim = eldest(victimSegment);
+
+            // Admit the candidate only if it is used more often than the key it would replace
+            if (victim != null && sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+                removeEldest(victimSegment);
+                removeWeight(victimSegment, victim.getValue());
+                removeEldest(window);
+                windowWeight -= candidate.getValue();
+                probation.put(candidate.getKey(), candidate.getValue());
+                probationWeight += candidate.getValue();
+                return victim.getKey();
+            }
+            removeEldest(window);
+            windowWeight -= candidate.getValue();
+            return candidate.getKey();
+        }
+
+        LinkedHashMap<String, Long> victimSegment = !probation.isEmpty() ? probation : protectedSegment;
+        Map.Entry<String, Long> victim = removeEldest(victimSegment);
+        removeWeight(victimSegment, victim.getValue());
+        return victim.getKey();
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    @Override
+    public long weightedSize() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    private void removeWeight(LinkedHashMap<String, Long> segment, long weight) {
+        if (segment == probation) {
+            probationWeight -= weight;
+        } else {
+            protectedWeight -= weight;
+        }
+    }
+
+    private static Map.Entry<String, Long> eldest(LinkedHashMap<String, Long> segment) {
+        Iterator<Map.Entry<String, Long>> entries = segment.entrySet().iterator();
+        if (!entries.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, Long> entry = entries.next();
+        return Map.entry(entry.getKey(), entry.getValue());
+    }
+
+    private static Map.Entry<String, Long> removeEldest(LinkedHashMap<String, Long> segment) {
+        Iterator<Map.Entry<String, Long>> entries = segment.entrySet().iterator();
+        Map.Entry<String, Long> entry = entries.next();
+        Map.Entry<String, Long> removed = Map.entry(entry.getKey(), entry.getValue());
+        entries.remove();
+        return removed;
+    }
+
+    /**
+     * A count-min sketch with four rows of 4-bit counters, packed sixteen to a long.
+     * Every counter is halved once the number of increments reaches ten times the width,
+     * and the sketch grows with the number of distinct keys it sees.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        /* Four rows of counters, one after the other */
+        private long[] table = new long[4 * 64];
+        /* Number of counters per row */
+        private int width = 64 * 16;
+        private int increments = 0;
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                int shift = (index & 15) << 2;
+                int slot = row * (width >>> 4) + (index >>> 4);
+                if (((table[slot] >>> shift) & 0xF) < MAX_COUNT) {
+                    table[slot] += 1L << shift;
+                }
+            }
+            if (++increments >= 10 * width) {
+                age();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                int slot = row * (width >>> 4) + (index >>> 4);
+                frequency = Math.min(frequency, (int) ((table[slot] >>> ((index & 15) << 2)) & 0xF));
+            }
+            return frequency;
+        }
+
+        /**
+         * Halves every counter, doubling the width first while the sketch is saturated,
+         * which happens when it sees many more keys than it has counters for.
+         */
+        private void age() {
+            if (width < (1 << 26) && increments >= 10 * width && saturated()) {
+                width <<= 1;
+                table = new long[4 * (width >>> 4)];
+                increments = 0;
+                return;
+            }
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            increments /= 2;
+        }
+
+        /**
+         * Checks whether most counters are in use.
+         */
+        private boolean saturated() {
+            int used = 0;
+            for (long slot : table) {
+                used += Long.bitCount((slot | (slot >>> 1) | (slot >>> 2) | (slot >>> 3)) & 0x1111111111111111L);
+            }
+            return used > table.length * 16 * 3 / 4;
+        }
+
+        private int index(int hash, int row) {
+            long mixed = (hash + SEEDS[row]) * SEEDS[row];
+            mixed ^= mixed >>> 32;
+            return (int) mixed & (width - 1);
+        }
+    }
+}
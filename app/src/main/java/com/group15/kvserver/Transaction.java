@@ -0,0 +1,111 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Transaction class groups reads and writes of several keys, possibly in different
+ * shards, that take effect together. Reads go to the server and are remembered with the
+ * values they returned, while writes are kept here until the transaction commits.
+ * 
+ * Transactions are optimistic: nothing is locked while they run. The commit sends the values
+ * read along with the writes, and the server only applies the writes if none of the keys read
+ * has changed meanwhile, locking the shards of all the keys in ascending order while it checks
+ * and writes them. When the commit fails the transaction can be run again from the start.
+ * Values read by a transaction that fails to commit may not be consistent with each other,
+ * unless they were read together with multiGet.
+ * 
+ * A transaction is meant to be used by a single thread.
+ */
+public class Transaction {
+    private final ClientLibrary client;
+    /* Keys read, with the values read, or null for keys that were missing */
+    private final Map<String, byte[]> reads = new HashMap<>();
+    /* Keys written, with their new values, or null for keys removed */
+    private final Map<String, byte[]> writes = new HashMap<>();
+
+    /**
+     * Constructs a transaction that reads and commits through the given client.
+     *
+     * @param client the client
+     */
+    Transaction(ClientLibrary client) {
+        this.client = client;
+    }
+
+    /**
+     * Gets the value of a key, as written by this transaction or, the first time the key is
+     * read, as stored by the server.
+     *
+     * @param key the key
+     * @return the value, or null if there is none
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public byte[] get(String key) throws IOException {
+        if (writes.containsKey(key)) {
+            return writes.get(key);
+        }
+        if (!reads.containsKey(key)) {
+            reads.put(key, client.get(key));
+        }
+        return reads.get(key);
+    }
+
+    /**
+     * Gets the values of a set of keys. The keys not read nor written before by this
+     * transaction are read together, as a consistent snapshot.
+     *
+     * @param keys the keys
+     * @return a map from every key to its value, or to null if there is none
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        Set<String> missing = new HashSet<>();
+        for (String key : keys) {
+            if (!writes.containsKey(key) && !reads.containsKey(key)) {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            reads.putAll(client.multiGet(missing));
+        }
+
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (String key : keys) {
+            pairs.put(key, writes.containsKey(key) ? writes.get(key) : reads.get(key));
+        }
+        return pairs;
+    }
+
+    /**
+     * Stores a value with the specified key when the transaction commits.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(String key, byte[] value) {
+        writes.put(key, value);
+    }
+
+    /**
+     * Removes a key when the transaction commits.
+     *
+     * @param key the key
+     */
+    public void remove(String key) {
+        writes.put(key, null);
+    }
+
+    /**
+     * Applies the writes of the transaction if none of the keys it read has changed since.
+     *
+     * @return true if the writes were applied, false if the transaction conflicted with another write
+     * @throws IOException if there is an issue committing the transaction
+     */
+    public boolean commit() throws IOException {
+        return client.commit(reads, writes);
+    }
+}
@@ -0,0 +1,115 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The WatchRegistry class keeps the get-when requests that are waiting for a condition,
+ * indexed by the key of the condition. A waiter is a small record instead of a thread,
+ * so pending requests only cost memory, and a write only evaluates the waiters
+ * registered for the key it changed.
+ * 
+ * Callers must register a watch and write the watched key under the lock of the key's
+ * shard, so that a write cannot slip between checking the condition and registering.
+ * 
+ * An empty expected value also matches a missing key, the same way a get-when response
+ * reports a missing key with an empty value, so a request can wait for a key to expire.
+ */
+class WatchRegistry {
+    /**
+     * A get-when request waiting for its condition.
+     */
+    static class Watch {
+        /* The connection the response is sent to. */
+        final FrameSender sender;
+        /* The tag of the request. */
+        final int tag;
+        /* The key whose value is returned once the condition holds. */
+        final String key;
+        /* The value the condition key must have. */
+        final byte[] expected;
+
+        Watch(FrameSender sender, int tag, String key, byte[] expected) {
+            this.sender = sender;
+            this.tag = tag;
+            this.key = key;
+            this.expected = expected;
+        }
+    }
+
+    /* Waiting requests indexed by the key of their condition */
+    private final Map<String, List<Watch>> watches = new ConcurrentHashMap<>();
+
+    /**
+     * Checks whether a condition holds.
+     * 
+     * @param expected The value the condition key must have.
+     * @param value The value of the condition key, or null if it is missing.
+     * @return true if the condition holds.
+     */
+    static boolean holds(byte[] expected, byte[] value) {
+        return value == null ? expected.length == 0 : Arrays.equals(expected, value);
+    }
+
+    /**
+     * Registers a request waiting for the given key to hold the expected value.
+     * 
+     * @param keyCond The key of the condition.
+     * @param watch The waiting request.
+     */
+    void register(String keyCond, Watch watch) {
+        watches.compute(keyCond, (k, waiting) -> {
+            if (waiting == null) {
+                waiting = new ArrayList<>();
+            }
+            waiting.add(watch);
+            return waiting;
+        });
+    }
+
+    /**
+     * Removes and returns the requests whose condition holds now that the key has the given value.
+     * 
+     * @param keyCond The key that was written.
+     * @param value The new value of the key, or null if it was removed.
+     * @return The requests that can be answered.
+     */
+    List<Watch> match(String keyCond, byte[] value) {
+        if (!watches.containsKey(keyCond)) {
+            return Collections.emptyList();
+        }
+
+        List<Watch> matched = new ArrayList<>();
+        watches.computeIfPresent(keyCond, (k, waiting) -> {
+            waiting.removeIf(watch -> {
+                if (holds(watch.expected, value)) {
+                    matched.add(watch);
+                    return true;
+                }
+                return false;
+            });
+            return waiting.isEmpty() ? null : waiting;
+        });
+        return matched;
+    }
+
+    /**
+     * Removes every request of a connection that is closing.
+     * 
+     * @param sender The connection of the requests.
+     * @param keys The condition keys the connection registered requests for.
+     */
+    void cancel(FrameSender sender, Collection<String> keys) {
+        for (String keyCond : keys) {
+            watches.computeIfPresent(keyCond, (k, waiting) -> {
+                waiting.removeIf(watch -> watch.sender == sender);
+                return waiting.isEmpty() ? null : waiting;
+            });
+        }
+    }
+}
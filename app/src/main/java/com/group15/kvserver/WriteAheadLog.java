@@ -0,0 +1,392 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The WriteAheadLog class appends the writes of the server to a single log file, so that
+ * they can be replayed after a restart. Each record is stored as its length, a CRC32 of its
+ * contents and the contents themselves.
+ *
+ * Writes use group commit: a writer first appends its record to the pending batch, which is
+ * cheap and can be done while holding the locks that order the write, and then calls sync.
+ * The first writer to sync becomes the leader and writes the whole batch with a single
+ * gathering write and a single force, while the writers that arrive meanwhile wait for it.
+ *
+ * The fsync policy decides when the log is forced to disk: always (before sync returns),
+ * every N milliseconds (by a background thread) or never (left to the operating system).
+ *
+ * The log can be rotated to a new file, so that the records already covered by a snapshot
+ * can be deleted together with the old file.
+ */
+class WriteAheadLog implements AutoCloseable {
+    /* Size of the header of each record: length (int) and checksum (int) */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /* The file records are written to, replaced when the log is rotated */
+    private volatile FileChannel channel;
+    /* Force the log before sync returns */
+    private final boolean forceOnSync;
+    /* Forces the log periodically when the fsync policy is an interval */
+    private final ScheduledExecutorService forceScheduler;
+
+    /* Lock for the pending batch and the sequence numbers */
+    private final ReentrantLock lock = new ReentrantLock();
+    /* Signals the writers waiting for the leader to finish a batch */
+    private final Condition batchWritten = lock.newCondition();
+    /* Records appended but not yet written */
+    private List<ByteBuffer> pending = new ArrayList<>();
+    /* Sequence number of the last record appended */
+    private long appendedSequence = 0;
+    /* Sequence number of the last record written (and forced, if the policy says so) */
+    private long writtenSequence = 0;
+    /* Whether a leader is writing a batch */
+    private boolean writing = false;
+    /* The error that broke the log, after which every sync fails. Only read and written under the lock */
+    private IOException failure = null;
+
+    /* Number of batches written and of records in them, to report the average batch size */
+    private long batches = 0;
+    private long records = 0;
+
+    /**
+     * Opens the log, replaying the records it already holds. A torn or corrupted record at
+     * the end of the file, left by a crash, is discarded together with everything after it.
+     *
+     * @param file The log file, created if it does not exist.
+     * @param fsyncPolicy "always", "never" or an interval in milliseconds.
+     * @param replay Receives the contents of every valid record, in order.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public WriteAheadLog(Path file, String fsyncPolicy, Consumer<byte[]> replay) throws IOException {
+        long interval;
+        if (fsyncPolicy.equals("always")) {
+            interval = 0;
+        } else if (fsyncPolicy.equals("never")) {
+            interval = -1;
+        } else {
+            try {
+                interval = Long.parseLong(fsyncPolicy);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid fsync policy: " + fsyncPolicy);
+            }
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Invalid fsync interval: " + fsyncPolicy);
+            }
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = replay(channel, replay);
+        if (validLength < channel.size()) {
+            Logger.log("Discarding " + (channel.size() - validLength) + " bytes of incomplete records at the end of the log.", Logger.LogLevel.WARN);
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+
+        this.forceOnSync = interval == 0;
+        if (interval > 0) {
+            this.forceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.forceScheduler.scheduleWithFixedDelay(this::force, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.forceScheduler = null;
+        }
+    }
+
+    /**
+     * Replays a log that is no longer written to, such as the one a rotation left behind.
+     *
+     * @param file The log file.
+     * @param replay Receives the contents of every valid record, in order.
+     * @throws IOException If the log cannot be read.
+     */
+    public static void replay(Path file, Consumer<byte[]> replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            replay(channel, replay);
+        }
+    }
+
+    /**
+     * Reads every valid record from the start of the file.
+     *
+     * @return The length of the valid part of the file.
+     */
+    private static long replay(FileChannel channel, Consumer<byte[]> replay) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer contents = ByteBuffer.allocate(length);
+            while (contents.hasRemaining()) {
+                channel.read(contents, position + RECORD_HEADER_SIZE + contents.position());
+            }
+            crc.reset();
+            crc.update(contents.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            replay.accept(contents.array());
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Appends a record to the pending batch without writing it. Records are written in the
+     * order they were appended, so callers append while holding the locks that order their write.
+     *
+     * @param record The contents of the record.
+     * @return The sequence number of the record, to pass to sync.
+     */
+    public long append(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        buffer.flip();
+
+        lock.lock();
+        try {
+            pending.add(buffer);
+            return ++appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is written, and forced to disk
+     * when the fsync policy is "always". Writes the pending batch if no other writer is doing it.
+     *
+     * @param sequence The sequence number returned by append.
+     * @throws IOException If the log could not be written.
+     */
+    public void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (writtenSequence < sequence) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (writing) {
+                    batchWritten.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Become the leader and write everything appended so far
+                writing = true;
+                List<ByteBuffer> batch = pending;
+                long batchSequence = appendedSequence;
+                pending = new ArrayList<>();
+                lock.unlock();
+                IOException error = null;
+                try {
+                    write(channel, batch, forceOnSync);
+                } catch (IOException e) {
+                    Logger.log("Failed to write the log: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    error = e;
+                } finally {
+                    lock.lock();
+                    writing = false;
+                    if (error != null) {
+                        failure = error;
+                    }
+                    if (failure == null) {
+                        writtenSequence = batchSequence;
+                        batches++;
+                        records += batch.size();
+                    }
+                    batchWritten.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every record appended so far and forces the log to disk, whatever the fsync
+     * policy, so that data written elsewhere after the call is never on disk ahead of the log.
+     *
+     * @throws IOException If the log could not be written.
+     */
+    public void flush() throws IOException {
+        long sequence;
+        lock.lock();
+        try {
+            sequence = appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        if (!forceOnSync) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The log was rotated, the old file was forced before being closed
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of records with a single gathering write.
+     */
+    private static void write(FileChannel channel, List<ByteBuffer> batch, boolean force) throws IOException {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Switches the log to a new file. Every record appended before the call is written and
+     * forced to the old file, which is then closed, and every record appended after it goes
+     * to the new file.
+     *
+     * @param file The new log file, replaced if it exists.
+     * @throws IOException If either file could not be written.
+     */
+    public void rotate(Path file) throws IOException {
+        FileChannel next = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel previous;
+        List<ByteBuffer> batch;
+        long batchSequence;
+        lock.lock();
+        try {
+            // Act as the leader of the last batch of the old file
+            while (writing) {
+                batchWritten.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                next.close();
+                throw failure;
+            }
+            writing = true;
+            batch = pending;
+            batchSequence = appendedSequence;
+            pending = new ArrayList<>();
+            previous = channel;
+            channel = next;
+        } finally {
+            lock.unlock();
+        }
+
+        IOException error = null;
+        try {
+            write(previous, batch, true);
+            previous.close();
+        } catch (IOException e) {
+            Logger.log("Failed to write the log: " + e.getMessage(), Logger.LogLevel.ERROR);
+            error = e;
+        } finally {
+            lock.lock();
+            writing = false;
+            if (error != null) {
+                failure = error;
+            }
+            if (failure == null) {
+                writtenSequence = batchSequence;
+                batches++;
+                records += batch.size();
+            }
+            error = failure;
+            batchWritten.signalAll();
+            lock.unlock();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Forces the written records to disk. Used by the interval fsync policy.
+     */
+    private void force() {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // The log was rotated, the old file was forced before being closed
+        } catch (IOException e) {
+            Logger.log("Failed to force the log: " + e.getMessage(), Logger.LogLevel.ERROR);
+        }
+    }
+
+    /**
+     * Returns the average number of records written per batch.
+     */
+    public double averageBatchSize() {
+        lock.lock();
+        try {
+            return batches == 0 ? 0 : records / (double) batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records, forces the log to disk and closes it.
+     *
+     * @throws IOException If the log could not be written or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (forceScheduler != null) {
+            // Interrupting a thread blocked on the channel would close it, so let the force finish
+            forceScheduler.shutdown();
+            try {
+                forceScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long sequence;
+        lock.lock();
+        try {
+            sequence = appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        channel.force(false);
+        channel.close();
+    }
+}
@@ -1,14 +1,23 @@
 package com.group15.kvservertests;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +29,8 @@ import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
 
 import com.group15.kvserver.ClientLibrary;
+import com.group15.kvserver.TaggedConnection;
+import com.group15.kvserver.Transaction;
 import com.group15.kvserver.utils.Logger;
 
 public class Runner {
@@ -55,6 +66,21 @@ public class Runner {
             System.out.println("2. Get 1000 operations on the same key (testing hotspot behaviour)");
             System.out.println("3. MultiGet 1000 random key value pairs");
             System.out.println("4. MultiGet 100 operations on the same key (10 keys per multiget)");
+            System.out.println("5. Get with 100, 1000 and 10000 concurrent clients (compare threads and virtual server modes)");
+            System.out.println("6. Get 1000 operations from one client while 200 idle clients are connected");
+            System.out.println("7. 20000 pipelined operations, mostly gets on the same key (compare storage engines and shard counts)");
+            System.out.println("8. 10000 pipelined puts of 100 bytes (compare fsync policies)");
+            System.out.println("9. Get on one key for 10 seconds while 1000000 keys expire");
+            System.out.println("10. Prefix and range scans over 100000 keys");
+            System.out.println("11. 8 clients incrementing one counter, server-side increment against get and compare-and-set");
+            System.out.println("12. Puts from 4 clients with and without a client running multiGets of 50000 keys");
+            System.out.println("13. 8 clients transferring between 10 and then 1000 accounts with transactions");
+            System.out.println("14. 1000000 puts of 1 KB, then gets of stored and missing keys (run the server with storage=lsm and a small heap)");
+            System.out.println("15. 1000000 small keys, then pipelined and sequential gets (compare storage=compact with the other engines)");
+            System.out.println("16. 1000000 keys sharing a long prefix with repeated values, then gets (compare dedup=on with dedup=off)");
+            System.out.println("17. 100000 small puts and gets with protocol version 1 and then version 2 (compare bytes on the wire)");
+            System.out.println("18. MultiPuts and multiGets of 2 KB JSON documents without and then with compression (compare compression=frames with compression=values)");
+            System.out.println("19. Gets of a small key while a 128 MB value is put and read whole and then streamed in chunks");
             System.out.print("|> ");
             int workload = scanner.nextInt();
 
@@ -66,6 +92,36 @@ public class Runner {
                 runner.workload3();
             } else if (workload == 4) {
                 runner.workload4();
+            } else if (workload == 5) {
+                runner.workload5();
+            } else if (workload == 6) {
+                runner.workload6();
+            } else if (workload == 7) {
+                runner.workload7();
+            } else if (workload == 8) {
+                runner.workload8();
+            } else if (workload == 9) {
+                runner.workload9();
+            } else if (workload == 10) {
+                runner.workload10();
+            } else if (workload == 11) {
+                runner.workload11();
+            } else if (workload == 12) {
+                runner.workload12();
+            } else if (workload == 13) {
+                runner.workload13();
+            } else if (workload == 14) {
+                runner.workload14();
+            } else if (workload == 15) {
+                runner.workload15();
+            } else if (workload == 16) {
+                runner.workload16();
+            } else if (workload == 17) {
+                runner.workload17();
+            } else if (workload == 18) {
+                runner.workload18();
+            } else if (workload == 19) {
+                runner.workload19();
             } else {
                 Logger.log("Invalid workload selected.", Logger.LogLevel.ERROR);
             }
@@ -396,6 +452,1115 @@ public class Runner {
         generateGraph(responseTimes, timestamps, "MultiGet Operation Response time over time for a Server with " + numBuckets + " bucket(s) and " + maxClients + " client(s)", "100 multiget operations on the same key (10 keys per multiget)");
     }
 
+    /**
+     * Workload 5: Connects 100, 1000 and 10000 concurrent clients that each run 10 get operations.
+     * Run it once against a server started in threads mode and once in virtual mode to compare them.
+     * The clients themselves run on virtual threads so that they are not the bottleneck.
+     */
+    public void workload5() throws IOException {
+        Logger.log("Running workload 5", Logger.LogLevel.INFO);
+
+        Logger.log("Populating database.", Logger.LogLevel.INFO);
+        put("key", ("value").getBytes());
+
+        int[] clientCounts = {100, 1000, 10000};
+        int operationsPerClient = 10;
+        ThreadFactory threadFactory = Thread.ofVirtual().factory();
+
+        for (int clients : clientCounts) {
+            if (clients > maxClients) {
+                Logger.log("Skipping " + clients + " clients, the server only accepts " + maxClients + " at the same time.", Logger.LogLevel.WARN);
+                continue;
+            }
+
+            ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+            List<Long> responseTimes = new ArrayList<>();
+            ReentrantLock datapointsLock = new ReentrantLock();
+            CountDownLatch connected = new CountDownLatch(clients);
+            CountDownLatch start = new CountDownLatch(1);
+
+            for (int i = 0; i < clients; i++) {
+                executorService.submit(() -> {
+                    ClientLibrary client = null;
+                    try {
+                        client = new ClientLibrary(HOST, PORT, threadFactory);
+                    } catch (IOException e) {
+                        Logger.log("Connection failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        connected.countDown();
+                    }
+                    if (client == null) {
+                        return;
+                    }
+
+                    try {
+                        start.await();
+                        for (int j = 0; j < operationsPerClient; j++) {
+                            long startTime = System.nanoTime();
+                            client.get("key");
+                            long duration = System.nanoTime() - startTime;
+
+                            datapointsLock.lock();
+                            try {
+                                responseTimes.add(duration);
+                            } finally {
+                                datapointsLock.unlock();
+                            }
+                        }
+                        client.close();
+                    } catch (IOException e) {
+                        Logger.log("Get failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            long elapsed;
+            try {
+                connected.await();
+                long startTime = System.nanoTime();
+                start.countDown();
+                executorService.shutdown();
+                if (!executorService.awaitTermination(5, TimeUnit.MINUTES)) {
+                    executorService.shutdownNow();
+                }
+                elapsed = System.nanoTime() - startTime;
+            } catch (InterruptedException e) {
+                executorService.shutdownNow();
+                return;
+            }
+
+            Collections.sort(responseTimes);
+            long total = 0;
+            for (long responseTime : responseTimes) {
+                total += responseTime;
+            }
+            int completed = responseTimes.size();
+            double average = completed == 0 ? 0 : total / (double) completed / 1_000_000.0;
+            double p99 = completed == 0 ? 0 : responseTimes.get((int) Math.ceil(completed * 0.99) - 1) / 1_000_000.0;
+            double throughput = completed / (elapsed / 1_000_000_000.0);
+
+            Logger.log(String.format("%d clients: %d/%d gets in %.1f ms, %.0f ops/s, average %.3f ms, p99 %.3f ms",
+                clients, completed, clients * operationsPerClient, elapsed / 1_000_000.0, throughput, average, p99), Logger.LogLevel.INFO);
+        }
+    }
+
+    /**
+     * Workload 6: Runs 1000 sequential get operations from one client while 200 idle clients are connected.
+     * Idle connections should cost no CPU on the server, so the response time should match an idle server.
+     */
+    public void workload6() throws IOException {
+        Logger.log("Running workload 6", Logger.LogLevel.INFO);
+
+        int idleClients = Math.min(200, maxClients - 1);
+        List<ClientLibrary> idle = new ArrayList<>();
+        for (int i = 0; i < idleClients; i++) {
+            idle.add(new ClientLibrary(HOST, PORT));
+        }
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        client.put("key", ("value").getBytes());
+
+        final long workloadStartTime = System.currentTimeMillis();
+        for (int i = 1; i <= 1000; i++) {
+            long startTime = System.nanoTime();
+            client.get("key");
+            long endTime = System.nanoTime();
+            responseTimes.add(endTime - startTime);
+            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+        }
+
+        client.close();
+        for (ClientLibrary idleClient : idle) {
+            idleClient.close();
+        }
+
+        generateGraph(responseTimes, timestamps, "Get Operation Response time over time for a Server with " + numBuckets + " bucket(s) and " + idleClients + " idle client(s)", "1000 sequential get operations on the same key");
+    }
+
+    /**
+     * Workload 7: Runs 20000 pipelined operations through one client, with up to 256 in flight:
+     * 80% gets on the same key, 15% puts on random keys and 5% multigets of 10 random keys.
+     * Run it against servers with different storage engines and shard counts to compare them.
+     */
+    public void workload7() throws IOException {
+        Logger.log("Running workload 7", Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        Semaphore inFlight = new Semaphore(256);
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+
+        Logger.log("Populating database.", Logger.LogLevel.INFO);
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        puts.add(client.putAsync("key", ("value").getBytes()));
+        for (int i = 1; i <= 1000; i++) {
+            puts.add(client.putAsync("key" + i, ("value" + i).getBytes()));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+
+        final long workloadStartTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        for (int i = 1; i <= 20000; i++) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int operation = random.nextInt(100);
+            long operationStartTime = System.nanoTime();
+            CompletableFuture<?> future;
+            if (operation < 80) {
+                future = client.getAsync("key");
+            } else if (operation < 95) {
+                int key = random.nextInt(1, 1001);
+                future = client.putAsync("key" + key, ("value" + key).getBytes());
+            } else {
+                Set<String> keys = new HashSet<>();
+                for (int j = 1; j <= 10; j++) {
+                    keys.add("key" + random.nextInt(1, 1001));
+                }
+                future = client.multiGetAsync(keys);
+            }
+
+            future.whenComplete((result, error) -> {
+                long duration = System.nanoTime() - operationStartTime;
+                long timestamp = System.currentTimeMillis() - workloadStartTime;
+                if (error != null) {
+                    Logger.log("Operation failed: " + error.getMessage(), Logger.LogLevel.ERROR);
+                }
+
+                datapointsLock.lock();
+                try {
+                    responseTimes.add(duration);
+                    timestamps.add(timestamp);
+                } finally {
+                    datapointsLock.unlock();
+                }
+                inFlight.release();
+            });
+        }
+
+        inFlight.acquireUninterruptibly(256);
+        long elapsed = System.nanoTime() - startTime;
+        client.close();
+
+        Logger.log(String.format("%d operations in %.1f ms, %.0f ops/s", responseTimes.size(), elapsed / 1_000_000.0,
+            responseTimes.size() / (elapsed / 1_000_000_000.0)), Logger.LogLevel.INFO);
+        generateGraph(responseTimes, timestamps, "Operation Response time over time for a Server with " + numBuckets + " bucket(s)", "20000 pipelined operations, mostly gets on the same key");
+    }
+
+    /**
+     * Workload 8: Runs 10000 pipelined puts of 100 bytes through one client, with up to 256 in flight.
+     * Run it against servers without a log and with each fsync policy to compare the cost of durability.
+     */
+    public void workload8() throws IOException {
+        Logger.log("Running workload 8", Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        Semaphore inFlight = new Semaphore(256);
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        byte[] value = new byte[100];
+
+        final long workloadStartTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        for (int i = 1; i <= 10000; i++) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            long operationStartTime = System.nanoTime();
+            client.putAsync("key" + i, value).whenComplete((result, error) -> {
+                long duration = System.nanoTime() - operationStartTime;
+                long timestamp = System.currentTimeMillis() - workloadStartTime;
+                if (error != null) {
+                    Logger.log("Put failed: " + error.getMessage(), Logger.LogLevel.ERROR);
+                }
+
+                datapointsLock.lock();
+                try {
+                    responseTimes.add(duration);
+                    timestamps.add(timestamp);
+                } finally {
+                    datapointsLock.unlock();
+                }
+                inFlight.release();
+            });
+        }
+
+        inFlight.acquireUninterruptibly(256);
+        long elapsed = System.nanoTime() - startTime;
+        client.close();
+
+        List<Long> sortedTimes = new ArrayList<>(responseTimes);
+        Collections.sort(sortedTimes);
+        double p99 = sortedTimes.isEmpty() ? 0 : sortedTimes.get((int) Math.ceil(sortedTimes.size() * 0.99) - 1) / 1_000_000.0;
+        Logger.log(String.format("%d puts in %.1f ms, %.0f ops/s, p99 %.3f ms", responseTimes.size(), elapsed / 1_000_000.0,
+            responseTimes.size() / (elapsed / 1_000_000_000.0), p99), Logger.LogLevel.INFO);
+        generateGraph(responseTimes, timestamps, "Put Operation Response time over time for a Server with " + numBuckets + " bucket(s)", "10000 pipelined puts of 100 bytes");
+    }
+
+    /**
+     * Workload 9: Stores 1000000 keys that expire 5 seconds later and runs sequential get operations
+     * on another key for 10 seconds. The server reaps the expired keys in the background, so the
+     * response time should not change when they expire.
+     */
+    public void workload9() throws IOException {
+        Logger.log("Running workload 9", Logger.LogLevel.INFO);
+
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        client.put("key", ("value").getBytes());
+
+        Semaphore inFlight = new Semaphore(64);
+        long insertStartTime = System.currentTimeMillis();
+        for (int batch = 0; batch < 1000; batch++) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                pairs.put("session" + (batch * 1000 + i), ("value").getBytes());
+            }
+            inFlight.acquireUninterruptibly();
+            client.multiPutAsync(pairs, 5000).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(64);
+        Logger.log("Stored 1000000 expiring keys in " + (System.currentTimeMillis() - insertStartTime) + " ms", Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - workloadStartTime < 10000) {
+            long startTime = System.nanoTime();
+            client.get("key");
+            long endTime = System.nanoTime();
+            responseTimes.add(endTime - startTime);
+            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+        }
+
+        // Report the tail latency of every second, the keys expire around the fifth one
+        int start = 0;
+        for (int second = 1; second <= 10; second++) {
+            int end = start;
+            while (end < timestamps.size() && timestamps.get(end) < second * 1000L) {
+                end++;
+            }
+            List<Long> window = new ArrayList<>(responseTimes.subList(start, end));
+            Collections.sort(window);
+            if (!window.isEmpty()) {
+                Logger.log(String.format("Second %d: %d gets, p99 %.3f ms, max %.3f ms", second, window.size(),
+                    window.get((int) Math.ceil(window.size() * 0.99) - 1) / 1_000_000.0, window.get(window.size() - 1) / 1_000_000.0), Logger.LogLevel.INFO);
+            }
+            start = end;
+        }
+        client.close();
+
+        generateGraph(responseTimes, timestamps, "Get Operation Response time over time for a Server with " + numBuckets + " bucket(s)", "Sequential gets on one key while 1000000 keys expire");
+    }
+
+    /**
+     * Workload 10: Stores 100000 keys under 100 prefixes, then scans every prefix and the whole
+     * keyspace. Reports the time and throughput of the scans and checks that every key is
+     * returned once, in order.
+     */
+    public void workload10() throws IOException {
+        Logger.log("Running workload 10", Logger.LogLevel.INFO);
+
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        Semaphore inFlight = new Semaphore(64);
+        for (int region = 0; region < 100; region++) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                pairs.put(String.format("report:%03d:%05d", region, i), ("value" + i).getBytes());
+            }
+            inFlight.acquireUninterruptibly();
+            client.multiPutAsync(pairs).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(64);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        int returned = 0;
+        for (int region = 0; region < 100; region++) {
+            long startTime = System.nanoTime();
+            List<Map.Entry<String, byte[]>> pairs = client.prefixScan(String.format("report:%03d:", region), 0);
+            responseTimes.add(System.nanoTime() - startTime);
+            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+            returned += pairs.size();
+        }
+        List<Long> sortedTimes = new ArrayList<>(responseTimes);
+        Collections.sort(sortedTimes);
+        Logger.log(String.format("100 prefix scans returned %d pairs, median %.3f ms, p99 %.3f ms", returned,
+            sortedTimes.get(49) / 1_000_000.0, sortedTimes.get(98) / 1_000_000.0), Logger.LogLevel.INFO);
+
+        long startTime = System.nanoTime();
+        List<Map.Entry<String, byte[]>> all = client.scan("report:", "report;", 0);
+        long elapsed = System.nanoTime() - startTime;
+        boolean ordered = true;
+        for (int i = 1; i < all.size(); i++) {
+            ordered &= all.get(i - 1).getKey().compareTo(all.get(i).getKey()) < 0;
+        }
+        Logger.log(String.format("Full scan returned %d pairs in %.1f ms, %.0f pairs/s, ordered: %b", all.size(),
+            elapsed / 1_000_000.0, all.size() / (elapsed / 1_000_000_000.0), ordered), Logger.LogLevel.INFO);
+
+        startTime = System.nanoTime();
+        List<Map.Entry<String, byte[]>> page = client.scan("report:050:", null, 100);
+        Logger.log(String.format("Scan of 100 pairs from the middle in %.3f ms, first key %s", (System.nanoTime() - startTime) / 1_000_000.0,
+            page.isEmpty() ? "none" : page.get(0).getKey()), Logger.LogLevel.INFO);
+        client.close();
+
+        generateGraph(responseTimes, timestamps, "Prefix Scan Response time over time for a Server with " + numBuckets + " bucket(s)", "100 prefix scans of 1000 keys");
+    }
+
+    /**
+     * Workload 11: 8 clients increment the same counter 1000 times each, first with the
+     * server-side increment and then with a client-side loop of get and compare-and-set that
+     * retries on conflicts. Reports the latency of a successful increment, the retries and
+     * checks that no increment was lost.
+     */
+    public void workload11() throws IOException {
+        Logger.log("Running workload 11", Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        final long workloadStartTime = System.currentTimeMillis();
+
+        for (boolean serverSide : new boolean[] {true, false}) {
+            String counter = serverSide ? "counter:increment" : "counter:cas";
+            List<Long> times = new ArrayList<>();
+            long[] retries = new long[1];
+            CountDownLatch done = new CountDownLatch(8);
+            for (int c = 0; c < 8; c++) {
+                new Thread(() -> {
+                    try {
+                        ClientLibrary client = new ClientLibrary(HOST, PORT);
+                        long clientRetries = 0;
+                        for (int i = 0; i < 1000; i++) {
+                            long startTime = System.nanoTime();
+                            if (serverSide) {
+                                client.increment(counter, 1);
+                            } else {
+                                while (true) {
+                                    byte[] current = client.get(counter);
+                                    long next = (current == null ? 0 : Long.parseLong(new String(current))) + 1;
+                                    if (client.compareAndSet(counter, current, Long.toString(next).getBytes())) {
+                                        break;
+                                    }
+                                    clientRetries++;
+                                }
+                            }
+                            long duration = System.nanoTime() - startTime;
+                            datapointsLock.lock();
+                            try {
+                                times.add(duration);
+                                if (serverSide) {
+                                    responseTimes.add(duration);
+                                    timestamps.add(System.currentTimeMillis() - workloadStartTime);
+                                }
+                            } finally {
+                                datapointsLock.unlock();
+                            }
+                        }
+                        client.close();
+                        datapointsLock.lock();
+                        try {
+                            retries[0] += clientRetries;
+                        } finally {
+                            datapointsLock.unlock();
+                        }
+                    } catch (IOException e) {
+                        Logger.log("Increment failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            ClientLibrary client = new ClientLibrary(HOST, PORT);
+            byte[] total = client.get(counter);
+            client.close();
+            Collections.sort(times);
+            Logger.log(String.format("%s: counter %s (expected 8000), median %.3f ms, p99 %.3f ms, %d retries",
+                serverSide ? "increment" : "get + compareAndSet", total == null ? "missing" : new String(total),
+                times.get(times.size() / 2) / 1_000_000.0, times.get((int) Math.ceil(times.size() * 0.99) - 1) / 1_000_000.0,
+                retries[0]), Logger.LogLevel.INFO);
+        }
+
+        generateGraph(responseTimes, timestamps, "Increment Operation Response time over time for a Server with " + numBuckets + " bucket(s)", "8 clients incrementing one counter");
+    }
+
+    /**
+     * Workload 12: 4 clients put random keys for 5 seconds, then for another 5 seconds while
+     * another client reads 50000 keys at a time with multiGet. The pair of keys pair:a and
+     * pair:b is rewritten with multi-puts meanwhile, and every multiGet checks that it sees
+     * both keys with the same value. Reports the latency of the puts in both periods.
+     */
+    public void workload12() throws IOException {
+        Logger.log("Running workload 12", Logger.LogLevel.INFO);
+
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        Semaphore inFlight = new Semaphore(64);
+        Set<String> keys = new HashSet<>();
+        for (int batch = 0; batch < 50; batch++) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                String key = String.format("wide:%05d", batch * 1000 + i);
+                pairs.put(key, ("value" + i).getBytes());
+                keys.add(key);
+            }
+            inFlight.acquireUninterruptibly();
+            client.multiPutAsync(pairs).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(64);
+        client.multiPut(Map.of("pair:a", "0".getBytes(), "pair:b", "0".getBytes()));
+        keys.add("pair:a");
+        keys.add("pair:b");
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        final long workloadStartTime = System.currentTimeMillis();
+
+        for (boolean reading : new boolean[] {false, true}) {
+            List<Long> times = new ArrayList<>();
+            long endTime = System.currentTimeMillis() + 5000;
+            CountDownLatch done = new CountDownLatch(reading ? 6 : 4);
+            for (int c = 0; c < 4; c++) {
+                new Thread(() -> {
+                    try {
+                        ClientLibrary writer = new ClientLibrary(HOST, PORT);
+                        while (System.currentTimeMillis() < endTime) {
+                            String key = String.format("wide:%05d", ThreadLocalRandom.current().nextInt(50000));
+                            long startTime = System.nanoTime();
+                            writer.put(key, "updated".getBytes());
+                            long duration = System.nanoTime() - startTime;
+                            datapointsLock.lock();
+                            try {
+                                times.add(duration);
+                                responseTimes.add(duration);
+                                timestamps.add(System.currentTimeMillis() - workloadStartTime);
+                            } finally {
+                                datapointsLock.unlock();
+                            }
+                        }
+                        writer.close();
+                    } catch (IOException e) {
+                        Logger.log("Put failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+
+            long[] multiGets = new long[1];
+            long[] mismatches = new long[1];
+            if (reading) {
+                new Thread(() -> {
+                    try {
+                        ClientLibrary writer = new ClientLibrary(HOST, PORT);
+                        for (int i = 1; System.currentTimeMillis() < endTime; i++) {
+                            byte[] value = Integer.toString(i).getBytes();
+                            writer.multiPut(Map.of("pair:a", value, "pair:b", value));
+                        }
+                        writer.close();
+                    } catch (IOException e) {
+                        Logger.log("MultiPut failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+                new Thread(() -> {
+                    try {
+                        ClientLibrary reader = new ClientLibrary(HOST, PORT);
+                        while (System.currentTimeMillis() < endTime) {
+                            Map<String, byte[]> pairs = reader.multiGet(keys);
+                            multiGets[0]++;
+                            if (!Arrays.equals(pairs.get("pair:a"), pairs.get("pair:b"))) {
+                                mismatches[0]++;
+                            }
+                        }
+                        reader.close();
+                    } catch (IOException e) {
+                        Logger.log("MultiGet failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            Collections.sort(times);
+            Logger.log(String.format("%s: %d puts, median %.3f ms, p99 %.3f ms, max %.3f ms%s",
+                reading ? "With multiGets" : "Puts only", times.size(), times.get(times.size() / 2) / 1_000_000.0,
+                times.get((int) Math.ceil(times.size() * 0.99) - 1) / 1_000_000.0, times.get(times.size() - 1) / 1_000_000.0,
+                reading ? String.format(", %d multiGets of %d keys, %d saw pair:a and pair:b differ", multiGets[0], keys.size(), mismatches[0]) : ""),
+                Logger.LogLevel.INFO);
+        }
+        client.close();
+
+        generateGraph(responseTimes, timestamps, "Put Operation Response time over time for a Server with " + numBuckets + " bucket(s)", "Puts while multiGets of 50000 keys run");
+    }
+
+    /**
+     * Workload 13: 8 clients make 500 transfers each between random accounts, every transfer
+     * a transaction that reads both balances and writes them back, run again while it
+     * conflicts. Runs with 10 accounts, where transfers often conflict, and with 1000. Reports
+     * the latency of a transfer, the conflicts and checks that the total balance is kept.
+     */
+    public void workload13() throws IOException {
+        Logger.log("Running workload 13", Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        final long workloadStartTime = System.currentTimeMillis();
+
+        for (int accounts : new int[] {10, 1000}) {
+            ClientLibrary client = new ClientLibrary(HOST, PORT);
+            Map<String, byte[]> balances = new HashMap<>();
+            for (int i = 0; i < accounts; i++) {
+                balances.put(String.format("account:%d:%04d", accounts, i), "1000".getBytes());
+            }
+            client.multiPut(balances);
+
+            List<Long> times = new ArrayList<>();
+            long[] conflicts = new long[1];
+            CountDownLatch done = new CountDownLatch(8);
+            final long startTime = System.nanoTime();
+            for (int c = 0; c < 8; c++) {
+                new Thread(() -> {
+                    try {
+                        ClientLibrary transferClient = new ClientLibrary(HOST, PORT);
+                        long clientConflicts = 0;
+                        for (int i = 0; i < 500; i++) {
+                            int from = ThreadLocalRandom.current().nextInt(accounts);
+                            int to = (from + 1 + ThreadLocalRandom.current().nextInt(accounts - 1)) % accounts;
+                            long amount = ThreadLocalRandom.current().nextInt(1, 100);
+                            long transferStart = System.nanoTime();
+                            while (true) {
+                                Transaction transaction = transferClient.beginTransaction();
+                                String fromKey = String.format("account:%d:%04d", accounts, from);
+                                String toKey = String.format("account:%d:%04d", accounts, to);
+                                Map<String, byte[]> pair = transaction.multiGet(Set.of(fromKey, toKey));
+                                long fromBalance = Long.parseLong(new String(pair.get(fromKey)));
+                                long toBalance = Long.parseLong(new String(pair.get(toKey)));
+                                transaction.put(fromKey, Long.toString(fromBalance - amount).getBytes());
+                                transaction.put(toKey, Long.toString(toBalance + amount).getBytes());
+                                if (transaction.commit()) {
+                                    break;
+                                }
+                                clientConflicts++;
+                            }
+                            long duration = System.nanoTime() - transferStart;
+                            datapointsLock.lock();
+                            try {
+                                times.add(duration);
+                                responseTimes.add(duration);
+                                timestamps.add(System.currentTimeMillis() - workloadStartTime);
+                            } finally {
+                                datapointsLock.unlock();
+                            }
+                        }
+                        transferClient.close();
+                        datapointsLock.lock();
+                        try {
+                            conflicts[0] += clientConflicts;
+                        } finally {
+                            datapointsLock.unlock();
+                        }
+                    } catch (IOException e) {
+                        Logger.log("Transfer failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+
+            long total = 0;
+            for (byte[] balance : client.multiGet(balances.keySet()).values()) {
+                total += Long.parseLong(new String(balance));
+            }
+            client.close();
+            Collections.sort(times);
+            Logger.log(String.format("%d accounts: %d transfers, %.0f/s, median %.3f ms, p99 %.3f ms, %d conflicts, total %d (expected %d)",
+                accounts, times.size(), times.size() / seconds, times.get(times.size() / 2) / 1_000_000.0,
+                times.get((int) Math.ceil(times.size() * 0.99) - 1) / 1_000_000.0, conflicts[0], total, accounts * 1000L),
+                Logger.LogLevel.INFO);
+        }
+
+        generateGraph(responseTimes, timestamps, "Transfer Response time over time for a Server with " + numBuckets + " bucket(s)", "8 clients transferring between accounts");
+    }
+
+    /**
+     * Workload 14: Stores 1000000 values of 1 KB, about 1 GB, with pipelined puts, then gets
+     * 10000 random stored keys and 10000 keys that were never stored. Run against a server
+     * with storage=lsm and a heap smaller than the data to check that it serves more data than
+     * fits in memory; its stats report the tables read and the reads skipped by Bloom filters.
+     * Reports the put throughput, the latency of both kinds of gets and checks every value read.
+     */
+    public void workload14() throws IOException {
+        Logger.log("Running workload 14", Logger.LogLevel.INFO);
+
+        final int keys = 1_000_000;
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        Semaphore inFlight = new Semaphore(256);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            byte[] value = new byte[1024];
+            Arrays.fill(value, (byte) i);
+            inFlight.acquireUninterruptibly();
+            client.putAsync(String.format("large:%07d", i), value).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(256);
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        Logger.log(String.format("%d puts of 1 KB in %.1f s, %.0f puts/s, %.1f MB/s", keys, seconds, keys / seconds,
+            keys / 1024.0 / seconds), Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        for (boolean stored : new boolean[] {true, false}) {
+            List<Long> times = new ArrayList<>();
+            int wrong = 0;
+            for (int i = 0; i < 10000; i++) {
+                int index = ThreadLocalRandom.current().nextInt(keys);
+                String key = stored ? String.format("large:%07d", index) : String.format("missing:%07d", index);
+                long getStart = System.nanoTime();
+                byte[] value = client.get(key);
+                long duration = System.nanoTime() - getStart;
+                times.add(duration);
+                responseTimes.add(duration);
+                timestamps.add(System.currentTimeMillis() - workloadStartTime);
+                if (stored ? value == null || value.length != 1024 || value[0] != (byte) index : value != null) {
+                    wrong++;
+                }
+            }
+            Collections.sort(times);
+            Logger.log(String.format("10000 gets of %s keys: median %.3f ms, p99 %.3f ms, %d wrong values",
+                stored ? "stored" : "missing", times.get(4999) / 1_000_000.0, times.get(9899) / 1_000_000.0, wrong),
+                Logger.LogLevel.INFO);
+        }
+        client.close();
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "10000 gets of stored and then missing keys among 1000000 values of 1 KB");
+    }
+
+    /**
+     * Workload 15: Stores 1000000 keys with values of 16 bytes, then runs 500000 pipelined gets
+     * and 10000 sequential gets of random keys. Run it once per storage engine: the stats of
+     * the compact engine report its memory per key, and the heap of the server after a full
+     * collection shows the memory of the others. Reports the get throughput and latency.
+     */
+    public void workload15() throws IOException {
+        Logger.log("Running workload 15", Logger.LogLevel.INFO);
+
+        final int keys = 1_000_000;
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        Semaphore inFlight = new Semaphore(64);
+        long startTime = System.nanoTime();
+        for (int batch = 0; batch < keys / 1000; batch++) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = batch * 1000; i < (batch + 1) * 1000; i++) {
+                pairs.put(String.format("user:%07d:profile", i), String.format("%016d", i).getBytes());
+            }
+            inFlight.acquireUninterruptibly();
+            client.multiPutAsync(pairs).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(64);
+        Logger.log(String.format("Stored %d keys in %.1f s", keys, (System.nanoTime() - startTime) / 1_000_000_000.0),
+            Logger.LogLevel.INFO);
+
+        Semaphore pipelined = new Semaphore(256);
+        startTime = System.nanoTime();
+        for (int i = 0; i < 500_000; i++) {
+            pipelined.acquireUninterruptibly();
+            client.getAsync(String.format("user:%07d:profile", ThreadLocalRandom.current().nextInt(keys)))
+                .whenComplete((result, error) -> pipelined.release());
+        }
+        pipelined.acquireUninterruptibly(256);
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        Logger.log(String.format("500000 pipelined gets in %.1f s, %.0f gets/s", seconds, 500_000 / seconds), Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        int wrong = 0;
+        for (int i = 0; i < 10000; i++) {
+            int index = ThreadLocalRandom.current().nextInt(keys);
+            long getStart = System.nanoTime();
+            byte[] value = client.get(String.format("user:%07d:profile", index));
+            responseTimes.add(System.nanoTime() - getStart);
+            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+            if (value == null || Integer.parseInt(new String(value)) != index) {
+                wrong++;
+            }
+        }
+        client.close();
+        List<Long> sortedTimes = new ArrayList<>(responseTimes);
+        Collections.sort(sortedTimes);
+        Logger.log(String.format("10000 sequential gets: median %.3f ms, p99 %.3f ms, %d wrong values",
+            sortedTimes.get(4999) / 1_000_000.0, sortedTimes.get(9899) / 1_000_000.0, wrong), Logger.LogLevel.INFO);
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "10000 sequential gets among 1000000 keys");
+    }
+
+    /**
+     * Workload 16: Stores 1000000 keys that share a long prefix, each with one of 8 status
+     * flags or one of 32 documents of about 200 bytes, then runs 500000 pipelined gets and
+     * 10000 sequential gets of random keys. Run it with and without dedup=on, and with
+     * storage=compact to also compress the keys, comparing the heap of the server after a
+     * full collection. Reports the get throughput and latency.
+     */
+    public void workload16() throws IOException {
+        Logger.log("Running workload 16", Logger.LogLevel.INFO);
+
+        final int keys = 1_000_000;
+        String[] statuses = {"active", "inactive", "pending", "suspended", "deleted", "verified", "locked", "trial"};
+        byte[][] values = new byte[statuses.length + 32][];
+        for (int i = 0; i < statuses.length; i++) {
+            values[i] = statuses[i].getBytes();
+        }
+        for (int i = 0; i < 32; i++) {
+            values[statuses.length + i] = String.format("{\"plan\":\"plan-%02d\",\"region\":\"eu-west-%d\",\"features\":[\"search\",\"export\",\"audit\",\"sso\"],"
+                + "\"limits\":{\"requests\":%d,\"storage\":%d,\"seats\":%d},\"notifications\":{\"email\":true,\"sms\":false}}",
+                i, i % 3, 1000 * (i + 1), 10 * (i + 1), i + 1).getBytes();
+        }
+
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        Semaphore inFlight = new Semaphore(64);
+        long startTime = System.nanoTime();
+        for (int batch = 0; batch < keys / 1000; batch++) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = batch * 1000; i < (batch + 1) * 1000; i++) {
+                pairs.put(String.format("tenant:acme-corp:service:orders:user:%07d:profile", i), values[i % values.length]);
+            }
+            inFlight.acquireUninterruptibly();
+            client.multiPutAsync(pairs).whenComplete((result, error) -> inFlight.release());
+        }
+        inFlight.acquireUninterruptibly(64);
+        Logger.log(String.format("Stored %d keys in %.1f s", keys, (System.nanoTime() - startTime) / 1_000_000_000.0),
+            Logger.LogLevel.INFO);
+
+        Semaphore pipelined = new Semaphore(256);
+        startTime = System.nanoTime();
+        for (int i = 0; i < 500_000; i++) {
+            pipelined.acquireUninterruptibly();
+            client.getAsync(String.format("tenant:acme-corp:service:orders:user:%07d:profile", ThreadLocalRandom.current().nextInt(keys)))
+                .whenComplete((result, error) -> pipelined.release());
+        }
+        pipelined.acquireUninterruptibly(256);
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        Logger.log(String.format("500000 pipelined gets in %.1f s, %.0f gets/s", seconds, 500_000 / seconds), Logger.LogLevel.INFO);
+
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        int wrong = 0;
+        for (int i = 0; i < 10000; i++) {
+            int index = ThreadLocalRandom.current().nextInt(keys);
+            long getStart = System.nanoTime();
+            byte[] value = client.get(String.format("tenant:acme-corp:service:orders:user:%07d:profile", index));
+            responseTimes.add(System.nanoTime() - getStart);
+            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+            if (!Arrays.equals(value, values[index % values.length])) {
+                wrong++;
+            }
+        }
+        client.close();
+        List<Long> sortedTimes = new ArrayList<>(responseTimes);
+        Collections.sort(sortedTimes);
+        Logger.log(String.format("10000 sequential gets: median %.3f ms, p99 %.3f ms, %d wrong values",
+            sortedTimes.get(4999) / 1_000_000.0, sortedTimes.get(9899) / 1_000_000.0, wrong), Logger.LogLevel.INFO);
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "10000 sequential gets among 1000000 keys with repeated values");
+    }
+
+    /**
+     * Workload 17: Runs 100000 pipelined puts of 16-byte values on small keys and 100000
+     * pipelined gets of them, once with a client on version 1 of the protocol and once with a
+     * client on version 2. Reports the bytes each client sent and received, the throughput and
+     * the latency of 10000 sequential gets with each version.
+     */
+    public void workload17() throws IOException {
+        Logger.log("Running workload 17", Logger.LogLevel.INFO);
+
+        final int keys = 100_000;
+        byte[] value = "0123456789abcdef".getBytes();
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        for (int version = 1; version <= 2; version++) {
+            ClientLibrary client = new ClientLibrary(HOST, PORT, Thread::new, version);
+            // The statistics of the connections are shared by every client of this process
+            Map<String, Long> before = TaggedConnection.stats();
+            Semaphore inFlight = new Semaphore(256);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < keys; i++) {
+                inFlight.acquireUninterruptibly();
+                client.putAsync(String.format("session:%06d", i), value).whenComplete((result, error) -> inFlight.release());
+            }
+            for (int i = 0; i < keys; i++) {
+                inFlight.acquireUninterruptibly();
+                client.getAsync(String.format("session:%06d", i)).whenComplete((result, error) -> inFlight.release());
+            }
+            inFlight.acquireUninterruptibly(256);
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            Map<String, Long> after = TaggedConnection.stats();
+            long sent = after.get("connections.bytes.sent") - before.get("connections.bytes.sent");
+            long received = after.get("connections.bytes.received") - before.get("connections.bytes.received");
+            Logger.log(String.format("Protocol version %d: %d puts and gets in %.1f s, %.0f ops/s, %d bytes sent, %d bytes received, %.1f bytes per operation",
+                client.protocolVersion(), 2 * keys, seconds, 2 * keys / seconds, sent, received, (sent + received) / (2.0 * keys)),
+                Logger.LogLevel.INFO);
+
+            List<Long> versionTimes = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                long getStart = System.nanoTime();
+                client.get(String.format("session:%06d", ThreadLocalRandom.current().nextInt(keys)));
+                versionTimes.add(System.nanoTime() - getStart);
+                timestamps.add(System.currentTimeMillis() - workloadStartTime);
+            }
+            client.close();
+            responseTimes.addAll(versionTimes);
+            Collections.sort(versionTimes);
+            Logger.log(String.format("Protocol version %d, 10000 sequential gets: median %.3f ms, p99 %.3f ms",
+                version, versionTimes.get(4999) / 1_000_000.0, versionTimes.get(9899) / 1_000_000.0), Logger.LogLevel.INFO);
+        }
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "10000 sequential gets with protocol version 1, then 10000 with version 2");
+    }
+
+    /**
+     * Workload 18: Writes 20000 JSON documents of about 2 KB with multiPuts of 100 documents,
+     * reads them back with multiGets of 100 keys and then runs 2000 sequential gets of single
+     * documents, once with a client that does not compress frames and once with one that does.
+     * Reports the bytes each client sent and received, the throughput and the latency of the
+     * gets, which the server answers without compressing again with compression=values.
+     */
+    public void workload18() throws IOException {
+        Logger.log("Running workload 18", Logger.LogLevel.INFO);
+
+        final int documents = 20_000;
+        final int batch = 100;
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        final long workloadStartTime = System.currentTimeMillis();
+        for (boolean compression : new boolean[] { false, true }) {
+            ClientLibrary client = new ClientLibrary(HOST, PORT, Thread::new, 2, compression);
+            // The statistics of the connections are shared by every client of this process
+            Map<String, Long> before = TaggedConnection.stats();
+            long startTime = System.nanoTime();
+            for (int first = 0; first < documents; first += batch) {
+                Map<String, byte[]> pairs = new HashMap<>();
+                for (int i = first; i < first + batch; i++) {
+                    pairs.put("order:" + i, jsonDocument(i));
+                }
+                client.multiPut(pairs);
+            }
+            int wrong = 0;
+            for (int first = 0; first < documents; first += batch) {
+                Set<String> keys = new HashSet<>();
+                for (int i = first; i < first + batch; i++) {
+                    keys.add("order:" + i);
+                }
+                Map<String, byte[]> values = client.multiGet(keys);
+                if (!Arrays.equals(values.get("order:" + first), jsonDocument(first))) {
+                    wrong++;
+                }
+            }
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            Map<String, Long> after = TaggedConnection.stats();
+            long sent = after.get("connections.bytes.sent") - before.get("connections.bytes.sent");
+            long received = after.get("connections.bytes.received") - before.get("connections.bytes.received");
+            Logger.log(String.format("Compression %s: %d documents put and read in %.1f s, %d bytes sent, %d bytes received, %.0f bytes per document, %d wrong values",
+                client.compressesFrames() ? "on" : "off", documents, seconds, sent, received, (sent + received) / (double) documents, wrong),
+                Logger.LogLevel.INFO);
+
+            List<Long> modeTimes = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                long getStart = System.nanoTime();
+                client.get("order:" + ThreadLocalRandom.current().nextInt(documents));
+                modeTimes.add(System.nanoTime() - getStart);
+                timestamps.add(System.currentTimeMillis() - workloadStartTime);
+            }
+            client.close();
+            responseTimes.addAll(modeTimes);
+            Collections.sort(modeTimes);
+            Logger.log(String.format("Compression %s, 2000 sequential gets: median %.3f ms, p99 %.3f ms",
+                compression ? "on" : "off", modeTimes.get(999) / 1_000_000.0, modeTimes.get(1979) / 1_000_000.0), Logger.LogLevel.INFO);
+        }
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "2000 sequential gets of 2 KB documents without compression, then 2000 with it");
+    }
+
+    /**
+     * Workload 19: Puts and reads back a 128 MB value, first whole with put and get and then in
+     * chunks with putStream and getStream, while another thread of the same client runs
+     * sequential gets of a small key. Reports how long each transfer took, the latency of the
+     * small gets during it and the most heap the client used.
+     */
+    public void workload19() throws IOException {
+        Logger.log("Running workload 19", Logger.LogLevel.INFO);
+
+        final int valueSize = 128 * 1024 * 1024;
+        ClientLibrary client = new ClientLibrary(HOST, PORT);
+        client.put("small", "value".getBytes());
+        List<Long> responseTimes = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        ReentrantLock datapointsLock = new ReentrantLock();
+        final long workloadStartTime = System.currentTimeMillis();
+
+        for (boolean streamed : new boolean[] {false, true}) {
+            String mode = streamed ? "Streamed" : "Whole";
+            List<Long> times = new ArrayList<>();
+            long[] heapUsed = new long[1];
+            CountDownLatch transferred = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            System.gc();
+            new Thread(() -> {
+                try {
+                    Runtime runtime = Runtime.getRuntime();
+                    while (transferred.getCount() > 0) {
+                        long startTime = System.nanoTime();
+                        client.get("small");
+                        long duration = System.nanoTime() - startTime;
+                        heapUsed[0] = Math.max(heapUsed[0], runtime.totalMemory() - runtime.freeMemory());
+                        datapointsLock.lock();
+                        try {
+                            times.add(duration);
+                            responseTimes.add(duration);
+                            timestamps.add(System.currentTimeMillis() - workloadStartTime);
+                        } finally {
+                            datapointsLock.unlock();
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.log("Get failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+
+            long startTime = System.nanoTime();
+            boolean correct = true;
+            try {
+                if (streamed) {
+                    client.putStream("large", patternStream(valueSize), valueSize);
+                    try (InputStream in = client.getStream("large")) {
+                        byte[] chunk = new byte[64 * 1024];
+                        int position = 0;
+                        int count;
+                        while ((count = in.read(chunk)) > 0) {
+                            for (int i = 0; i < count && correct; i++) {
+                                correct = chunk[i] == (byte) patternByte(position + i);
+                            }
+                            position += count;
+                        }
+                        correct = correct && position == valueSize;
+                    }
+                } else {
+                    byte[] value = patternStream(valueSize).readAllBytes();
+                    client.put("large", value);
+                    correct = Arrays.equals(client.get("large"), value);
+                }
+            } finally {
+                transferred.countDown();
+            }
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            Collections.sort(times);
+            Logger.log(String.format("%s value: put and read in %.1f s, %s, %d small gets meanwhile: median %.3f ms, p99 %.3f ms, max %.3f ms, client heap up to %d MB",
+                mode, seconds, correct ? "correct" : "WRONG", times.size(), times.get(times.size() / 2) / 1_000_000.0,
+                times.get(times.size() * 99 / 100) / 1_000_000.0, times.get(times.size() - 1) / 1_000_000.0, heapUsed[0] / (1024 * 1024)),
+                Logger.LogLevel.INFO);
+        }
+        client.close();
+
+        generateGraph(responseTimes, timestamps, "Get Response time over time for a Server with " + numBuckets + " bucket(s)", "Gets of a small key while a 128 MB value is transferred whole, then in chunks");
+    }
+
+    /**
+     * Builds a stream of a value of the given length whose bytes are computed from their
+     * position, so that a large value can be sent and checked without holding it in memory.
+     */
+    private static InputStream patternStream(int length) {
+        return new InputStream() {
+            private int position = 0;
+
+            @Override
+            public int read() {
+                return position < length ? patternByte(position++) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == length) {
+                    return -1;
+                }
+                int count = Math.min(len, length - position);
+                for (int i = 0; i < count; i++) {
+                    b[off + i] = (byte) patternByte(position++);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Gets the byte at a position of the values built by patternStream.
+     */
+    private static int patternByte(int position) {
+        return (position * 31 + (position >>> 12)) & 0xFF;
+    }
+
+    /**
+     * Builds a JSON document of about 2 KB describing an order, with the same fields as every other order.
+     */
+    private static byte[] jsonDocument(int id) {
+        StringBuilder document = new StringBuilder("{\"id\":").append(id).append(",\"customer\":\"customer-")
+            .append(id % 997).append("\",\"status\":\"shipped\",\"lines\":[");
+        for (int line = 0; line < 20; line++) {
+            document.append(line == 0 ? "" : ",").append("{\"sku\":\"SKU-").append((id * 31 + line) % 5000)
+                .append("\",\"quantity\":").append(1 + (id + line) % 9).append(",\"price\":").append(100 + (id * line) % 900)
+                .append(",\"warehouse\":\"eu-west\"}");
+        }
+        return document.append("]}").toString().getBytes();
+    }
+
     /**
      * Performs a put operation to store a key-value pair in the server.
      */